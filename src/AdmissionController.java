@@ -0,0 +1,397 @@
+/**
+ * AdmissionController.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Client-side admission control on creates, shared by a pool of HdfsClient
+ * threads. A background thread polls namespace usage, either NameNode heap
+ * (old generation occupancy after its last collection) and FilesTotal
+ * against a capacity over JMX, or a directory's inode count against its
+ * namespace quota, plus the RPC call queue length. Below the low
+ * watermark creates run freely. Between the watermarks they are rate
+ * limited to the unthrottled rate scaled by the headroom left, and the
+ * limit is halved while the call queue is over its bound. At the high
+ * watermark creates either wait for headroom (THROTTLE) or, for small
+ * files, are appended to a packed container with an index (PACK), so one
+ * inode holds many files. In PACK mode small-file creates over the rate
+ * limit are packed straight away instead of waiting for a permit; larger
+ * files are admitted as in THROTTLE mode.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+public class AdmissionController {
+    private static final long POLL_MS = 500;
+    private static final double DEFAULT_LOW_WATERMARK = 0.8;
+    private static final double DEFAULT_HIGH_WATERMARK = 0.95;
+    private static final long DEFAULT_MAX_QUEUE_MS = 5000;      // longest a THROTTLE create waits for headroom
+    private static final double MIN_RATE = 1.0;                 // creates per second, when limited at all
+    private static final double EWMA_WEIGHT = 0.3;              // of the newest sample in the unthrottled rate
+    private static final double QUEUE_RECOVERY = 0.1;           // call queue scale regained per quiet poll
+    private static final long CONTAINER_BYTES = 128L << 20;     // roll containers at about one block
+    private static final long MAX_PACKED_FILE_BYTES = 1 << 20;  // larger files are never diverted
+
+    /* Mode: what to do with creates once usage reaches the high watermark */
+    public enum Mode {
+        THROTTLE,   // hold them until usage drops, then refuse
+        PACK        // append small files to a packed container instead
+    }
+
+    /* RejectedException: a create was turned away before reaching the NameNode */
+    public static class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    private final Mode mode;
+    private final NameNodeMetrics nameNode;     // JMX source, or null
+    private final long capacityFiles;           // FilesTotal limit for the JMX source, 0 to use heap only
+    private final String quotaDir;              // quota source, or null
+    private final RateLimiter limiter = new RateLimiter(0);
+    private double lowWatermark = DEFAULT_LOW_WATERMARK;
+    private double highWatermark = DEFAULT_HIGH_WATERMARK;
+    private long maxCallQueue = 0;              // 0 ignores the call queue
+    private long maxQueueMs = DEFAULT_MAX_QUEUE_MS;
+    private String containerDir = "/packed/";
+    private FileSystem fileSystem = null;       // for quota polling and containers
+    private Thread poller = null;
+    private volatile boolean isStopped = false;
+
+    // controller state, guarded by this
+    private double usage = 0;
+    private long callQueueLength = -1;
+    private boolean isFull = false;
+    private double fullRate = 0;                // EWMA of the create rate while unthrottled
+    private double queueScale = 1.0;            // cut while the call queue is over its bound
+    private long lastPollMs;
+    private long lastAdmitted = 0;
+
+    // containers, guarded by the container lock
+    private final Object containerLock = new Object();
+    private FSDataOutputStream container = null;
+    private FSDataOutputStream containerIndex = null;
+    private long containerBytes = 0;
+    private int numContainers = 0;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong diverted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong queuedMs = new AtomicLong();
+
+    /* AdmissionController: watch NameNode heap, and FilesTotal against capacityFiles if positive */
+    public AdmissionController(final NameNodeMetrics nameNode, final long capacityFiles, final Mode mode) {
+        this.nameNode = nameNode;
+        this.capacityFiles = capacityFiles;
+        this.quotaDir = null;
+        this.mode = mode;
+    }
+
+    /* AdmissionController: watch the inode count of quotaDir against its namespace quota */
+    public AdmissionController(final String quotaDir, final Mode mode) {
+        this.nameNode = null;
+        this.capacityFiles = 0;
+        this.quotaDir = quotaDir;
+        this.mode = mode;
+    }
+
+    /* isPackable: could the local file source be diverted into a container? */
+    public static boolean isPackable(String source) {
+        return new File(source).length() <= MAX_PACKED_FILE_BYTES;
+    }
+
+    /* setWatermarks: usage fractions at which creates are slowed and then held or diverted */
+    public synchronized void setWatermarks(double low, double high) {
+        if (!(0 < low && low < high && high <= 1)) {
+            throw new IllegalArgumentException("Need 0 < low < high <= 1, got " + low + ", " + high);
+        }
+        this.lowWatermark = low;
+        this.highWatermark = high;
+    }
+
+    /* setMaxCallQueue: call queue length above which the create rate is cut (JMX source only) */
+    public synchronized void setMaxCallQueue(long maxCallQueue) {
+        this.maxCallQueue = maxCallQueue;
+    }
+
+    public synchronized void setMaxQueueMs(long maxQueueMs) {
+        this.maxQueueMs = maxQueueMs;
+    }
+
+    /* setContainerDir: HDFS directory packed containers are written to */
+    public synchronized void setContainerDir(String containerDir) {
+        this.containerDir = containerDir.endsWith("/") ? containerDir : containerDir + "/";
+    }
+
+    /* start: take a first reading and begin polling */
+    public void start() throws IOException {
+        fileSystem = FileSystem.newInstance(HdfsClient.newConfiguration());
+        synchronized (this) {
+            lastPollMs = System.currentTimeMillis();
+        }
+        poll();
+        poller = new Thread(new Runnable() {
+            public void run() {
+                while (!isStopped) {
+                    try {
+                        Thread.sleep(POLL_MS);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    poll();
+                }
+            }
+        });
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    /* stop: stop polling and close the open container */
+    public void stop() throws IOException {
+        isStopped = true;
+        if (poller != null) {
+            poller.interrupt();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+        synchronized (containerLock) {
+            closeContainer();
+        }
+        if (fileSystem != null) {
+            fileSystem.close();
+        }
+    }
+
+    /*
+     * admit: call before a create. Blocks while creates are rate limited or,
+     * in THROTTLE mode, while usage is at the high watermark; in PACK mode a
+     * divertible create never waits. Returns true if the create should go
+     * ahead, false if a divertible create should be packed instead. Throws
+     * RejectedException if headroom never came.
+     */
+    public boolean admit(boolean divertible) throws IOException {
+        long startMs = System.currentTimeMillis();
+        synchronized (this) {
+            while (isFull && !isStopped) {
+                if (mode == Mode.PACK && divertible) {
+                    diverted.incrementAndGet();
+                    return false;
+                }
+                long waitMs = startMs + maxQueueMs - System.currentTimeMillis();
+                if (waitMs <= 0) {
+                    rejected.incrementAndGet();
+                    throw new RejectedException("Namespace at " + String.format("%.1f%%", usage * 100) +
+                    " for " + maxQueueMs + " ms");
+                }
+                try {
+                    wait(Math.min(waitMs, POLL_MS));
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("Interrupted waiting for admission");
+                }
+            }
+        }
+        if (mode == Mode.PACK && divertible) {
+            // over the allowed create rate: pack it now rather than make it wait
+            if (!limiter.tryAcquire()) {
+                diverted.incrementAndGet();
+                return false;
+            }
+            admitted.incrementAndGet();
+            return true;
+        }
+        try {
+            limiter.acquire();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted waiting for admission");
+        }
+        queuedMs.addAndGet(System.currentTimeMillis() - startMs);
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    /*
+     * divert: append the local file source to the current container and
+     * record dest,offset,length in its index. Both are flushed to the
+     * DataNodes before returning, and no NameNode create is issued.
+     */
+    public void divert(String source, String dest) throws IOException {
+        File file = new File(source);
+        if (file.length() > MAX_PACKED_FILE_BYTES) {
+            throw new RejectedException("File " + source + " too large to pack");
+        }
+        if (dest.charAt(dest.length() - 1) == '/') {
+            dest += file.getName();
+        }
+        byte[] contents = new byte[(int) file.length()];
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            int pos = 0;
+            int numBytes;
+            while (pos < contents.length && (numBytes = in.read(contents, pos, contents.length - pos)) > 0) {
+                pos += numBytes;
+            }
+        } finally {
+            in.close();
+        }
+
+        synchronized (containerLock) {
+            if (container == null || containerBytes + contents.length > CONTAINER_BYTES) {
+                closeContainer();
+                String name = containerDir + String.format("c%d-%05d", System.currentTimeMillis(), numContainers++);
+                container = fileSystem.create(new Path(name + ".pack"), false);
+                containerIndex = fileSystem.create(new Path(name + ".idx"), false);
+                containerBytes = 0;
+            }
+            container.write(contents);
+            container.hflush();
+            containerIndex.write((dest + "," + containerBytes + "," + contents.length + "\n").getBytes("UTF-8"));
+            containerIndex.hflush();
+            containerBytes += contents.length;
+        }
+    }
+
+    private void closeContainer() throws IOException {
+        if (container != null) {
+            try {
+                container.close();
+            } finally {
+                containerIndex.close();
+                container = null;
+                containerIndex = null;
+            }
+        }
+    }
+
+    // read usage and the call queue, then set the create rate and the full flag
+    private void poll() {
+        double sample = -1;
+        long queueLength = -1;
+        try {
+            sample = measureUsage();
+            if (nameNode != null) {
+                queueLength = nameNode.getCallQueueLength();
+            }
+        } catch (IOException ex) {
+            System.err.println("Admission poll failed: " + ex);
+        }
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            long count = admitted.get();
+            double observed = now > lastPollMs ? 1000.0 * (count - lastAdmitted) / (now - lastPollMs) : 0;
+            lastPollMs = now;
+            lastAdmitted = count;
+            if (sample < 0) {
+                return;     // keep the last decision until the NameNode answers again
+            }
+            usage = sample;
+            callQueueLength = queueLength;
+
+            if (maxCallQueue > 0 && queueLength > maxCallQueue) {
+                queueScale = Math.max(queueScale / 2, 0.01);
+            } else {
+                queueScale = Math.min(1.0, queueScale + QUEUE_RECOVERY);
+            }
+            double headroomScale = usage <= lowWatermark ? 1.0 :
+            Math.max(0, (highWatermark - usage) / (highWatermark - lowWatermark));
+            if (headroomScale >= 1.0 && queueScale >= 1.0) {
+                fullRate = fullRate == 0 ? observed : (1 - EWMA_WEIGHT) * fullRate + EWMA_WEIGHT * observed;
+                limiter.setRate(0);
+            } else if (fullRate > 0) {
+                limiter.setRate(Math.max(MIN_RATE, fullRate * headroomScale * queueScale));
+            } else {
+                limiter.setRate(MIN_RATE);      // pressure before any unthrottled rate was seen
+            }
+
+            boolean wasFull = isFull;
+            isFull = usage >= highWatermark;
+            if (wasFull && !isFull) {
+                notifyAll();
+            }
+        }
+    }
+
+    // fraction of capacity in use, or -1 if it cannot be read. Heap is the old generation
+    // after GC, since live heap rises and falls with uncollected garbage; if the collector
+    // has no old generation bean, the namespace's fitted metadata size against the heap
+    private double measureUsage() throws IOException {
+        if (quotaDir != null) {
+            ContentSummary summary = fileSystem.getContentSummary(new Path(quotaDir));
+            if (summary.getQuota() <= 0) {
+                return -1;
+            }
+            return 1.0 * (summary.getFileCount() + summary.getDirectoryCount()) / summary.getQuota();
+        }
+        long heapUsed = nameNode.getOldGenUsedAfterGc();
+        long heapMax = nameNode.getOldGenMax();
+        if (heapUsed < 0 || heapMax <= 0) {
+            heapUsed = nameNode.getMetadataBytes();
+            heapMax = nameNode.getHeapMax();
+        }
+        if (heapUsed < 0 || heapMax <= 0) {
+            return -1;
+        }
+        double sample = 1.0 * heapUsed / heapMax;
+        if (capacityFiles > 0) {
+            long files = nameNode.getFilesTotal();
+            if (files >= 0) {
+                sample = Math.max(sample, 1.0 * files / capacityFiles);
+            }
+        }
+        return sample;
+    }
+
+    public synchronized double getUsage() {
+        return usage;
+    }
+
+    public synchronized long getCallQueueLength() {
+        return callQueueLength;
+    }
+
+    /* getRate: current create rate limit per second, 0 if unlimited */
+    public double getRate() {
+        return limiter.getRate();
+    }
+
+    public synchronized boolean isFull() {
+        return isFull;
+    }
+
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    public long getDiverted() {
+        return diverted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /* print: CSV admitted,diverted,rejected,mean_wait_ms,containers */
+    public void print(PrintStream out, String prefix) {
+        long count = admitted.get();
+        int containers;
+        synchronized (containerLock) {
+            containers = numContainers;
+        }
+        out.println(prefix + count + "," + diverted.get() + "," + rejected.get() + "," +
+        String.format("%.3f", count == 0 ? 0.0 : 1.0 * queuedMs.get() / count) + "," + containers);
+    }
+}
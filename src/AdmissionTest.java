@@ -0,0 +1,317 @@
+/**
+ * AdmissionTest.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Measure small-file ingest near a namespace limit with and without
+ * admission control. A namespace quota on the test directory stands in
+ * for the NameNode's file limit. The directory is prefilled close to the
+ * quota, then writers add files flat out while a retention job deletes
+ * the oldest at a fixed rate, once with no control, once holding creates
+ * at the watermark (THROTTLE) and once packing them into containers (PACK).
+ * Given the NameNode web address, a last THROTTLE run watches NameNode
+ * heap, FilesTotal and the call queue over JMX instead of the quota.
+ * Packed files never reach the namespace, so they are reported apart from
+ * creates, and retention deletes of them find nothing and free no quota.
+ * Usage: AdmissionTest [capacity_files [delete_rate [namenode_http]]]
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.InterruptedException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
+
+public class AdmissionTest {
+    private static final boolean _DEBUG = false;
+    private static final int NUM_WRITE_THREADS = 16;
+    private static final int NUM_DELETE_THREADS = 2;
+    private static final long DEFAULT_CAPACITY = 20000;     // inodes allowed under HDFS_ADMISSION_DIR
+    private static final double DEFAULT_DELETE_RATE = 100.0;
+    private static final double PREFILL = 0.7;              // fraction of capacity written before measuring
+    private static final long STEP_MS = 120000;             // measurement time per mode
+    private static final long WINDOW_MS = 5000;             // timeline resolution
+    private static final long MAX_CALL_QUEUE = 64;          // NameNode RPC backlog that slows creates (JMX run)
+    private static final double LOW_WATERMARK = 0.8;        // of the quota, as in AdmissionController
+    private static final double HIGH_WATERMARK = 0.95;
+    private static final String LOCAL_WRITE_DIR = "/usr/local/hadoop/test/tmp10B";
+    private static final String HDFS_ADMISSION_DIR = "/admission/";
+    private static final String HDFS_FILE_DIR = HDFS_ADMISSION_DIR + "files/";
+    private static final String HDFS_PACKED_DIR = HDFS_ADMISSION_DIR + "packed/";
+
+    // prints out one timeline line per window in CSV format:
+    // mode,seconds,usage,create_rate_limit,creates/sec,packed/sec,refused/sec,create_p99_ms
+    // and one summary line per mode, where latencies are of creates only:
+    // mode,total,creates,packed,refused,creates/sec,mean_ms,p99_ms,max_ms,deletes,deletes_missing
+    public static void main(String[] args) {
+        long capacity = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_CAPACITY;
+        double deleteRate = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_DELETE_RATE;
+        NameNodeMetrics nameNode = args.length > 2 ? new NameNodeMetrics(args[2]) : null;
+        List<String> modes = new ArrayList<String>();
+        modes.add("none");
+        modes.add("throttle");
+        modes.add("pack");
+        if (nameNode != null) {
+            modes.add("throttle-jmx");
+        }
+        ResultsStore results = new ResultsStore("AdmissionTest", ResultsStore.DEFAULT_DIR);
+        if (nameNode != null) {
+            results.setNameNode(nameNode);
+        }
+        results.setConfig("write_threads", NUM_WRITE_THREADS);
+        results.setConfig("capacity", capacity);
+        results.setConfig("delete_rate", deleteRate);
+        results.setConfig("prefill", PREFILL);
+        results.setConfig("step_ms", STEP_MS);
+
+        for (String mode : modes) {
+            long outside = 0;
+            try {
+                resetQuota(capacity);
+                if (mode.equals("throttle-jmx")) {
+                    outside = inodesOutside(nameNode);
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                System.exit(1);
+            }
+
+            // STEP 1: prefill close to the limit, uncontrolled and unmeasured
+            long prefill = (long) (capacity * PREFILL);
+            System.err.println("(1) " + mode + ": prefilling " + prefill + " files");
+            LinkedList<String> requestQ = new LinkedList<String>();
+            for (long j = 0; j < prefill; ++j) {
+                requestQ.offer("add " + getRandomFile(LOCAL_WRITE_DIR).getAbsolutePath() + " " +
+                HDFS_FILE_DIR + String.format("%09d", j));
+            }
+            Thread[] writePool = new Thread[NUM_WRITE_THREADS];
+            for (int j = 0; j < NUM_WRITE_THREADS; ++j) {
+                writePool[j] = new Thread(new HdfsClient(requestQ));
+                writePool[j].start();
+            }
+            joinAll(writePool);
+
+            AdmissionController admission = null;
+            if (mode.equals("throttle-jmx")) {
+                // FilesTotal also counts the inodes outside the quota, so move the watermarks
+                // to where the quota's would be
+                admission = new AdmissionController(nameNode, outside + capacity, AdmissionController.Mode.THROTTLE);
+                admission.setWatermarks((outside + LOW_WATERMARK * capacity) / (outside + capacity),
+                (outside + HIGH_WATERMARK * capacity) / (outside + capacity));
+                admission.setMaxCallQueue(MAX_CALL_QUEUE);
+                try {
+                    admission.start();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    System.exit(1);
+                }
+            } else if (!mode.equals("none")) {
+                admission = new AdmissionController(HDFS_ADMISSION_DIR,
+                mode.equals("pack") ? AdmissionController.Mode.PACK : AdmissionController.Mode.THROTTLE);
+                admission.setContainerDir(HDFS_PACKED_DIR);
+                try {
+                    admission.start();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    System.exit(1);
+                }
+            }
+
+            // STEP 2: writers run flat out against a paced retention job for STEP_MS
+            System.err.println("(2) " + mode + ": ingest with deletes at " + deleteRate + "/sec");
+            OpMetrics window = new OpMetrics();
+            OpMetrics deleteMetrics = new OpMetrics();
+            LinkedList<String> deleteQ = new LinkedList<String>();
+            HdfsClient[] writers = new HdfsClient[NUM_WRITE_THREADS];
+            for (int j = 0; j < NUM_WRITE_THREADS; ++j) {
+                writers[j] = new HdfsClient(requestQ, true);
+                writers[j].setMetrics(window);
+                writers[j].setAdmissionController(admission);
+                writePool[j] = new Thread(writers[j]);
+                writePool[j].start();
+            }
+            HdfsClient[] deleters = new HdfsClient[NUM_DELETE_THREADS];
+            Thread[] deletePool = new Thread[NUM_DELETE_THREADS];
+            for (int j = 0; j < NUM_DELETE_THREADS; ++j) {
+                deleters[j] = new HdfsClient(deleteQ, true);
+                deleters[j].setMetrics(deleteMetrics);
+                deletePool[j] = new Thread(deleters[j]);
+                deletePool[j].start();
+            }
+
+            LatencyHistogram total = new LatencyHistogram();
+            long creates = 0;
+            long packed = 0;
+            long refused = 0;
+            long next = prefill;        // next file to create
+            long oldest = 0;            // next file for the retention job to delete
+            RateLimiter deleteLimiter = new RateLimiter(deleteRate);
+            Long startTime = System.currentTimeMillis();
+            long windowStart = startTime;
+            while (System.currentTimeMillis() < startTime + STEP_MS) {
+                // keep the writers busy without building an unbounded backlog
+                synchronized (requestQ) {
+                    while (requestQ.size() < NUM_WRITE_THREADS * 4) {
+                        requestQ.offer("add " + getRandomFile(LOCAL_WRITE_DIR).getAbsolutePath() + " " +
+                        HDFS_FILE_DIR + String.format("%09d", next++));
+                    }
+                    requestQ.notifyAll();
+                }
+                while (oldest < next && deleteLimiter.tryAcquire()) {
+                    synchronized (deleteQ) {
+                        deleteQ.offer("delete " + HDFS_FILE_DIR + String.format("%09d", oldest++));
+                        deleteQ.notifyAll();
+                    }
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - windowStart >= WINDOW_MS) {
+                    LatencyHistogram hist = new LatencyHistogram();
+                    hist.add(window.get("add"));
+                    long windowPacked = window.get("pack").getCount();
+                    long windowRefused = window.getFailures();
+                    window.reset();
+                    total.add(hist);
+                    creates += hist.getCount();
+                    packed += windowPacked;
+                    refused += windowRefused;
+                    double seconds = (now - windowStart) / 1000.0;
+                    System.out.println(mode + "," + String.format("%.1f", (now - startTime) / 1000.0) + "," +
+                    (admission == null ? "," : String.format("%.4f,%.1f", admission.getUsage(), admission.getRate())) +
+                    "," + String.format("%.4f,%.4f,%.4f", hist.getCount() / seconds, windowPacked / seconds,
+                    windowRefused / seconds) + "," + String.format("%.3f", hist.getPercentileMs(99)));
+                    windowStart = now;
+                }
+            }
+
+            // the backlog never reached the NameNode, so it is dropped rather than drained
+            synchronized (requestQ) {
+                requestQ.clear();
+            }
+            stopAll(writers, writePool);
+            synchronized (deleteQ) {
+                deleteQ.clear();
+            }
+            stopAll(deleters, deletePool);
+            Long endTime = System.currentTimeMillis();
+            Double totalTime = 1.0 * (endTime - startTime) / 1000;
+            total.add(window.get("add"));
+            creates += window.get("add").getCount();
+            packed += window.get("pack").getCount();
+            refused += window.getFailures();
+            if (admission != null) {
+                admission.print(System.err, mode + ",admission,");
+                try {
+                    admission.stop();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+
+            // a delete of a packed name finds no file, so only successful deletes freed quota
+            System.out.println(mode + ",total," + creates + "," + packed + "," + refused + "," +
+            String.format("%.4f,%.3f,%.3f,%.3f", creates / totalTime, total.getMeanMs(),
+            total.getPercentileMs(99), total.getMaxMs()) + "," + deleteMetrics.getSuccesses() + "," +
+            deleteMetrics.getRefused());
+            int row = results.addRow(mode);
+            results.set(row, "creates_sec", creates / totalTime);
+            results.set(row, "packed_sec", packed / totalTime);
+            results.set(row, "refused", refused);
+            results.set(row, "mean_ms", total.getMeanMs());
+            results.set(row, "p99_ms", total.getPercentileMs(99));
+            results.set(row, "deletes", deleteMetrics.getSuccesses());
+            results.set(row, "deletes_missing", deleteMetrics.getRefused());
+            try {
+                results.save();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        } // END MODE LOOP
+
+        try {
+            FileSystem fileSystem = FileSystem.newInstance(HdfsClient.newConfiguration());
+            fileSystem.delete(new Path(HDFS_ADMISSION_DIR), true);
+            fileSystem.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return;
+    }
+
+    // empty HDFS_ADMISSION_DIR and set its namespace quota to capacity inodes
+    private static void resetQuota(long capacity) throws IOException {
+        FileSystem fileSystem = FileSystem.newInstance(HdfsClient.newConfiguration());
+        try {
+            if (!(fileSystem instanceof DistributedFileSystem)) {
+                throw new IOException("Namespace quotas need HDFS, not " + fileSystem.getUri());
+            }
+            Path dir = new Path(HDFS_ADMISSION_DIR);
+            fileSystem.delete(dir, true);
+            fileSystem.mkdirs(new Path(HDFS_FILE_DIR));
+            fileSystem.mkdirs(new Path(HDFS_PACKED_DIR));
+            ((DistributedFileSystem) fileSystem).setQuota(dir, capacity, HdfsConstants.QUOTA_DONT_SET);
+        } finally {
+            fileSystem.close();
+        }
+    }
+
+    // inodes outside HDFS_ADMISSION_DIR, which count toward FilesTotal but not the quota
+    private static long inodesOutside(NameNodeMetrics nameNode) throws IOException {
+        FileSystem fileSystem = FileSystem.newInstance(HdfsClient.newConfiguration());
+        try {
+            ContentSummary summary = fileSystem.getContentSummary(new Path(HDFS_ADMISSION_DIR));
+            long filesTotal = nameNode.getFilesTotal();
+            if (filesTotal < 0) {
+                throw new IOException("Cannot read FilesTotal from " + nameNode.getHttpAddress());
+            }
+            return filesTotal - summary.getFileCount() - summary.getDirectoryCount();
+        } finally {
+            fileSystem.close();
+        }
+    }
+
+    private static void stopAll(HdfsClient[] clients, Thread[] threadPool) {
+        for (HdfsClient client : clients) {
+            client.stopThread();
+        }
+        joinAll(threadPool);
+    }
+
+    private static void joinAll(Thread[] threadPool) {
+        for (Thread thread : threadPool) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    // get a random file from a specified directory
+    private static File getRandomFile(final String dir) {
+        File folder = new File(dir);
+        Random rand = new Random();
+
+        File[] files = folder.listFiles();
+
+        return files[rand.nextInt(files.length)];
+    }
+
+    private static void DEBUG(String str) {
+        if (_DEBUG) {
+            System.err.println(str);
+        }
+    }
+}
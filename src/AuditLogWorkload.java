@@ -0,0 +1,216 @@
+/**
+ * AuditLogWorkload.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Fit a WorkloadModel from NameNode audit logs in a single streaming pass.
+ * Usage: AuditLogWorkload <model_out> <audit_log>... [-ls <ls_r_listing>]
+ *
+ * Audit logs carry no file lengths, so the file-size distribution is taken
+ * from an optional "hdfs dfs -ls -R" listing of the same namespace.
+ */
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.zip.GZIPInputStream;
+
+public class AuditLogWorkload {
+    private static final boolean _DEBUG = false;
+    private static final int PRINT_INTERVAL = 1000000;      // lines between progress messages
+    private static final int MAX_TRACKED_DIRS = 1 << 16;    // bounds memory used for fan-out counting
+
+    private final WorkloadModel model = new WorkloadModel();
+    // children created per parent directory; flushed into the model when full
+    private final HashMap<String, long[]> dirChildren = new HashMap<String, long[]>();
+    private String cachedSecond = null;     // "yyyy-MM-dd HH:mm:ss" of the last parsed timestamp
+    private long cachedSecondMs = 0;
+    private long numLines = 0;
+    private long numSkipped = 0;
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: AuditLogWorkload <model_out> <audit_log>... [-ls <ls_r_listing>]");
+            System.exit(1);
+        }
+
+        AuditLogWorkload fitter = new AuditLogWorkload();
+        try {
+            for (int i = 1; i < args.length; ++i) {
+                if (args[i].equals("-ls") && i + 1 < args.length) {
+                    fitter.readListing(args[++i]);
+                } else {
+                    fitter.readAuditLog(args[i]);
+                }
+            }
+            WorkloadModel model = fitter.finish();
+            model.save(args[0]);
+            model.print();
+            System.err.println("Parsed " + fitter.numLines + " lines (" +
+            fitter.numSkipped + " skipped), model written to " + args[0]);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /* readAuditLog: stream one (optionally gzipped) audit log into the model */
+    public void readAuditLog(String file) throws IOException {
+        BufferedReader reader = open(file);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (++numLines % PRINT_INTERVAL == 0) {
+                    System.err.println("DONE " + numLines);
+                }
+                if (!parseAuditLine(line)) {
+                    numSkipped++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /* readListing: stream "hdfs dfs -ls -R" output for the file-size distribution */
+    public void readListing(String file) throws IOException {
+        BufferedReader reader = open(file);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // -rw-r--r--   3 user group       10 2016-05-01 12:00 /path
+                if (line.length() == 0 || line.charAt(0) != '-') {
+                    continue;
+                }
+                String[] fields = line.trim().split("\\s+", 6);
+                if (fields.length < 6) {
+                    continue;
+                }
+                try {
+                    model.addFileSize(Long.parseLong(fields[4]));
+                } catch (NumberFormatException ex) {
+                    DEBUG("bad listing line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /* finish: flush remaining per-directory counts and return the model */
+    public WorkloadModel finish() {
+        flushDirChildren();
+        return model;
+    }
+
+    // 2016-05-01 12:00:00,123 INFO FSNamesystem.audit: allowed=true\tugi=..\tcmd=create\tsrc=/a/b\tdst=null...
+    private boolean parseAuditLine(String line) {
+        int auditStart = line.indexOf("allowed=");
+        if (auditStart < 0 || line.length() < 23) {
+            return false;
+        }
+        String cmd = field(line, "cmd=", auditStart);
+        String src = field(line, "src=", auditStart);
+        if (cmd == null || src == null) {
+            return false;
+        }
+
+        long timeMs = parseTime(line);
+        if (timeMs >= 0) {
+            model.addTimestamp(timeMs);
+        }
+        model.addCommand(cmd);
+        model.addPathDepth(depth(src));
+
+        // creates and mkdirs add a child to the parent directory
+        if (cmd.equals("create") || cmd.equals("mkdirs")) {
+            countChild(src);
+        } else if (cmd.equals("rename")) {
+            String dst = field(line, "dst=", auditStart);
+            if (dst != null && !dst.equals("null")) {
+                countChild(dst);
+            }
+        }
+        return true;
+    }
+
+    // value of a tab-delimited key=value audit field, or null if absent
+    private static String field(String line, String key, int from) {
+        int start = line.indexOf(key, from);
+        if (start < 0) {
+            return null;
+        }
+        start += key.length();
+        int end = line.indexOf('\t', start);
+        return end < 0 ? line.substring(start).trim() : line.substring(start, end);
+    }
+
+    // epoch ms of the leading log4j timestamp, re-parsing only when the second changes
+    private long parseTime(String line) {
+        if (line.charAt(19) != ',') {
+            return -1;
+        }
+        String second = line.substring(0, 19);
+        try {
+            if (!second.equals(cachedSecond)) {
+                cachedSecondMs = LocalDateTime.parse(second.replace(' ', 'T'))
+                .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                cachedSecond = second;
+            }
+            return cachedSecondMs + Integer.parseInt(line.substring(20, 23));
+        } catch (RuntimeException ex) {
+            DEBUG("bad timestamp: " + line);
+            return -1;
+        }
+    }
+
+    private static int depth(String path) {
+        int depth = 0;
+        for (int i = 0; i < path.length(); ++i) {
+            if (path.charAt(i) == '/' && i + 1 < path.length()) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    private void countChild(String path) {
+        int slash = path.lastIndexOf('/');
+        String parent = slash <= 0 ? "/" : path.substring(0, slash);
+        long[] count = dirChildren.get(parent);
+        if (count == null) {
+            if (dirChildren.size() >= MAX_TRACKED_DIRS) {
+                // directories split across flushes are undercounted; this keeps memory bounded
+                flushDirChildren();
+            }
+            count = new long[1];
+            dirChildren.put(parent, count);
+        }
+        count[0]++;
+    }
+
+    private void flushDirChildren() {
+        for (long[] count : dirChildren.values()) {
+            model.addFanOut(count[0]);
+        }
+        dirChildren.clear();
+    }
+
+    private static BufferedReader open(String file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (file.endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        return new BufferedReader(new InputStreamReader(in, "UTF-8"), 1 << 16);
+    }
+
+    private static void DEBUG(String str) {
+        if (_DEBUG) {
+            System.err.println(str);
+        }
+    }
+}
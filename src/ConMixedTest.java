@@ -12,6 +12,7 @@ import java.lang.InterruptedException;
 import java.util.Queue;
 import java.util.LinkedList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 public class ConMixedTest {
@@ -25,11 +26,27 @@ public class ConMixedTest {
     private static final String LOCAL_WRITE_DIR = "/usr/local/hadoop/test/tmp10B";  // contains files to randomly add to server
     private static final String HDFS_WRITE_DIR = "/throughput/";                    // HDFS path to which to write
 
+    private static final double SLO_PERCENTILE = 99.0;                      // latency percentile held to the SLO
+    private static final double[] ADAPTIVE_MIXES = {0.5, 0.8, 0.95};        // PROB_READ values searched in adaptive mode
+    private static final int MAX_ADAPTIVE_THREADS = 256;                    // upper bound of the adaptive search
+    private static final double MIN_GAIN = 0.05;                            // relative throughput gain that counts as an improvement
+
     // prints out throughput by trial in CSV format
+    // "adaptive <slo_ms>" instead searches for the saturation point of each mix
     public static void main(String[] args) {
-        LinkedList<String> requestQ = new LinkedList<String>();
-        Thread[] threadPool = new Thread[MAX_NUM_THRUPUT_THREADS];
-        LinkedList<String> filesAdded = new LinkedList<String>();
+        ResultsStore results = new ResultsStore("ConMixedTest", ResultsStore.DEFAULT_DIR);
+        results.setConfig("thruput_files", NUM_THRUPUT_FILES);
+        results.setConfig("prob_read", PROB_READ);
+        results.setConfig("args", Arrays.toString(args));
+        if (args.length >= 2 && args[0].equals("adaptive")) {
+            double sloMs = Double.parseDouble(args[1]);
+            System.out.println("prob_read,threads,throughput,p" + (int) SLO_PERCENTILE + "_ms");
+            for (double probRead : ADAPTIVE_MIXES) {
+                findKnee(probRead, sloMs, results);
+            }
+            return;
+        }
+
         double NUM_THRUPUT_THREADS; // how many threads to run the test on
 
         // run NUM_TRIALS trials, adding more threads sequentially
@@ -40,81 +57,173 @@ public class ConMixedTest {
             // STEP 1: throughput measurement test
             System.err.println("(1) Mixed Read/Write Throughput (trial " +
             ((i-1)) + ")");
-            System.err.println("(1a) filling mixed read/write request queue");
-            for (int j = 1; j <= NUM_THRUPUT_FILES; ++j) {
-                File readFile;
-                do {
-                    readFile = getRandomFile(LOCAL_READ_DIR);
-                } while (filesAdded.contains(readFile.getName()));
-                filesAdded.offer(readFile.getName());
-
-                // mix reads and writes (reads with .8 probability)
-                String request;
-                if (Math.random() < PROB_READ) {
-                    request = new String("read " + HDFS_READ_DIR + readFile.getName());
-                } else {
-                    request = new String("add " + "./read/" + readFile.getName() +
-                    " " + HDFS_WRITE_DIR + readFile.getName());
-                }
-
-                synchronized (requestQ) {
-                    requestQ.offer(request);
-                    requestQ.notifyAll();
-                }
+            OpMetrics metrics = new OpMetrics();
+            double throughput = runTrial((int) NUM_THRUPUT_THREADS, PROB_READ, metrics);
+            System.out.println(String.format("%.4f", throughput));
+            int row = results.addRow("threads" + (int) NUM_THRUPUT_THREADS);
+            results.set(row, "xput", throughput);
+            results.set(row, "p99_ms", metrics.getTotal().getPercentileMs(99));
+            results.set(row, "failures", metrics.getFailures());
+            saveResults(results);
+
+            // wait for use input to synchronized each trial start across nodes
+            System.out.println("Ending trial " + i + ", waiting for user input");
+            try {
+                // wait for user to hit enter
+                System.in.read(new byte[2]);
+            } catch (IOException ex) {
+                ex.printStackTrace();
             }
+        } // END TRIAL LOOP
+
+        return;
+    }
+
+    /*
+     * findKnee: find the thread count giving maximum throughput with the SLO
+     * percentile under sloMs. Doubles threads until throughput stops improving
+     * or the SLO is violated, then binary searches between the last good and
+     * the first bad count. Prints every probe and then the knee.
+     */
+    private static void findKnee(double probRead, double sloMs, ResultsStore results) {
+        int bestThreads = 0;
+        double bestThroughput = 0.0;
+        double bestLatency = 0.0;
+        int badThreads = -1;
+
+        // hill-climb: double until the curve flattens or the SLO breaks
+        for (int threads = 1; threads <= MAX_ADAPTIVE_THREADS; threads *= 2) {
+            OpMetrics metrics = new OpMetrics();
+            double throughput = runTrial(threads, probRead, metrics);
+            double latency = metrics.getTotal().getPercentileMs(SLO_PERCENTILE);
+            printProbe(probRead, threads, throughput, latency);
+            if (latency > sloMs || throughput < bestThroughput * (1 + MIN_GAIN)) {
+                badThreads = threads;
+                break;
+            }
+            bestThreads = threads;
+            bestThroughput = throughput;
+            bestLatency = latency;
+        }
 
-            // start thread pool to carry out mixed read/writ requests
-            for (int j = 0; j < NUM_THRUPUT_THREADS; ++j) {
-                threadPool[j] = new Thread(new HDFSClient(requestQ));
-                threadPool[j].start();
+        // binary search between the last improving and first non-improving counts
+        int lo = bestThreads;
+        int hi = badThreads;
+        while (hi > 0 && hi - lo > 1) {
+            int mid = (lo + hi) / 2;
+            OpMetrics metrics = new OpMetrics();
+            double throughput = runTrial(mid, probRead, metrics);
+            double latency = metrics.getTotal().getPercentileMs(SLO_PERCENTILE);
+            printProbe(probRead, mid, throughput, latency);
+            if (latency <= sloMs && throughput > bestThroughput) {
+                lo = mid;
+                bestThreads = mid;
+                bestThroughput = throughput;
+                bestLatency = latency;
+            } else {
+                hi = mid;
             }
-            Long startTime = System.currentTimeMillis();
-
-            for (int j = 0; j < NUM_THRUPUT_THREADS; ++j) {
-                try {
-                    threadPool[j].join();
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
-                }
+        }
+
+        if (bestThreads == 0) {
+            System.err.println("No thread count meets the " + sloMs + " ms SLO at prob_read " + probRead);
+        }
+        System.out.println("knee," + probRead + "," + bestThreads + "," +
+        String.format("%.4f,%.3f", bestThroughput, bestLatency));
+        int row = results.addRow("knee" + probRead);
+        results.set(row, "threads", bestThreads);
+        results.set(row, "xput", bestThroughput);
+        results.set(row, "slo_p" + (int) SLO_PERCENTILE + "_ms", bestLatency);
+        saveResults(results);
+    }
+
+    private static void saveResults(ResultsStore results) {
+        try {
+            results.save();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private static void printProbe(double probRead, int threads, double throughput, double latency) {
+        System.out.println(probRead + "," + threads + "," +
+        String.format("%.4f,%.3f", throughput, latency));
+    }
+
+    /* runTrial: run one mixed read/write trial and clean up; returns completed requests/sec */
+    private static double runTrial(int numThreads, double probRead, OpMetrics metrics) {
+        LinkedList<String> requestQ = new LinkedList<String>();
+        Thread[] threadPool = new Thread[Math.max(numThreads, MAX_NUM_THRUPUT_THREADS)];
+        PathCatalog filesAdded = new PathCatalog();
+
+        System.err.println("(1a) filling mixed read/write request queue");
+        for (int j = 1; j <= NUM_THRUPUT_FILES; ++j) {
+            File readFile;
+            do {
+                readFile = getRandomFile(LOCAL_READ_DIR);
+            } while (filesAdded.contains(readFile.getName()));
+            filesAdded.offer(readFile.getName());
+
+            // mix reads and writes (reads with probRead probability)
+            String request;
+            if (Math.random() < probRead) {
+                request = new String("read " + HDFS_READ_DIR + readFile.getName());
+            } else {
+                request = new String("add " + "./read/" + readFile.getName() +
+                " " + HDFS_WRITE_DIR + readFile.getName());
             }
-            // write out throughput
-            Long endTime = System.currentTimeMillis();
-            Double totalTime = 1.0 * (endTime - startTime) / 1000;
-            System.out.println(String.format("%.4f", 1.0 * (NUM_THRUPUT_FILES / totalTime)));
 
-            // clean up the writes
             synchronized (requestQ) {
-                while(!filesAdded.isEmpty()) {
-                    String fileName = filesAdded.poll();
-                    File fileToDelete = new File("./" + fileName);
-                    fileToDelete.delete();
-                    requestQ.offer("delete " + HDFS_WRITE_DIR + fileName);
-                }
+                requestQ.offer(request);
+                requestQ.notifyAll();
             }
-            // wait for threads to clean up HDFS
-            for (int j = 0; j < MAX_NUM_THRUPUT_THREADS; ++j) {
-                threadPool[j] = new Thread(new HDFSClient(requestQ));
-                threadPool[j].start();
+        }
+
+        // start thread pool to carry out mixed read/writ requests
+        for (int j = 0; j < numThreads; ++j) {
+            HdfsClient client = new HdfsClient(requestQ);
+            client.setMetrics(metrics);
+            threadPool[j] = new Thread(client);
+            threadPool[j].start();
+        }
+        Long startTime = System.currentTimeMillis();
+
+        for (int j = 0; j < numThreads; ++j) {
+            try {
+                threadPool[j].join();
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
             }
-            for (int j = 0; j < MAX_NUM_THRUPUT_THREADS; ++j) {
-                try {
-                    threadPool[j].join();
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
-                }
+        }
+        Long endTime = System.currentTimeMillis();
+        Double totalTime = 1.0 * (endTime - startTime) / 1000;
+
+        // clean up the writes
+        synchronized (requestQ) {
+            for (String fileName : filesAdded) {
+                File fileToDelete = new File("./" + fileName);
+                fileToDelete.delete();
+                requestQ.offer("delete " + HDFS_WRITE_DIR + fileName);
             }
-
-            // wait for use input to synchronized each trial start across nodes
-            System.out.println("Ending trial " + i + ", waiting for user input");
+            filesAdded.clear();
+        }
+        // wait for threads to clean up HDFS
+        for (int j = 0; j < MAX_NUM_THRUPUT_THREADS; ++j) {
+            threadPool[j] = new Thread(new HdfsClient(requestQ));
+            threadPool[j].start();
+        }
+        for (int j = 0; j < MAX_NUM_THRUPUT_THREADS; ++j) {
             try {
-                // wait for user to hit enter
-                System.in.read(new byte[2]);
-            } catch (IOException ex) {
+                threadPool[j].join();
+            } catch (InterruptedException ex) {
                 ex.printStackTrace();
             }
-        } // END TRIAL LOOP
+        }
 
-        return;
+        if (metrics.getFailures() > 0) {
+            System.err.println("failures," + metrics.getFailures() + ",retries," + metrics.getRetries());
+        }
+        return metrics.getSuccesses() / totalTime;
     }
 
     // get a random file from a specified directory
@@ -21,15 +21,27 @@ public class ConcurrencyTest {
     private static final int NUM_THRUPUT_FILES = 500;                           // number files for xput test
     private static final String LOCAL_READ_DIR = "/usr/local/hadoop/test/read"; // contains names to read from server
     private static final String HDFS_READ_DIR = "/read/";                       // HDFS path from which to read
+    private static final int RPCS_PER_LOOKUP = 3;   // exists + getFileStatus + getFileBlockLocations
 
-    // prints out throughput by trial in CSV format
+    // prints out trial,throughput,rpcs,ms_per_file in CSV format
+    // "batched" resolves each trial's files with HdfsClient.resolveBlockLocations instead
     public static void main(String[] args) {
+        boolean batched = args.length > 0 && args[0].equals("batched");
+        ResultsStore results = new ResultsStore("ConcurrencyTest", ResultsStore.DEFAULT_DIR);
+        results.setConfig("thruput_threads", NUM_THRUPUT_THREADS);
+        results.setConfig("thruput_files", NUM_THRUPUT_FILES);
+        results.setConfig("batched", batched);
         LinkedList<String> requestQ = new LinkedList<String>();
         Thread[] threadPool = new Thread[NUM_THRUPUT_THREADS];
 
         // run NUM_TRIALS trials
         for (int i = 1; i <= NUM_TRIALS; ++i) {
             System.out.print(i + ",");
+            if (batched) {
+                runBatchedTrial(i, results);
+                saveResults(results);
+                continue;
+            }
             // test throughput via the getBlockLocations call
             System.err.println("(1) BlockSize Throughput (trial " + i + ")");
             System.err.println("(1a) filling read request queue");
@@ -65,12 +77,65 @@ public class ConcurrencyTest {
             // write out throughput
             Long endTime = System.currentTimeMillis();
             Double totalTime = 1.0 * (endTime - startTime) / 1000;
-            System.out.println(String.format("%.4f", 1.0 * (NUM_THRUPUT_FILES / totalTime)));
+            System.out.println(String.format("%.4f", 1.0 * (NUM_THRUPUT_FILES / totalTime)) + "," +
+            (RPCS_PER_LOOKUP * NUM_THRUPUT_FILES) + "," +
+            String.format("%.4f", 1000.0 * totalTime / NUM_THRUPUT_FILES));
+            recordTrial(results, NUM_THRUPUT_FILES / totalTime, RPCS_PER_LOOKUP * NUM_THRUPUT_FILES,
+            1000.0 * totalTime / NUM_THRUPUT_FILES);
+            saveResults(results);
         }
 
         return;
     }
 
+    // resolve the same number of files through one listLocatedStatus per directory
+    private static void runBatchedTrial(int trial, ResultsStore results) {
+        System.err.println("(1) Batched BlockSize Throughput (trial " + trial + ")");
+        ArrayList<String> files = new ArrayList<String>();
+        for (int j = 1; j <= NUM_THRUPUT_FILES; ++j) {
+            files.add(HDFS_READ_DIR + getRandomFile(LOCAL_READ_DIR).getName());
+        }
+
+        HdfsClient client = new HdfsClient(new LinkedList<String>());
+        Long startTime = System.currentTimeMillis();
+        HdfsClient.LocatedBatch batch;
+        try {
+            batch = client.resolveBlockLocations(files, NUM_THRUPUT_THREADS);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.out.println();
+            return;
+        }
+        Long endTime = System.currentTimeMillis();
+        Double totalTime = 1.0 * (endTime - startTime) / 1000;
+        // picks answered from the batch, duplicates included, so both columns match the per-file mode
+        int answered = 0;
+        for (String file : files) {
+            if (batch.locations.containsKey(file)) {
+                answered++;
+            }
+        }
+        DEBUG("scanned " + batch.numScanned + " entries for " + batch.locations.size() + " files");
+        System.out.println(String.format("%.4f", 1.0 * (answered / totalTime)) + "," +
+        batch.numListings + "," + String.format("%.4f", 1000.0 * totalTime / Math.max(1, answered)));
+        recordTrial(results, answered / totalTime, batch.numListings, 1000.0 * totalTime / Math.max(1, answered));
+    }
+
+    private static void recordTrial(ResultsStore results, double throughput, long rpcs, double msPerFile) {
+        int row = results.addRow("trial");
+        results.set(row, "throughput", throughput);
+        results.set(row, "rpcs", rpcs);
+        results.set(row, "ms_per_file", msPerFile);
+    }
+
+    private static void saveResults(ResultsStore results) {
+        try {
+            results.save();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
     // get a random file from a specified directory
     private static File getRandomFile(final String dir) {
         File folder = new File(dir);
@@ -0,0 +1,279 @@
+/**
+ * FairRequestQueue.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Drop-in requestQ that keeps a queue per named tenant and dispatches
+ * between them by weighted fair queuing, so a burst from one tenant waits
+ * behind its own backlog instead of everyone else's. Each request gets a
+ * virtual finish tag of max(V, tenant's last tag) + 1/weight when offered,
+ * and poll hands out the smallest tag among tenants that are under their
+ * rate limit and concurrency cap. V advances to the start tag of each
+ * dispatched request. In FIFO mode tags are arrival order instead, which
+ * reproduces a plain shared queue while still keeping per-tenant metrics.
+ * Each request is stamped when offered, so a tenant's latencies can
+ * include the time its requests spent waiting here.
+ * Usage: clients and producers synchronize on the queue exactly as with a
+ * LinkedList; HdfsClient calls complete when a request it polled finishes.
+ */
+
+import java.io.PrintStream;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+public class FairRequestQueue extends AbstractQueue<String> {
+    public static final String DEFAULT_TENANT = "default";
+
+    private final LinkedHashMap<String, Tenant> tenants = new LinkedHashMap<String, Tenant>();
+    private final ThreadLocal<Tenant> polledBy = new ThreadLocal<Tenant>();
+    private final ThreadLocal<Long> polledWait = new ThreadLocal<Long>();     // queue wait of that request
+    private final boolean fifo;
+    private double virtualTime = 0;
+    private long arrivals = 0;          // arrival sequence, the tag in FIFO mode
+    private int size = 0;
+
+    /* Tenant: one named request stream with its share, limits and metrics */
+    public static class Tenant {
+        private final String name;
+        private final double weight;
+        private final RateLimiter limiter;      // null if not rate limited
+        private final int maxInFlight;          // 0 if uncapped
+        private final OpMetrics metrics = new OpMetrics();
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+        private final LinkedList<String> requests = new LinkedList<String>();
+        private final LinkedList<double[]> tags = new LinkedList<double[]>();   // {start, finish} per request
+        private final LinkedList<Long> arrivals = new LinkedList<Long>();       // System.nanoTime when offered
+        private double lastFinish = 0;
+        private int inFlight = 0;
+        private long dispatched = 0;
+
+        Tenant(String name, double weight, double ratePerSec, int maxInFlight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Tenant " + name + " needs a positive weight");
+            }
+            this.name = name;
+            this.weight = weight;
+            this.limiter = ratePerSec > 0 ? new RateLimiter(ratePerSec) : null;
+            this.maxInFlight = maxInFlight;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        /* getMetrics: latencies (queue wait plus service) and failures of this tenant's requests */
+        public OpMetrics getMetrics() {
+            return metrics;
+        }
+
+        /* getQueueWait: time this tenant's dispatched requests spent queued */
+        public LatencyHistogram getQueueWait() {
+            return queueWait;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        /* getQueued: requests offered but not yet dispatched */
+        public int getQueued() {
+            return requests.size();
+        }
+
+        /* getDispatched: requests handed to a client so far */
+        public long getDispatched() {
+            return dispatched;
+        }
+
+        // can the head request be dispatched now? takes a rate permit if so
+        private boolean isEligible() {
+            if (requests.isEmpty() || (maxInFlight > 0 && inFlight >= maxInFlight)) {
+                return false;
+            }
+            return limiter == null || limiter.tryAcquire();
+        }
+    }
+
+    public FairRequestQueue() {
+        this(false);
+    }
+
+    public FairRequestQueue(final boolean fifo) {
+        this.fifo = fifo;
+    }
+
+    /* addTenant: register a tenant; ratePerSec and maxInFlight of 0 mean unlimited */
+    public synchronized Tenant addTenant(String name, double weight, double ratePerSec, int maxInFlight) {
+        if (tenants.containsKey(name)) {
+            throw new IllegalArgumentException("Tenant " + name + " already exists");
+        }
+        Tenant tenant = new Tenant(name, weight, ratePerSec, maxInFlight);
+        tenants.put(name, tenant);
+        return tenant;
+    }
+
+    /*
+     * addTenant: register a tenant from a spec of the form
+     * name[:weight[:rate/sec[:max_in_flight]]], e.g. "interactive:4:0:8"
+     */
+    public Tenant addTenant(String spec) {
+        String[] fields = spec.split(":");
+        return addTenant(fields[0],
+        fields.length > 1 ? Double.parseDouble(fields[1]) : 1.0,
+        fields.length > 2 ? Double.parseDouble(fields[2]) : 0,
+        fields.length > 3 ? Integer.parseInt(fields[3]) : 0);
+    }
+
+    public synchronized Tenant getTenant(String name) {
+        return tenants.get(name);
+    }
+
+    /* getTenants: registered tenants in the order they were added */
+    public synchronized List<Tenant> getTenants() {
+        return new ArrayList<Tenant>(tenants.values());
+    }
+
+    /* offer: enqueue request for the default tenant, creating it with weight 1 if needed */
+    public synchronized boolean offer(String request) {
+        if (!tenants.containsKey(DEFAULT_TENANT)) {
+            addTenant(DEFAULT_TENANT, 1.0, 0, 0);
+        }
+        return offer(DEFAULT_TENANT, request);
+    }
+
+    /* offer: enqueue request for the named tenant */
+    public synchronized boolean offer(String tenantName, String request) {
+        Tenant tenant = tenants.get(tenantName);
+        if (tenant == null) {
+            throw new IllegalArgumentException("Unknown tenant " + tenantName);
+        }
+        double start;
+        double finish;
+        if (fifo) {
+            start = finish = arrivals;
+        } else {
+            start = Math.max(virtualTime, tenant.lastFinish);
+            finish = start + 1.0 / tenant.weight;
+            tenant.lastFinish = finish;
+        }
+        arrivals++;
+        tenant.requests.offer(request);
+        tenant.tags.offer(new double[] {start, finish});
+        tenant.arrivals.offer(System.nanoTime());
+        size++;
+        return true;
+    }
+
+    /*
+     * poll: the eligible request with the smallest finish tag, or null if
+     * the queue is empty or every tenant with work is rate limited or at
+     * its cap. The calling thread must call complete when it is done.
+     */
+    public synchronized String poll() {
+        // try tenants in tag order so a limited tenant's permit is only taken if it is chosen
+        List<Tenant> candidates = new ArrayList<Tenant>();
+        for (Tenant tenant : tenants.values()) {
+            if (!tenant.requests.isEmpty()) {
+                candidates.add(tenant);
+            }
+        }
+        while (!candidates.isEmpty()) {
+            Tenant best = null;
+            for (Tenant tenant : candidates) {
+                if (best == null || tenant.tags.peek()[1] < best.tags.peek()[1]) {
+                    best = tenant;
+                }
+            }
+            candidates.remove(best);
+            if (!best.isEligible()) {
+                continue;
+            }
+            double[] tag = best.tags.poll();
+            virtualTime = Math.max(virtualTime, tag[0]);
+            best.inFlight++;
+            best.dispatched++;
+            size--;
+            long waitNanos = System.nanoTime() - best.arrivals.poll();
+            best.queueWait.record(waitNanos);
+            polledBy.set(best);
+            polledWait.set(waitNanos);
+            return best.requests.poll();
+        }
+        return null;
+    }
+
+    public synchronized String peek() {
+        for (Tenant tenant : tenants.values()) {
+            if (!tenant.requests.isEmpty()) {
+                return tenant.requests.peek();
+            }
+        }
+        return null;
+    }
+
+    /* complete: the request this thread last polled has finished; frees its tenant's slot */
+    public synchronized void complete() {
+        Tenant tenant = polledBy.get();
+        if (tenant == null) {
+            return;
+        }
+        polledBy.remove();
+        polledWait.remove();
+        tenant.inFlight--;
+        notifyAll();    // a capped tenant may now be eligible
+    }
+
+    /* current: tenant of the request this thread last polled, or null */
+    public Tenant current() {
+        return polledBy.get();
+    }
+
+    /* currentWaitNanos: how long the request this thread last polled was queued, 0 if none */
+    public long currentWaitNanos() {
+        Long waitNanos = polledWait.get();
+        return waitNanos == null ? 0 : waitNanos;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /* clear: drop every queued request (poll-based clearing would stop at rate limits) */
+    public synchronized void clear() {
+        for (Tenant tenant : tenants.values()) {
+            tenant.requests.clear();
+            tenant.tags.clear();
+            tenant.arrivals.clear();
+            tenant.lastFinish = virtualTime;
+        }
+        size = 0;
+    }
+
+    /* iterator: read-only snapshot of queued requests, tenant by tenant */
+    public synchronized Iterator<String> iterator() {
+        Collection<String> queued = new ArrayList<String>(size);
+        for (Tenant tenant : tenants.values()) {
+            queued.addAll(tenant.requests);
+        }
+        return Collections.unmodifiableCollection(queued).iterator();
+    }
+
+    /*
+     * print: one CSV line per tenant and operation:
+     * tenant,weight,op,count,ops/sec,mean,p50,p99,max (ms),refused,failed,retries
+     */
+    public void print(PrintStream out, String prefix, double seconds) {
+        for (Tenant tenant : getTenants()) {
+            tenant.metrics.print(out, prefix + tenant.name + "," + tenant.weight + ",", seconds);
+        }
+    }
+}
@@ -0,0 +1,679 @@
+/**
+ * FsImageAnalyzer.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Offline analysis of a protobuf NameNode fsimage for capacity planning.
+ * For every subtree rooted at the given depth it reports file-size and
+ * blocks-per-file histograms, estimated NameNode heap from the fitted
+ * per-inode and per-block costs, and the heap saved if files under the
+ * small-file threshold were packed into block-sized containers.
+ * Usage: FsImageAnalyzer <fsimage> [-depth N] [-small BYTES] [-threads N]
+ *
+ * Heap stays bounded by the number of directories: per-inode parent and
+ * directory ids live in memory-mapped temp files, and file records are
+ * spilled to disk until the directory tree is known. Inodes are decoded in
+ * parallel: by INODE_SUB sub-section when the image has them (Hadoop 3.3+),
+ * otherwise by splitting the INODE section's records on one reader thread
+ * among parser threads. Directory entries are read in parallel only from
+ * INODE_DIR_SUB sub-sections.
+ * Snapshot-only inodes (reference children) are not attributed.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.CodedInputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.protocol.proto.HdfsProtos.BlockProto;
+import org.apache.hadoop.hdfs.server.namenode.FSImageUtil;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto.FileSummary;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto.INodeDirectorySection;
+import org.apache.hadoop.hdfs.server.namenode.FsImageProto.INodeSection;
+import org.apache.hadoop.util.LimitInputStream;
+
+public class FsImageAnalyzer {
+    private static final long INODE_BYTES = NameNodeMetrics.INODE_BYTES;
+    private static final long BLOCK_BYTES = NameNodeMetrics.BLOCK_BYTES;
+    private static final long ROOT_INODE_ID = 16385;        // first inode id handed out by the NameNode
+    private static final long DEFAULT_SMALL_BYTES = 1L << 20;
+    private static final long CONTAINER_BYTES = 128L << 20; // packed container size, one block each
+    private static final int NUM_HIST_BUCKETS = 64;
+    private static final int PRINT_INTERVAL = 10000000;
+    private static final int CHUNK_BYTES = 1 << 20;         // inode records handed to a parser at a time
+    private static final int QUEUED_CHUNKS_PER_THREAD = 4;
+    private static final ByteBuffer END_OF_CHUNKS = ByteBuffer.allocate(0);
+
+    private final File image;
+    private final int depth;
+    private final long smallBytes;
+    private final int numThreads;
+    private final Configuration conf = new Configuration();
+    private FileSummary summary;
+
+    private MappedInts parentOf;        // inode id -> parent inode id + 1 (0 if unknown)
+    private MappedInts dirIndexOf;      // inode id -> dense directory index + 1 (0 if not a directory)
+    private final List<DirBatch> dirBatches = new ArrayList<DirBatch>();
+    private final List<File> spills = new ArrayList<File>();
+
+    private int numDirs;
+    private long[] dirId;               // dense directory index -> inode id
+    private int[] dirBucket;            // dense directory index -> subtree bucket
+    private List<String> bucketPaths;
+
+    public FsImageAnalyzer(File image, int depth, long smallBytes, int numThreads) {
+        this.image = image;
+        this.depth = depth;
+        this.smallBytes = smallBytes;
+        this.numThreads = numThreads;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: FsImageAnalyzer <fsimage> [-depth N] [-small BYTES] [-threads N]");
+            System.exit(1);
+        }
+        int depth = 2;
+        long smallBytes = DEFAULT_SMALL_BYTES;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-depth")) {
+                depth = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("-small")) {
+                smallBytes = Long.parseLong(args[i + 1]);
+            } else if (args[i].equals("-threads")) {
+                numThreads = Integer.parseInt(args[i + 1]);
+            }
+        }
+
+        FsImageAnalyzer analyzer = new FsImageAnalyzer(new File(args[0]), depth, smallBytes, numThreads);
+        try {
+            Long startTime = System.currentTimeMillis();
+            Stats[] stats = analyzer.analyze();
+            analyzer.print(stats);
+            System.err.println("Analyzed " + args[0] + " in " +
+            (System.currentTimeMillis() - startTime) / 1000 + " s");
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /* analyze: run all passes and return per-subtree statistics, indexed like bucketPaths */
+    public Stats[] analyze() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(image, "r");
+        try {
+            if (!FSImageUtil.checkFileFormat(file)) {
+                throw new IOException(image + " is not a protobuf fsimage");
+            }
+            summary = FSImageUtil.loadSummary(file);
+        } finally {
+            file.close();
+        }
+
+        FileSummary.Section inodeSection = section("INODE");
+        if (inodeSection == null) {
+            throw new IOException(image + " has no INODE section");
+        }
+        InputStream in = open(inodeSection);
+        INodeSection header;
+        try {
+            header = INodeSection.parseDelimitedFrom(in);
+        } finally {
+            in.close();
+        }
+        System.err.println("(1) " + header.getNumInodes() + " inodes, last id " + header.getLastInodeId());
+
+        File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+        long numIds = header.getLastInodeId() - ROOT_INODE_ID + 1;
+        parentOf = new MappedInts(File.createTempFile("fsimage-parent", ".bin", tmpDir), numIds);
+        dirIndexOf = new MappedInts(File.createTempFile("fsimage-dirindex", ".bin", tmpDir), numIds);
+        try {
+            System.err.println("(2) Reading directory entries");
+            loadDirectories();
+            System.err.println("(3) Reading inodes");
+            loadInodes(inodeSection);
+            System.err.println("(4) Resolving directories to subtrees");
+            resolveBuckets();
+            System.err.println("(5) Aggregating files");
+            return aggregate();
+        } finally {
+            parentOf.close();
+            dirIndexOf.close();
+            for (File spill : spills) {
+                spill.delete();
+            }
+        }
+    }
+
+    // pass over INODE_DIR (or its sub-sections in parallel) recording each child's parent
+    private void loadDirectories() throws IOException {
+        List<FileSummary.Section> parts = sections("INODE_DIR_SUB");
+        if (parts.isEmpty()) {
+            FileSummary.Section dirSection = section("INODE_DIR");
+            if (dirSection == null) {
+                return;
+            }
+            parts.add(dirSection);
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final FileSummary.Section part : parts) {
+            tasks.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    MappedInts parents = parentOf.duplicate();
+                    InputStream in = open(part);
+                    try {
+                        INodeDirectorySection.DirEntry entry;
+                        while ((entry = INodeDirectorySection.DirEntry.parseDelimitedFrom(in)) != null) {
+                            int parent = (int) (entry.getParent() - ROOT_INODE_ID + 1);
+                            for (int c = 0; c < entry.getChildrenCount(); ++c) {
+                                parents.put(entry.getChildren(c) - ROOT_INODE_ID, parent);
+                            }
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+    }
+
+    /*
+     * pass over INODE keeping directories and spilling files to disk. INODE_SUB
+     * sub-sections are decoded by one task each; a single INODE section (all
+     * images before Hadoop 3.3) is split into its length-delimited records on
+     * this thread and the records parsed by numThreads workers.
+     */
+    private void loadInodes(final FileSummary.Section inodeSection) throws IOException {
+        final AtomicLong numInodes = new AtomicLong();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        List<FileSummary.Section> parts = sections("INODE_SUB");
+        if (!parts.isEmpty()) {
+            for (final FileSummary.Section part : parts) {
+                final InodeSink sink = newInodeSink();
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        InputStream in = open(part);
+                        try {
+                            INodeSection.INode inode;
+                            while ((inode = INodeSection.INode.parseDelimitedFrom(in)) != null) {
+                                sink.add(inode, numInodes);
+                            }
+                        } finally {
+                            sink.close();
+                            in.close();
+                        }
+                        return null;
+                    }
+                });
+            }
+            runAll(tasks);
+            return;
+        }
+
+        final BlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<ByteBuffer>(QUEUED_CHUNKS_PER_THREAD *
+        Math.max(1, numThreads));
+        for (int t = 0; t < Math.max(1, numThreads); ++t) {
+            final InodeSink sink = newInodeSink();
+            tasks.add(new Callable<Void>() {
+                public Void call() throws IOException, InterruptedException {
+                    try {
+                        ByteBuffer chunk;
+                        while ((chunk = chunks.take()) != END_OF_CHUNKS) {
+                            byte[] buf = chunk.array();
+                            for (int pos = 0; pos < chunk.limit(); ) {
+                                int length = chunk.getInt(pos);
+                                sink.add(INodeSection.INode.PARSER.parseFrom(buf, pos + 4, length), numInodes);
+                                pos += 4 + length;
+                            }
+                        }
+                    } finally {
+                        sink.close();
+                    }
+                    return null;
+                }
+            });
+        }
+        final int numWorkers = tasks.size();
+        tasks.add(new Callable<Void>() {
+            public Void call() throws IOException, InterruptedException {
+                DataInputStream in = new DataInputStream(open(inodeSection));
+                try {
+                    INodeSection.parseDelimitedFrom(in);    // skip the section header
+                    ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+                    int first;
+                    while ((first = in.read()) != -1) {
+                        int length = CodedInputStream.readRawVarint32(first, in);
+                        if (chunk.remaining() < 4 + length) {
+                            chunk.flip();
+                            chunks.put(chunk);
+                            chunk = ByteBuffer.allocate(Math.max(CHUNK_BYTES, 4 + length));
+                        }
+                        chunk.putInt(length);
+                        in.readFully(chunk.array(), chunk.position(), length);
+                        chunk.position(chunk.position() + length);
+                    }
+                    chunk.flip();
+                    chunks.put(chunk);
+                } finally {
+                    in.close();
+                }
+                for (int t = 0; t < numWorkers; ++t) {
+                    chunks.put(END_OF_CHUNKS);
+                }
+                return null;
+            }
+        });
+        runAll(tasks, tasks.size());    // every worker and the reader at once
+    }
+
+    // new directory batch and file spill for one decoding task
+    private InodeSink newInodeSink() throws IOException {
+        InodeSink sink = new InodeSink(File.createTempFile("fsimage-files", ".bin"));
+        dirBatches.add(sink.dirs);
+        spills.add(sink.spill);
+        return sink;
+    }
+
+    // give every directory a dense index and the bucket of its ancestor at the chosen depth
+    private void resolveBuckets() {
+        numDirs = 0;
+        for (DirBatch batch : dirBatches) {
+            numDirs += batch.size;
+        }
+        dirId = new long[numDirs];
+        byte[][] names = new byte[numDirs][];
+        int d = 0;
+        for (DirBatch batch : dirBatches) {
+            for (int k = 0; k < batch.size; ++k, ++d) {
+                dirId[d] = batch.ids[k];
+                names[d] = batch.names[k];
+                dirIndexOf.put(dirId[d] - ROOT_INODE_ID, d + 1);
+            }
+        }
+        dirBatches.clear();
+
+        // parent index and depth of every directory, root at depth 0
+        int[] parent = new int[numDirs];
+        int[] dirDepth = new int[numDirs];
+        Arrays.fill(dirDepth, -1);
+        for (d = 0; d < numDirs; ++d) {
+            int p = parentOf.get(dirId[d] - ROOT_INODE_ID) - 1;
+            parent[d] = p < 0 ? -1 : dirIndexOf.get(p) - 1;
+        }
+        int[] chain = new int[16];
+        for (d = 0; d < numDirs; ++d) {
+            int len = 0;
+            int cur = d;
+            while (cur >= 0 && dirDepth[cur] < 0) {
+                if (len == chain.length) {
+                    chain = Arrays.copyOf(chain, len * 2);
+                }
+                chain[len++] = cur;
+                cur = parent[cur];
+            }
+            int base = cur < 0 ? -1 : dirDepth[cur];
+            for (int k = len - 1; k >= 0; --k) {
+                dirDepth[chain[k]] = ++base;
+            }
+        }
+
+        // directories at or above the chosen depth are their own bucket
+        dirBucket = new int[numDirs];
+        bucketPaths = new ArrayList<String>();
+        Arrays.fill(dirBucket, -1);
+        for (d = 0; d < numDirs; ++d) {
+            if (dirDepth[d] <= depth) {
+                dirBucket[d] = bucketPaths.size();
+                bucketPaths.add(path(d, parent, names, dirId));
+            }
+        }
+        for (d = 0; d < numDirs; ++d) {
+            int cur = d;
+            while (dirBucket[cur] < 0) {
+                cur = parent[cur];
+            }
+            dirBucket[d] = dirBucket[cur];
+        }
+    }
+
+    // full path of directory d; trees not hanging off the root are marked as unattached
+    private static String path(int d, int[] parent, byte[][] names, long[] dirId) {
+        StringBuilder buf = new StringBuilder();
+        int cur = d;
+        for (; parent[cur] >= 0; cur = parent[cur]) {
+            buf.insert(0, "/" + new String(names[cur], StandardCharsets.UTF_8));
+        }
+        if (dirId[cur] != ROOT_INODE_ID) {
+            buf.insert(0, "<unattached>/" + new String(names[cur], StandardCharsets.UTF_8));
+        }
+        return buf.length() == 0 ? "/" : buf.toString();
+    }
+
+    // read the spilled file records in parallel into per-bucket statistics
+    private Stats[] aggregate() throws IOException {
+        final int numBuckets = bucketPaths.size();
+        List<Callable<Stats[]>> tasks = new ArrayList<Callable<Stats[]>>();
+        for (final File spill : spills) {
+            tasks.add(new Callable<Stats[]>() {
+                public Stats[] call() throws IOException {
+                    Stats[] local = newStats(numBuckets);
+                    MappedInts parents = parentOf.duplicate();
+                    MappedInts dirIndexes = dirIndexOf.duplicate();
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(spill), 1 << 16));
+                    try {
+                        while (true) {
+                            long id;
+                            try {
+                                id = in.readLong();
+                            } catch (EOFException ex) {
+                                break;
+                            }
+                            int numBlocks = in.readInt();
+                            long bytes = in.readLong();
+                            int p = parents.get(id - ROOT_INODE_ID) - 1;
+                            int dir = p < 0 ? -1 : dirIndexes.get(p) - 1;
+                            if (dir < 0) {
+                                continue;   // only reachable through a snapshot
+                            }
+                            local[dirBucket[dir]].addFile(bytes, numBlocks, smallBytes);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    return local;
+                }
+            });
+        }
+
+        Stats[] stats = newStats(numBuckets);
+        for (Stats[] local : runAll(tasks)) {
+            for (int b = 0; b < numBuckets; ++b) {
+                stats[b].add(local[b]);
+            }
+        }
+        for (int d = 0; d < numDirs; ++d) {
+            stats[dirBucket[d]].dirs++;
+        }
+        return stats;
+    }
+
+    /* print: per-subtree summary and histogram lines in CSV format */
+    public void print(Stats[] stats) {
+        Stats total = new Stats();
+        System.out.println("subtree,files,dirs,bytes,blocks,small_files,small_bytes," +
+        "heap_bytes,packed_heap_bytes,saved_heap_bytes");
+        for (int b = 0; b < stats.length; ++b) {
+            printSummary(bucketPaths.get(b), stats[b]);
+            total.add(stats[b]);
+            total.dirs += stats[b].dirs;
+        }
+        printSummary("TOTAL", total);
+        for (int b = 0; b < stats.length; ++b) {
+            System.out.println("sizehist," + bucketPaths.get(b) + "," + join(stats[b].sizeHist));
+            System.out.println("blockhist," + bucketPaths.get(b) + "," + join(stats[b].blockHist));
+        }
+    }
+
+    private void printSummary(String name, Stats s) {
+        long heap = (s.files + s.dirs) * INODE_BYTES + s.blocks * BLOCK_BYTES;
+        // small files replaced by block-sized containers, one inode and one block each
+        long containers = (s.smallBytes + CONTAINER_BYTES - 1) / CONTAINER_BYTES;
+        long saved = Math.max(0, (s.smallFiles - containers) * INODE_BYTES +
+        (s.smallBlocks - containers) * BLOCK_BYTES);
+        System.out.println(name + "," + s.files + "," + s.dirs + "," + s.bytes + "," + s.blocks + "," +
+        s.smallFiles + "," + s.smallBytes + "," + heap + "," + (heap - saved) + "," + saved);
+    }
+
+    private static String join(long[] hist) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < hist.length; ++i) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append(hist[i]);
+        }
+        return buf.toString();
+    }
+
+    private FileSummary.Section section(String name) {
+        for (FileSummary.Section s : summary.getSectionsList()) {
+            if (s.getName().equals(name)) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    private List<FileSummary.Section> sections(String name) {
+        List<FileSummary.Section> found = new ArrayList<FileSummary.Section>();
+        for (FileSummary.Section s : summary.getSectionsList()) {
+            if (s.getName().equals(name)) {
+                found.add(s);
+            }
+        }
+        return found;
+    }
+
+    // buffered, decompressed stream over one section of the image
+    private InputStream open(FileSummary.Section section) throws IOException {
+        FileInputStream fin = new FileInputStream(image);
+        fin.getChannel().position(section.getOffset());
+        InputStream in = new BufferedInputStream(new LimitInputStream(fin, section.getLength()), 1 << 16);
+        return FSImageUtil.wrapInputStreamForCompression(conf, summary.getCodec(), in);
+    }
+
+    private <T> List<T> runAll(List<? extends Callable<T>> tasks) throws IOException {
+        return runAll(tasks, Math.min(numThreads, tasks.size()));
+    }
+
+    private <T> List<T> runAll(List<? extends Callable<T>> tasks, int poolSize) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, poolSize));
+        CompletionService<T> done = new ExecutorCompletionService<T>(pool);
+        List<T> results = new ArrayList<T>();
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+            for (Callable<T> task : tasks) {
+                futures.add(done.submit(task));
+            }
+            // in completion order, so the first task to fail is reported and the rest interrupted,
+            // even if others are blocked waiting on it (workers on a reader that hit EOF)
+            for (int i = 0; i < futures.size(); ++i) {
+                done.take().get();
+            }
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return results;
+    }
+
+    private static Stats[] newStats(int numBuckets) {
+        Stats[] stats = new Stats[numBuckets];
+        for (int b = 0; b < numBuckets; ++b) {
+            stats[b] = new Stats();
+        }
+        return stats;
+    }
+
+    /* Stats: totals and histograms for one subtree */
+    public static class Stats {
+        long files;
+        long dirs;
+        long bytes;
+        long blocks;
+        long smallFiles;
+        long smallBytes;
+        long smallBlocks;
+        final long[] sizeHist = new long[NUM_HIST_BUCKETS];     // log2 buckets of file length
+        final long[] blockHist = new long[NUM_HIST_BUCKETS];    // log2 buckets of blocks per file
+
+        void addFile(long length, int numBlocks, long smallThreshold) {
+            files++;
+            bytes += length;
+            blocks += numBlocks;
+            sizeHist[WorkloadModel.bucket(length)]++;
+            blockHist[WorkloadModel.bucket(numBlocks)]++;
+            if (length < smallThreshold) {
+                smallFiles++;
+                smallBytes += length;
+                smallBlocks += numBlocks;
+            }
+        }
+
+        void add(Stats other) {
+            files += other.files;
+            bytes += other.bytes;
+            blocks += other.blocks;
+            smallFiles += other.smallFiles;
+            smallBytes += other.smallBytes;
+            smallBlocks += other.smallBlocks;
+            for (int i = 0; i < NUM_HIST_BUCKETS; ++i) {
+                sizeHist[i] += other.sizeHist[i];
+                blockHist[i] += other.blockHist[i];
+            }
+        }
+    }
+
+    // where one decoding task puts inodes: directories in memory, files spilled to disk
+    private static class InodeSink {
+        final DirBatch dirs = new DirBatch();
+        final File spill;
+        private final DataOutputStream out;
+
+        InodeSink(File spill) throws IOException {
+            this.spill = spill;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill), 1 << 16));
+        }
+
+        void add(INodeSection.INode inode, AtomicLong numInodes) throws IOException {
+            if (numInodes.incrementAndGet() % PRINT_INTERVAL == 0) {
+                System.err.println("DONE " + numInodes.get());
+            }
+            if (inode.getType() == INodeSection.INode.Type.DIRECTORY) {
+                dirs.add(inode.getId(), inode.getName().toByteArray());
+            } else if (inode.getType() == INodeSection.INode.Type.FILE) {
+                long bytes = 0;
+                for (BlockProto block : inode.getFile().getBlocksList()) {
+                    bytes += block.getNumBytes();
+                }
+                out.writeLong(inode.getId());
+                out.writeInt(inode.getFile().getBlocksCount());
+                out.writeLong(bytes);
+            }
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // directories read by one decoding task
+    private static class DirBatch {
+        long[] ids = new long[1024];
+        byte[][] names = new byte[1024][];
+        int size = 0;
+
+        void add(long id, byte[] name) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                names = Arrays.copyOf(names, size * 2);
+            }
+            ids[size] = id;
+            names[size] = name;
+            size++;
+        }
+    }
+
+    // int array backed by a memory-mapped temp file, split into 1 GB segments
+    private static class MappedInts {
+        private static final int SEGMENT_INTS = 1 << 28;
+
+        private final File file;
+        private final RandomAccessFile raf;
+        private final ByteBuffer[] segments;
+
+        MappedInts(File file, long length) throws IOException {
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            raf.setLength(4 * Math.max(1, length));
+            int numSegments = (int) ((length + SEGMENT_INTS - 1) / SEGMENT_INTS);
+            segments = new ByteBuffer[Math.max(1, numSegments)];
+            for (int s = 0; s < segments.length; ++s) {
+                long start = 4L * s * SEGMENT_INTS;
+                long size = Math.min(4L * SEGMENT_INTS, raf.length() - start);
+                segments[s] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, start, size);
+            }
+        }
+
+        private MappedInts(MappedInts other) {
+            this.file = other.file;
+            this.raf = other.raf;
+            this.segments = new ByteBuffer[other.segments.length];
+            for (int s = 0; s < segments.length; ++s) {
+                segments[s] = other.segments[s].duplicate();
+            }
+        }
+
+        /* duplicate: view sharing the same memory, for use by one other thread */
+        MappedInts duplicate() {
+            return new MappedInts(this);
+        }
+
+        int get(long index) {
+            if (index < 0 || index >= 1L * segments.length * SEGMENT_INTS) {
+                return 0;
+            }
+            ByteBuffer segment = segments[(int) (index / SEGMENT_INTS)];
+            int offset = 4 * (int) (index % SEGMENT_INTS);
+            return offset + 4 <= segment.capacity() ? segment.getInt(offset) : 0;
+        }
+
+        void put(long index, int value) {
+            segments[(int) (index / SEGMENT_INTS)].putInt(4 * (int) (index % SEGMENT_INTS), value);
+        }
+
+        void close() throws IOException {
+            raf.close();
+            file.delete();
+        }
+    }
+}
@@ -9,319 +9,1001 @@
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.ParentNotDirectoryException;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.hdfs.DistributedFileSystem;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.QuotaExceededException;
+import org.apache.hadoop.hdfs.server.namenode.NotReplicatedYetException;
+import org.apache.hadoop.hdfs.server.namenode.SafeModeException;
+import org.apache.hadoop.ipc.RemoteException;
+import org.apache.hadoop.ipc.RetriableException;
+import org.apache.hadoop.ipc.StandbyException;
+import org.apache.hadoop.security.AccessControlException;
 
 public class HdfsClient implements Runnable {
+    private static final boolean _DEBUG = false;
+    private static final long POLL_WAIT_MS = 5;     // recheck interval when queued requests are not yet eligible
+    private static final RetryBudget DEFAULT_RETRY_BUDGET = new RetryBudget();  // shared by every client in the JVM
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    // Flight Recorder events and per-thread allocation counts need jdk.jfr and the HotSpot
+    // ThreadMXBean (JDK 11, or 8u262+); HdfsOpEvent and HdfsWorkerEvent are only loaded if both exist
+    private static final boolean PROFILING = isProfilingSupported();
     private Queue<String> requestQ;
     private volatile boolean isStopped;
+    private volatile boolean isBusy = false;    // holding a polled request; set under the requestQ lock
+    private final boolean waitForRequests;  // block on an empty requestQ instead of terminating
+    private OpMetrics metrics = null;       // per-operation latencies, if being measured
+    private SmallFileCache contentCache = null; // shared small-file contents, if caching reads
+    private ShardTable shardTable = null;   // routes paths to NameNodes, if namespace is sharded
+    private RetryBudget retryBudget = DEFAULT_RETRY_BUDGET;
+    private AdmissionController admission = null;   // gates creates on NameNode pressure, if set
+    private ConcurrentHashMap<String, FileSystem> warmFileSystems = null;  // kept open across requests, if reusing
+    private Configuration warmConf = null;
+    private long numRequests = 0;           // requests this worker has processed
+    private long numFailures = 0;
+    private long allocatedBytes = -1;       // worker thread's allocation and CPU, set when it exits
+    private long cpuNanos = 0;
 
     public HdfsClient(final Queue<String> requestQ) {
+        this(requestQ, false);
+    }
+
+    public HdfsClient(final Queue<String> requestQ, final boolean waitForRequests) {
         this.requestQ = requestQ;
+        this.waitForRequests = waitForRequests;
         isStopped = false;
     }
 
     /* run: repeatedly grab a command-line job off the requestQ and process */
     public void run() {
-        try {  // TODO: catching IOException over whole function
-            while (!isStopped) {
-                String request = null;
-                synchronized (requestQ) {
-                    // CHANGED for MetadataSizeTest vs. others (while vs. if)
-                    if (requestQ.isEmpty()) {
+        long startAllocated = PROFILING ? HdfsOpEvent.allocatedBytes() : 0;
+        long startCpu = threadBean.getCurrentThreadCpuTime();
+        while (!isStopped) {
+            String request = null;
+            FairRequestQueue.Tenant tenant = null;
+            long waitNanos = 0;
+            synchronized (requestQ) {
+                if (requestQ.isEmpty()) {
+                    if (!waitForRequests) {
                         System.err.println("Terminating " + this);
                         isStopped = true;
                         continue;
-                        /*
-                        use this for MetadataSizeTest
-                        try {
-                            requestQ.wait();
-                        } catch (InterruptedException ex) {
-                            ex.printStackTrace();
-                        }
-                        */
                     }
-                    request = requestQ.poll();
+                    // producers notifyAll on offer, stopThread notifies on shutdown
+                    try {
+                        requestQ.wait();
+                    } catch (InterruptedException ex) {
+                        isStopped = true;
+                    }
+                    continue;
                 }
+                request = requestQ.poll();
                 if (request == null) {
+                    // a FairRequestQueue can hold requests whose tenants are rate limited or at their cap
+                    try {
+                        requestQ.wait(POLL_WAIT_MS);
+                    } catch (InterruptedException ex) {
+                        isStopped = true;
+                    }
                     continue;
-                } else if (request.charAt(0) == 'D' && request.charAt(1) == 'O') {
-                    // request is DONE so print that (for debugging/timing)
-                    System.err.println(request);
-                    continue;
                 }
-                String[] requestArgs = request.split(" ", 3);
+                if (requestQ instanceof FairRequestQueue) {
+                    tenant = ((FairRequestQueue) requestQ).current();
+                    waitNanos = ((FairRequestQueue) requestQ).currentWaitNanos();
+                }
+                isBusy = true;
+            }
+            if (request.charAt(0) == 'D' && request.charAt(1) == 'O') {
+                // request is DONE so print that (for debugging/timing)
+                System.err.println(request);
+            } else {
+                numRequests++;
+                if (!process(request, tenant == null ? null : tenant.getMetrics(), waitNanos)) {
+                    numFailures++;
+                }
+            }
+            if (tenant != null) {
+                ((FairRequestQueue) requestQ).complete();
+            }
+            isBusy = false;
+        }
 
-                if (requestArgs.length < 2) {
-                    return;
+        closeWarmFileSystems();
+        cpuNanos = threadBean.getCurrentThreadCpuTime() - startCpu;
+        if (PROFILING) {
+            allocatedBytes = HdfsOpEvent.allocatedBytes() - startAllocated;
+            HdfsWorkerEvent.emit(numRequests, numFailures, allocatedBytes, cpuNanos);
+        }
+    }
+
+    private static boolean isProfilingSupported() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return Class.forName("com.sun.management.ThreadMXBean").isInstance(threadBean);
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    // one request, retried while its failures are transient and the shared budget allows;
+    // a failure is counted and the worker moves on to the next request. Outcomes are recorded
+    // in metrics and, if given, the requesting tenant's tenantMetrics, whose latencies also
+    // include the waitNanos the request spent queued. Returns false on failure.
+    private boolean process(String request, OpMetrics tenantMetrics, long waitNanos) {
+        String[] requestArgs = request.split(" ", 3);
+        String op = requestArgs[0];
+        long startNanos = System.nanoTime();
+        retryBudget.onRequest();
+        if (shardTable != null) {
+            countShardOp(requestArgs);
+        }
+        HdfsOpEvent event = PROFILING ? HdfsOpEvent.start() : null;
+
+        for (int attempt = 1; ; ++attempt) {
+            Exception failure;
+            try {
+                // an add packed by admission control is not a create, so it is recorded apart
+                String done = execute(requestArgs, attempt > 1);
+                long nanos = System.nanoTime() - startNanos;
+                if (metrics != null) {
+                    metrics.record(done, nanos);
+                }
+                if (tenantMetrics != null) {
+                    tenantMetrics.record(done, waitNanos + nanos);
+                }
+                if (event != null) {
+                    event.finish(requestArgs, attempt, done.equals(op) ? "OK" : "PACKED");
                 }
+                return true;
+            } catch (IOException ex) {
+                failure = ex;
+            } catch (RuntimeException ex) {
+                failure = ex;
+            }
 
-                if (requestArgs[0].equals("add")) {
+            ErrorClass kind = classify(failure);
+            if (kind == ErrorClass.RETRIABLE && !isStopped && retryBudget.tryRetry(attempt)) {
+                if (metrics != null) {
+                    metrics.recordRetry(op);
+                }
+                if (tenantMetrics != null) {
+                    tenantMetrics.recordRetry(op);
+                }
+                DEBUG("Retrying " + request + " after " + failure);
+                try {
+                    Thread.sleep(RetryBudget.backoffMs(attempt));
+                    continue;
+                } catch (InterruptedException ex) {
+                    isStopped = true;
+                }
+            }
+            if (metrics != null) {
+                metrics.recordFailure(op, kind);
+            }
+            if (tenantMetrics != null) {
+                tenantMetrics.recordFailure(op, kind);
+            }
+            System.err.println(kind + " " + request + ": " + failure);
+            if (event != null) {
+                event.finish(requestArgs, attempt, kind.name());
+            }
+            return false;
+        }
+    }
 
-                    addFile(requestArgs[1], requestArgs[2]);
+    // charge the request once to the shard its path routes to, however many
+    // getFileSystem calls and retries it takes
+    private void countShardOp(String[] requestArgs) {
+        String op = requestArgs[0];
+        String path;
+        boolean isDir;
+        if (op.equals("add") || op.equals("copyfromlocal")) {
+            if (requestArgs.length < 3) {
+                return;
+            }
+            path = requestArgs[2].split(" ", 2)[0];
+            isDir = path.endsWith("/");
+        } else {
+            if (requestArgs.length < 2) {
+                return;     // gethostnames goes to the default NameNode
+            }
+            path = requestArgs[1];
+            isDir = op.equals("mkdir") || op.equals("liststatus") || path.endsWith("/");
+        }
+        shardTable.count(path, isDir);
+    }
 
-                } else if (requestArgs[0].equals("read")) {
+    // this thread's HDFS read and write operations so far, one per RPC issued
+    static long threadHdfsOps() {
+        long ops = 0;
+        for (FileSystem.Statistics statistics : FileSystem.getAllStatistics()) {
+            if (statistics.getScheme().equals("hdfs")) {
+                FileSystem.Statistics.StatisticsData data = statistics.getThreadStatistics();
+                ops += data.getReadOps() + data.getLargeReadOps() + data.getWriteOps();
+            }
+        }
+        return ops;
+    }
+
+    // carry out one request; returns its op, or "pack" if an add was packed into a container.
+    // retried means an earlier attempt failed after it may already have reached the NameNode
+    private String execute(String[] requestArgs, boolean retried) throws IOException {
+        String op = requestArgs[0];
+        if (op.equals("add")) {
+
+            String[] destArgs = arg(requestArgs, 2).split(" ", 2);
+            if (admission != null && !admission.admit(AdmissionController.isPackable(arg(requestArgs, 1)))) {
+                admission.divert(arg(requestArgs, 1), destArgs[0]);
+                return "pack";
+            }
+            addFile(arg(requestArgs, 1), destArgs[0],
+            WriteOptions.parse(destArgs.length > 1 ? destArgs[1] : null), retried);
 
-                    readFile(requestArgs[1]);
+        } else if (op.equals("read")) {
 
-                } else if (requestArgs[0].equals("delete")) {
+            readFile(arg(requestArgs, 1), WriteOptions.parse(requestArgs.length > 2 ? requestArgs[2] : null));
 
-                    deleteFile(requestArgs[1]);
+        } else if (op.equals("delete")) {
 
-                } else if (requestArgs[0].equals("mkdir")) {
+            deleteFile(arg(requestArgs, 1));
 
-                    mkdir(requestArgs[1]);
+        } else if (op.equals("mkdir")) {
 
-                } else if (requestArgs[0].equals("copyfromlocal")) {
+            if (admission != null) {
+                admission.admit(false);
+            }
+            mkdir(arg(requestArgs, 1), retried);
 
-                    copyFromLocal(requestArgs[1], requestArgs[2]);
+        } else if (op.equals("copyfromlocal")) {
 
-                } else if (requestArgs[0].equals("rename")) {
+            String[] destArgs = arg(requestArgs, 2).split(" ", 2);
+            if (admission != null) {
+                admission.admit(false);
+            }
+            copyFromLocal(arg(requestArgs, 1), destArgs[0],
+            WriteOptions.parse(destArgs.length > 1 ? destArgs[1] : null));
 
-                    renameFile(requestArgs[1], requestArgs[2]);
+        } else if (op.equals("rename")) {
 
-                } else if (requestArgs[0].equals("copytolocal")) {
+            renameFile(arg(requestArgs, 1), arg(requestArgs, 2), retried);
 
-                    copyToLocal(requestArgs[1], requestArgs[2]);
+        } else if (op.equals("copytolocal")) {
 
-                } else if (requestArgs[0].equals("modificationtime")) {
+            String[] destArgs = arg(requestArgs, 2).split(" ", 2);
+            copyToLocal(arg(requestArgs, 1), destArgs[0],
+            WriteOptions.parse(destArgs.length > 1 ? destArgs[1] : null));
 
-                    getModificationTime(requestArgs[1]);
+        } else if (op.equals("modificationtime")) {
 
-                } else if (requestArgs[0].equals("getblocklocations")) {
+            getModificationTime(arg(requestArgs, 1));
 
-                    getBlockLocations(requestArgs[1]);
+        } else if (op.equals("getblocklocations")) {
 
-                } else if (requestArgs[0].equals("gethostnames")) {
+            getBlockLocations(arg(requestArgs, 1));
 
-                    getHostnames();
+        } else if (op.equals("gethostnames")) {
 
-                } else {
-                    printUsage();
-                    System.exit(1);
-                }
+            getHostnames();
+
+        } else if (op.equals("stat")) {
+
+            stat(arg(requestArgs, 1));
+
+        } else if (op.equals("liststatus")) {
+
+            listStatus(arg(requestArgs, 1));
+
+        } else if (op.equals("settimes")) {
+
+            setTimes(arg(requestArgs, 1));
+
+        } else {
+            printUsage();
+            throw new IllegalArgumentException("Unknown request " + op);
+        }
+        return op;
+    }
+
+    private static String arg(String[] requestArgs, int i) {
+        if (i >= requestArgs.length) {
+            throw new IllegalArgumentException("Missing argument " + i + " for " + requestArgs[0]);
+        }
+        return requestArgs[i];
+    }
+
+    /* ErrorClass: how a failed request is treated */
+    public enum ErrorClass {
+        RETRIABLE,  // transient: connection trouble, timeouts, safe mode, standby, server asked for a retry
+        REFUSED,    // the NameNode turned the request down: quota, limits, out of memory, missing or existing path
+                    // (or admission control did, before it got there)
+        FATAL       // anything else, including malformed requests
+    }
+
+    /* classify: sort a request failure, unwrapping exceptions the NameNode raised */
+    public static ErrorClass classify(Throwable ex) {
+        if (ex instanceof RemoteException) {
+            RemoteException remote = (RemoteException) ex;
+            if (remote.getClassName().equals(OutOfMemoryError.class.getName())) {
+                return ErrorClass.REFUSED;
             }
-        } catch (IOException ex) {
-            ex.printStackTrace();
+            ex = remote.unwrapRemoteException();
+        }
+        if (ex instanceof RetriableException || ex instanceof StandbyException ||
+        ex instanceof SafeModeException || ex instanceof NotReplicatedYetException ||
+        ex instanceof ConnectException || ex instanceof SocketTimeoutException ||
+        ex instanceof EOFException) {
+            return ErrorClass.RETRIABLE;
+        }
+        if (ex instanceof QuotaExceededException || ex instanceof AccessControlException ||
+        ex instanceof FileAlreadyExistsException || ex instanceof FileNotFoundException ||
+        ex instanceof ParentNotDirectoryException || ex instanceof AdmissionController.RejectedException) {
+            return ErrorClass.REFUSED;
+        }
+        return ErrorClass.FATAL;
+    }
+
+    /* setMetrics: record the latency of every completed request into metrics */
+    public void setMetrics(final OpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /* setContentCache: serve repeated small-file reads from a shared cache */
+    public void setContentCache(final SmallFileCache contentCache) {
+        this.contentCache = contentCache;
+    }
+
+    /* setShardTable: spread paths across the NameNodes in shardTable */
+    public void setShardTable(final ShardTable shardTable) {
+        this.shardTable = shardTable;
+    }
+
+    /* setRetryBudget: draw retries of transient failures from retryBudget instead of the shared default */
+    public void setRetryBudget(final RetryBudget retryBudget) {
+        this.retryBudget = retryBudget;
+    }
+
+    /* setAdmissionController: hold, slow or divert creates as the NameNode fills up */
+    public void setAdmissionController(final AdmissionController admission) {
+        this.admission = admission;
+    }
+
+    /*
+     * setReuseFileSystems: keep one FileSystem per NameNode open across
+     * requests instead of parsing a Configuration and connecting per request.
+     * Call before the client thread starts.
+     */
+    public void setReuseFileSystems(final boolean reuse) {
+        if (reuse && warmFileSystems == null) {
+            warmConf = newConfiguration();
+            warmFileSystems = new ConcurrentHashMap<String, FileSystem>();
+        } else if (!reuse) {
+            closeWarmFileSystems();
+            warmFileSystems = null;
         }
     }
 
+    /* getNumRequests: requests processed so far, successful or not */
+    public long getNumRequests() {
+        return numRequests;
+    }
+
+    public long getNumFailures() {
+        return numFailures;
+    }
+
+    /* getAllocatedBytes: heap allocated by the worker thread over its run, once it has exited; -1 if unknown */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /* getCpuNanos: CPU time of the worker thread over its run, once it has exited */
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
     /* stopThread: gracefully shutdown the client thread */
     public void stopThread() {
         isStopped = true;
+        synchronized (requestQ) {
+            requestQ.notifyAll();
+        }
+    }
+
+    /* awaitDrained: block until requestQ is empty (clients may still be finishing their last request) */
+    public static void awaitDrained(final Queue<String> requestQ) {
+        while (true) {
+            synchronized (requestQ) {
+                if (requestQ.isEmpty()) {
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    /* awaitIdle: block until requestQ is empty and none of its clients is still processing a request */
+    public static void awaitIdle(final Queue<String> requestQ, final HdfsClient[] clients) {
+        while (true) {
+            synchronized (requestQ) {
+                boolean idle = requestQ.isEmpty();
+                for (int j = 0; idle && j < clients.length; ++j) {
+                    idle = !clients[j].isBusy;
+                }
+                if (idle) {
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
     }
 
     public static void printUsage(){
-        System.out.println("Usage: hdfsclient add" + "<local_path> <hdfs_path>");
-        System.out.println("Usage: hdfsclient read" + "<hdfs_path>");
+        System.out.println("Usage: hdfsclient add" + "<local_path> <hdfs_path> [block=N] [repl=N] [buffer=N] " +
+        "[checksum=CRC32C|CRC32|NULL] [bpc=N]");
+        System.out.println("Usage: hdfsclient read" + "<hdfs_path> [buffer=N]");
         System.out.println("Usage: hdfsclient delete" + "<hdfs_path>");
         System.out.println("Usage: hdfsclient mkdir" + "<hdfs_path>");
-        System.out.println("Usage: hdfsclient copyfromlocal" + "<local_path> <hdfs_path>");
-        System.out.println("Usage: hdfsclient copytolocal" + " <hdfs_path> <local_path> ");
+        System.out.println("Usage: hdfsclient copyfromlocal" + "<local_path> <hdfs_path> [streams=N] [block=N] ...");
+        System.out.println("Usage: hdfsclient copytolocal" + " <hdfs_path> <local_path> [streams=N]");
         System.out.println("Usage: hdfsclient modificationtime" + "<hdfs_path>");
         System.out.println("Usage: hdfsclient getblocklocations" + "<hdfs_path>");
         System.out.println("Usage: hdfsclient gethostnames");
+        System.out.println("Usage: hdfsclient stat" + "<hdfs_path>");
+        System.out.println("Usage: hdfsclient liststatus" + "<hdfs_path>");
+        System.out.println("Usage: hdfsclient settimes" + "<hdfs_path>");
     }
 
-    public boolean ifExists (Path source) throws IOException {
+    /* newConfiguration: client configuration read from the local Hadoop install */
+    public static Configuration newConfiguration() {
+        Configuration conf = new Configuration();
+        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/core-site.xml"));
+        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/hdfs-site.xml"));
+        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/mapred-site.xml"));
+        return conf;
+    }
 
-        Configuration config = new Configuration();
-        config.addResource(new Path("/usr/local/hadoop/etc/hadoop/core-site.xml"));
-        config.addResource(new Path("/usr/local/hadoop/etc/hadoop/hdfs-site.xml"));
-        config.addResource(new Path("/usr/local/hadoop/etc/hadoop/mapred-site.xml"));
+    /*
+     * getFileSystem: new FileSystem for the NameNode that owns path. Files are
+     * owned by their parent directory's shard and directories by their own,
+     * so a directory and its children always live on the same NameNode.
+     */
+    private FileSystem getFileSystem(String path, boolean isDir) throws IOException {
+        return getFileSystem(shardTable == null || path == null ? null : shardTable.route(path, isDir));
+    }
+
+    // new FileSystem for shard, or for the default NameNode if shard is null
+    private FileSystem getFileSystem(ShardTable.Shard shard) throws IOException {
+        if (warmFileSystems == null) {
+            Configuration conf = newConfiguration();
+            return shard == null ? FileSystem.newInstance(conf) : FileSystem.newInstance(shard.getUri(), conf);
+        }
 
-        FileSystem hdfs = FileSystem.newInstance(config);
-        boolean isExists = hdfs.exists(source);
-        return isExists;
+        // one open FileSystem per NameNode for the life of this client, shared by its helper threads
+        String key = shard == null ? "" : shard.getUri().toString();
+        FileSystem fileSystem = warmFileSystems.get(key);
+        if (fileSystem == null) {
+            FileSystem created = shard == null ? FileSystem.newInstance(warmConf) :
+            FileSystem.newInstance(shard.getUri(), warmConf);
+            fileSystem = warmFileSystems.putIfAbsent(key, created);
+            if (fileSystem == null) {
+                fileSystem = created;
+            } else {
+                created.close();
+            }
+        }
+        return fileSystem;
     }
 
-    public void getHostnames() throws IOException{
-        Configuration config = new Configuration();
-        config.addResource(new Path("/usr/local/hadoop/etc/hadoop/core-site.xml"));
-        config.addResource(new Path("/usr/local/hadoop/etc/hadoop/hdfs-site.xml"));
-        config.addResource(new Path("/usr/local/hadoop/etc/hadoop/mapred-site.xml"));
+    // whether path names a directory: a trailing '/' says so; without one it is taken for a
+    // file unless, when sharded, its parent's shard has no such file
+    private boolean routesAsDir(String path) throws IOException {
+        if (path.endsWith("/")) {
+            return true;
+        }
+        if (shardTable == null) {
+            return false;
+        }
+        FileSystem fileSystem = getFileSystem(path, false);
+        try {
+            return !fileSystem.getFileStatus(new Path(path)).isFile();
+        } catch (FileNotFoundException ex) {
+            return true;
+        } finally {
+            release(fileSystem);
+        }
+    }
 
-        FileSystem fs = FileSystem.newInstance(config);
-        DistributedFileSystem hdfs = (DistributedFileSystem) fs;
-        DatanodeInfo[] dataNodeStats = hdfs.getDataNodeStats();
+    // done with a FileSystem from getFileSystem: closed unless it is being kept warm
+    private void release(FileSystem fileSystem) throws IOException {
+        if (warmFileSystems == null) {
+            fileSystem.close();
+        }
+    }
 
-        String[] names = new String[dataNodeStats.length];
-        for (int i = 0; i < dataNodeStats.length; i++) {
-            names[i] = dataNodeStats[i].getHostName();
-            System.out.println((dataNodeStats[i].getHostName()));
+    // close the FileSystems kept warm, when the worker exits
+    private void closeWarmFileSystems() {
+        if (warmFileSystems == null) {
+            return;
         }
+        for (FileSystem fileSystem : warmFileSystems.values()) {
+            try {
+                fileSystem.close();
+            } catch (IOException ex) {
+                System.err.println("Could not close " + fileSystem.getUri() + ": " + ex);
+            }
+        }
+        warmFileSystems.clear();
     }
 
-    public void getBlockLocations(String source) throws IOException{
+    public boolean ifExists (Path source) throws IOException {
 
-        Configuration conf = new Configuration();
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/core-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/hdfs-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/mapred-site.xml"));
+        FileSystem hdfs = getFileSystem(source.toString(), false);
+        try {
+            return hdfs.exists(source);
+        } finally {
+            release(hdfs);
+        }
+    }
+
+    public void getHostnames() throws IOException{
+        FileSystem fs = getFileSystem(null, false);
+        try {
+            DistributedFileSystem hdfs = (DistributedFileSystem) fs;
+            DatanodeInfo[] dataNodeStats = hdfs.getDataNodeStats();
+
+            String[] names = new String[dataNodeStats.length];
+            for (int i = 0; i < dataNodeStats.length; i++) {
+                names[i] = dataNodeStats[i].getHostName();
+                System.out.println((dataNodeStats[i].getHostName()));
+            }
+        } finally {
+            release(fs);
+        }
+    }
 
-        FileSystem fileSystem = FileSystem.newInstance(conf);
+    public void getBlockLocations(String source) throws IOException{
+
+        FileSystem fileSystem = getFileSystem(source, false);
         Path srcPath = new Path(source);
 
-        // Check if the file already exists
-        if (!(ifExists(srcPath))) {
-            System.out.println("No such destination " + srcPath);
-            return;
+        try {
+            // Check if the file already exists
+            if (!(fileSystem.exists(srcPath))) {
+                throw new FileNotFoundException("No such destination " + srcPath);
+            }
+            // Get the filename out of the file path
+            String filename = source.substring(source.lastIndexOf('/') + 1, source.length());
+
+            FileStatus fileStatus = fileSystem.getFileStatus(srcPath);
+
+            BlockLocation[] blkLocations = fileSystem.getFileBlockLocations(fileStatus, 0, fileStatus.getLen());
+            int blkCount = blkLocations.length;
+        } finally {
+            release(fileSystem);
         }
-        // Get the filename out of the file path
-        String filename = source.substring(source.lastIndexOf('/') + 1, source.length());
+    }
 
-        FileStatus fileStatus = fileSystem.getFileStatus(srcPath);
+    /* LocatedBatch: result of resolveBlockLocations */
+    public static class LocatedBatch {
+        public final Map<String, BlockLocation[]> locations;    // resolved file path -> its blocks
+        public final long numListings;  // listLocatedStatus RPCs issued, one per page
+        public final long numScanned;   // directory entries returned, wanted or not
 
-        BlockLocation[] blkLocations = fileSystem.getFileBlockLocations(fileStatus, 0, fileStatus.getLen());
-        int blkCount = blkLocations.length;
+        LocatedBatch(Map<String, BlockLocation[]> locations, long numListings, long numScanned) {
+            this.locations = locations;
+            this.numListings = numListings;
+            this.numScanned = numScanned;
+        }
     }
 
-    public void getModificationTime(String source) throws IOException{
+    /*
+     * resolveBlockLocations: block locations of many files without a per-file
+     * exists/getFileStatus/getFileBlockLocations chain. Files are grouped by
+     * parent directory and each directory is read once with the paged
+     * listLocatedStatus call, with directories fanned out over numThreads.
+     * Files that no longer exist are simply absent from the result.
+     */
+    public LocatedBatch resolveBlockLocations(Collection<String> files, int numThreads) throws IOException {
+        final Map<String, Set<String>> byDir = new HashMap<String, Set<String>>();
+        for (String file : files) {
+            int slash = file.lastIndexOf('/');
+            String dir = slash <= 0 ? "/" : file.substring(0, slash);
+            Set<String> names = byDir.get(dir);
+            if (names == null) {
+                names = new HashSet<String>();
+                byDir.put(dir, names);
+            }
+            names.add(file.substring(slash + 1));
+        }
 
-        Configuration conf = new Configuration();
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/core-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/hdfs-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/mapred-site.xml"));
+        final Map<String, BlockLocation[]> locations = new ConcurrentHashMap<String, BlockLocation[]>();
+        final AtomicLong numScanned = new AtomicLong();
+        long numListings = 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, byDir.size())));
+        List<Future<Long>> listings = new ArrayList<Future<Long>>();
+        for (final Map.Entry<String, Set<String>> entry : byDir.entrySet()) {
+            listings.add(pool.submit(new Callable<Long>() {
+                public Long call() throws IOException {
+                    String dir = entry.getKey();
+                    Set<String> wanted = entry.getValue();
+                    long scanned = 0;
+                    long opsBefore = threadHdfsOps();
+                    FileSystem fileSystem = getFileSystem(dir, true);
+                    try {
+                        RemoteIterator<LocatedFileStatus> statuses = fileSystem.listLocatedStatus(new Path(dir));
+                        while (statuses.hasNext()) {
+                            LocatedFileStatus status = statuses.next();
+                            scanned++;
+                            String name = status.getPath().getName();
+                            if (wanted.contains(name)) {
+                                locations.put(dir.equals("/") ? "/" + name : dir + "/" + name,
+                                status.getBlockLocations());
+                            }
+                        }
+                    } catch (FileNotFoundException ex) {
+                        System.out.println("No such destination " + dir);
+                    } finally {
+                        release(fileSystem);
+                    }
+                    numScanned.addAndGet(scanned);
+                    // one read op per page fetched; the NameNode cuts located pages short
+                    // of dfs.ls.limit once their block locations fill its budget
+                    return threadHdfsOps() - opsBefore;
+                }
+            }));
+        }
+        pool.shutdown();
+
+        try {
+            for (Future<Long> listing : listings) {
+                numListings += listing.get();
+            }
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted resolving block locations", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Failed resolving block locations", ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return new LocatedBatch(locations, numListings, numScanned.get());
+    }
 
-        FileSystem fileSystem = FileSystem.newInstance(conf);
+    public void getModificationTime(String source) throws IOException{
+
+        FileSystem fileSystem = getFileSystem(source, false);
         Path srcPath = new Path(source);
 
-        // Check if the file already exists
-        if (!(fileSystem.exists(srcPath))) {
-            System.out.println("No such destination " + srcPath);
-            return;
+        try {
+            // Check if the file already exists
+            if (!(fileSystem.exists(srcPath))) {
+                throw new FileNotFoundException("No such destination " + srcPath);
+            }
+            // Get the filename out of the file path
+            String filename = source.substring(source.lastIndexOf('/') + 1, source.length());
+
+            FileStatus fileStatus = fileSystem.getFileStatus(srcPath);
+            long modificationTime = fileStatus.getModificationTime();
+
+            System.out.format("File %s; Modification time : %d %n",filename,modificationTime);
+        } finally {
+            release(fileSystem);
         }
-        // Get the filename out of the file path
-        String filename = source.substring(source.lastIndexOf('/') + 1, source.length());
 
-        FileStatus fileStatus = fileSystem.getFileStatus(srcPath);
-        long modificationTime = fileStatus.getModificationTime();
+    }
 
-        System.out.format("File %s; Modification time : %0.2f %n",filename,modificationTime);
+    /* stat: a single getFileStatus RPC, without the exists() check */
+    public void stat(String source) throws IOException {
+        FileSystem fileSystem = getFileSystem(source, false);
+        try {
+            fileSystem.getFileStatus(new Path(source));
+        } finally {
+            release(fileSystem);
+        }
+    }
 
+    /* listStatus: iterate a directory listing, which the NameNode returns in pages of dfs.ls.limit */
+    public void listStatus(String dir) throws IOException {
+        FileSystem fileSystem = getFileSystem(dir, true);
+        try {
+            RemoteIterator<FileStatus> entries = fileSystem.listStatusIterator(new Path(dir));
+            long numEntries = 0;
+            while (entries.hasNext()) {
+                entries.next();
+                numEntries++;
+            }
+            DEBUG("Listed " + numEntries + " entries of " + dir);
+        } finally {
+            release(fileSystem);
+        }
+    }
+
+    /* setTimes: set the modification time to now, leaving the access time unchanged */
+    public void setTimes(String source) throws IOException {
+        FileSystem fileSystem = getFileSystem(source, false);
+        try {
+            fileSystem.setTimes(new Path(source), System.currentTimeMillis(), -1);
+        } finally {
+            release(fileSystem);
+        }
     }
 
     public void copyFromLocal (String source, String dest) throws IOException {
+        copyFromLocal(source, dest, new WriteOptions());
+    }
 
-        Configuration conf = new Configuration();
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/core-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/hdfs-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/mapred-site.xml"));
+    /* copyFromLocal: with streams > 1 in options, staged over that many local readers by ParallelTransfer */
+    public void copyFromLocal (String source, String dest, WriteOptions options) throws IOException {
 
-        FileSystem fileSystem = FileSystem.newInstance(conf);
+        FileSystem fileSystem = getFileSystem(dest, routesAsDir(dest));
         Path srcPath = new Path(source);
 
         Path dstPath = new Path(dest);
-        // Check if the file already exists
-        if (!(fileSystem.exists(dstPath))) {
-            System.out.println("No such destination " + dstPath);
-            return;
-        }
 
         // Get the filename out of the file path
         String filename = source.substring(source.lastIndexOf('/') + 1, source.length());
 
         try{
-            fileSystem.copyFromLocalFile(srcPath, dstPath);
+            // Check if the file already exists
+            if (!(fileSystem.exists(dstPath))) {
+                throw new FileNotFoundException("No such destination " + dstPath);
+            }
+            if (options.getStreams() > 1) {
+                Path target = fileSystem.isDirectory(dstPath) ? new Path(dstPath, filename) : dstPath;
+                ParallelTransfer.upload(fileSystem, new File(source), target, options.getStreams(), options)
+                .print(System.err, "transfer,copyfromlocal,");
+            } else {
+                fileSystem.copyFromLocalFile(srcPath, dstPath);
+            }
             System.out.println("File " + filename + "copied to " + dest);
-        }catch(Exception e){
-            System.err.println("Exception caught! :" + e);
-            System.exit(1);
         }finally{
-            fileSystem.close();
+            release(fileSystem);
         }
     }
 
     public void copyToLocal (String source, String dest) throws IOException {
+        copyToLocal(source, dest, new WriteOptions());
+    }
 
-        Configuration conf = new Configuration();
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/core-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/hdfs-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/mapred-site.xml"));
+    /* copyToLocal: with streams > 1 in options, block ranges are read concurrently by ParallelTransfer */
+    public void copyToLocal (String source, String dest, WriteOptions options) throws IOException {
 
-        FileSystem fileSystem = FileSystem.newInstance(conf);
+        FileSystem fileSystem = getFileSystem(source, false);
         Path srcPath = new Path(source);
 
         Path dstPath = new Path(dest);
-        // Check if the file already exists
-        if (!(fileSystem.exists(srcPath))) {
-            System.out.println("No such destination " + srcPath);
-            return;
-        }
 
         // Get the filename out of the file path
         String filename = source.substring(source.lastIndexOf('/') + 1, source.length());
 
         try{
-            fileSystem.copyToLocalFile(srcPath, dstPath);
+            // Check if the file already exists
+            if (!(fileSystem.exists(srcPath))) {
+                throw new FileNotFoundException("No such destination " + srcPath);
+            }
+            if (options.getStreams() > 1) {
+                File target = new File(dest);
+                if (target.isDirectory()) {
+                    target = new File(target, filename);
+                }
+                ParallelTransfer.download(fileSystem, srcPath, target, options.getStreams())
+                .print(System.err, "transfer,copytolocal,");
+            } else {
+                fileSystem.copyToLocalFile(srcPath, dstPath);
+            }
             System.out.println("File " + filename + "copied to " + dest);
-        }catch(Exception e){
-            System.err.println("Exception caught! :" + e);
-            System.exit(1);
         }finally{
-            fileSystem.close();
+            release(fileSystem);
         }
     }
 
     public void renameFile (String fromthis, String tothis) throws IOException{
-        Configuration conf = new Configuration();
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/core-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/hdfs-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/mapred-site.xml"));
+        renameFile(fromthis, tothis, false);
+    }
 
-        FileSystem fileSystem = FileSystem.newInstance(conf);
+    /*
+     * renameFile: a trailing '/' on fromthis marks a directory, which is routed
+     * by its own shard. If retried, an earlier attempt may have renamed it and
+     * lost the reply, so a missing source or existing destination counts as done.
+     */
+    public void renameFile (String fromthis, String tothis, boolean retried) throws IOException{
+        boolean isDir = routesAsDir(fromthis);
+        if (shardTable != null && isDir) {
+            renameShardedDir(fromthis, tothis, retried);
+            return;
+        }
+        FileSystem fileSystem = getFileSystem(fromthis, isDir);
         Path fromPath = new Path(fromthis);
         Path toPath = new Path(tothis);
+        FileSystem dstFileSystem = getFileSystem(tothis, isDir);
 
-        if (!(fileSystem.exists(fromPath))) {
-            System.out.println("No such destination " + fromPath);
-            return;
-        }
+        try{
+            if (!(fileSystem.exists(fromPath))) {
+                if (retried) {
+                    return;
+                }
+                throw new FileNotFoundException("No such destination " + fromPath);
+            }
 
-        if (fileSystem.exists(toPath)) {
-            System.out.println("Already exists! " + toPath);
-            return;
-        }
+            if (dstFileSystem.exists(toPath)) {
+                if (retried) {
+                    return;
+                }
+                throw new FileAlreadyExistsException("Already exists! " + toPath);
+            }
 
-        try{
-            boolean isRenamed = fileSystem.rename(fromPath, toPath);
+            boolean isRenamed;
+            if (shardTable == null || shardTable.sameShard(fromthis, tothis, false)) {
+                isRenamed = fileSystem.rename(fromPath, toPath);
+            } else {
+                // crossing NameNodes: copy then delete, which is not atomic
+                isRenamed = FileUtil.copy(fileSystem, fromPath, dstFileSystem, toPath,
+                true, fileSystem.getConf());
+            }
+            if (contentCache != null) {
+                contentCache.invalidate(fromthis);
+            }
             if(isRenamed){
                 System.out.println("Renamed from " + fromthis + "to " + tothis);
             }
-        }catch(Exception e){
-            System.out.println("Exception :" + e);
-            System.exit(1);
         }finally{
-            fileSystem.close();
+            release(fileSystem);
+            release(dstFileSystem);
+        }
+
+    }
+
+    /*
+     * renameShardedDir: parts of a directory tree live on every shard one of
+     * its directories hashes to, and under the new name they may hash
+     * elsewhere. So each shard's part is walked, the files of every directory
+     * it owns moved to the shard owning that directory's new name, and what
+     * is left of the old tree removed from every shard.
+     */
+    private void renameShardedDir(String fromthis, String tothis, boolean retried) throws IOException {
+        String from = fromthis.endsWith("/") ? fromthis : fromthis + "/";
+        String to = tothis.endsWith("/") ? tothis : tothis + "/";
+        if (to.startsWith(from)) {
+            throw new IOException("Cannot rename " + fromthis + " into itself");
+        }
+
+        List<ShardTable.Shard> holders = new ArrayList<ShardTable.Shard>();
+        boolean toExists = false;
+        for (ShardTable.Shard shard : shardTable.getShards()) {
+            FileSystem fileSystem = getFileSystem(shard);
+            try {
+                if (fileSystem.exists(new Path(from))) {
+                    holders.add(shard);
+                }
+                toExists |= fileSystem.exists(new Path(to));
+            } finally {
+                release(fileSystem);
+            }
+        }
+        // a retry picks up whatever an earlier attempt left unmoved
+        if (holders.isEmpty()) {
+            if (retried) {
+                return;
+            }
+            throw new FileNotFoundException("No such destination " + fromthis);
+        }
+        if (toExists && !retried) {
+            throw new FileAlreadyExistsException("Already exists! " + tothis);
         }
 
+        for (ShardTable.Shard shard : holders) {
+            FileSystem fileSystem = getFileSystem(shard);
+            try {
+                moveShardedDir(fileSystem, shard, from, from, to);
+                fileSystem.delete(new Path(from), true);
+            } finally {
+                release(fileSystem);
+            }
+        }
+        if (contentCache != null) {
+            contentCache.invalidate(fromthis);
+        }
+        System.out.println("Renamed from " + fromthis + "to " + tothis);
+    }
+
+    // move dir, found on shard through fileSystem, and its subdirectories from under from to under to
+    private void moveShardedDir(FileSystem fileSystem, ShardTable.Shard shard, String dir, String from,
+    String to) throws IOException {
+        FileStatus[] children = fileSystem.listStatus(new Path(dir));
+        String newDir = to + dir.substring(from.length());
+
+        // only the shard owning dir holds its files; on the others it is just an ancestor
+        if (shardTable.route(dir, true) == shard) {
+            ShardTable.Shard target = shardTable.route(newDir, true);
+            FileSystem dstFileSystem = getFileSystem(target);
+            try {
+                dstFileSystem.mkdirs(new Path(newDir));
+                for (FileStatus child : children) {
+                    if (child.isDirectory()) {
+                        continue;
+                    }
+                    Path dstPath = new Path(newDir, child.getPath().getName());
+                    if (target == shard) {
+                        fileSystem.rename(child.getPath(), dstPath);
+                    } else {
+                        FileUtil.copy(fileSystem, child.getPath(), dstFileSystem, dstPath, true,
+                        fileSystem.getConf());
+                    }
+                }
+            } finally {
+                release(dstFileSystem);
+            }
+        }
+        for (FileStatus child : children) {
+            if (child.isDirectory()) {
+                moveShardedDir(fileSystem, shard, dir + child.getPath().getName() + "/", from, to);
+            }
+        }
     }
 
     public void addFile(String source, String dest) throws IOException {
+        addFile(source, dest, new WriteOptions());
+    }
 
-        // Conf object will read the HDFS configuration parameters
-        Configuration conf = new Configuration();
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/core-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/hdfs-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/mapred-site.xml"));
+    public void addFile(String source, String dest, WriteOptions options) throws IOException {
+        addFile(source, dest, options, false);
+    }
 
-        FileSystem fileSystem = FileSystem.newInstance(conf);
+    /*
+     * addFile: copy a local file to dest, created with the block size,
+     * replication, etc. in options. If retried, whatever an earlier attempt
+     * left at dest (created, but the write or close failed) is replaced.
+     */
+    public void addFile(String source, String dest, WriteOptions options, boolean retried) throws IOException {
 
         // CHANGED: Get the filename out of the file path
         if (dest.charAt(dest.length() - 1) == '/') {
@@ -329,98 +1011,190 @@ public class HdfsClient implements Runnable {
             dest += filename;
         }
 
-        // Check if the file already exists
-        Path path = new Path(dest);
-        if (fileSystem.exists(path)) {
-            System.err.println("File " + dest + " already exists");
-            return;
-        }
+        FileSystem fileSystem = getFileSystem(dest, false);
 
-        // Create a new file and write data to it.
-        FSDataOutputStream out = fileSystem.create(path);
-        InputStream in = new BufferedInputStream(new FileInputStream(
-        new File(source)));
+        try {
+            // Check if the file already exists
+            Path path = new Path(dest);
+            if (fileSystem.exists(path)) {
+                if (!retried) {
+                    throw new FileAlreadyExistsException("File " + dest + " already exists");
+                }
+                fileSystem.delete(path, false);
+            }
 
-        byte[] b = new byte[1024];
-        int numBytes = 0;
-        while ((numBytes = in.read(b)) > 0) {
-            out.write(b, 0, numBytes);
-        }
+            // Create a new file and write data to it.
+            FSDataOutputStream out = options.create(fileSystem, path);
+            InputStream in = new BufferedInputStream(new FileInputStream(
+            new File(source)));
 
-        // Close all the file descripters
-        in.close();
-        out.close();
-        fileSystem.close();
+            try {
+                byte[] b = new byte[1024];
+                int numBytes = 0;
+                while ((numBytes = in.read(b)) > 0) {
+                    out.write(b, 0, numBytes);
+                }
+            } finally {
+                // Close all the file descripters
+                in.close();
+                out.close();
+            }
+        } finally {
+            release(fileSystem);
+        }
     }
 
     public void readFile(String file) throws IOException {
-        Configuration conf = new Configuration();
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/core-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/hdfs-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/mapred-site.xml"));
+        readFile(file, new WriteOptions());
+    }
 
-        FileSystem fileSystem = FileSystem.newInstance(conf);
+    /* readFile: copy file to the working directory, reading with the buffer size in options */
+    public void readFile(String file, WriteOptions options) throws IOException {
+        FileSystem fileSystem = getFileSystem(file, false);
 
         Path path = new Path(file);
-        if (!fileSystem.exists(path)) {
-            System.out.println("File " + file + " does not exist");
-            return;
+        try {
+            if (contentCache != null) {
+                readFileCached(fileSystem, path, file, options);
+                return;
+            }
+            if (!fileSystem.exists(path)) {
+                throw new FileNotFoundException("File " + file + " does not exist");
+            }
+
+            FSDataInputStream in = options.open(fileSystem, path);
+
+            String filename = file.substring(file.lastIndexOf('/') + 1,
+            file.length());
+
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(
+            new File(filename)));
+
+            try {
+                byte[] b = new byte[1024];
+                int numBytes = 0;
+                while ((numBytes = in.read(b)) > 0) {
+                    out.write(b, 0, numBytes);
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+        } finally {
+            release(fileSystem);
         }
+    }
 
-        FSDataInputStream in = fileSystem.open(path);
+    // readFile through contentCache: one getFileStatus validates the cached copy,
+    // so hits skip the DataNodes entirely. The caller closes fileSystem.
+    private void readFileCached(FileSystem fileSystem, Path path, String file, WriteOptions options)
+    throws IOException {
+        FileStatus fileStatus = fileSystem.getFileStatus(path);
 
         String filename = file.substring(file.lastIndexOf('/') + 1,
         file.length());
-
         OutputStream out = new BufferedOutputStream(new FileOutputStream(
         new File(filename)));
 
-        byte[] b = new byte[1024];
-        int numBytes = 0;
-        while ((numBytes = in.read(b)) > 0) {
-            out.write(b, 0, numBytes);
+        byte[] cached = contentCache.get(file, fileStatus.getModificationTime());
+        if (cached != null) {
+            out.write(cached);
+            out.close();
+            return;
         }
 
-        in.close();
-        out.close();
-        fileSystem.close();
+        boolean cacheable = fileStatus.getLen() <= SmallFileCache.MAX_ENTRY_BYTES;
+        ByteArrayOutputStream copy = cacheable ?
+        new ByteArrayOutputStream((int) fileStatus.getLen()) : null;
+
+        FSDataInputStream in = options.open(fileSystem, path);
+        try {
+            byte[] b = new byte[1024];
+            int numBytes = 0;
+            while ((numBytes = in.read(b)) > 0) {
+                out.write(b, 0, numBytes);
+                if (copy != null) {
+                    copy.write(b, 0, numBytes);
+                }
+            }
+            if (copy != null) {
+                contentCache.put(file, fileStatus.getModificationTime(), copy.toByteArray(), copy.size());
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
     }
 
+    /* deleteFile: a directory is deleted from every shard holding part of its tree */
     public void deleteFile(String file) throws IOException {
-        Configuration conf = new Configuration();
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/core-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/hdfs-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/mapred-site.xml"));
-
-        FileSystem fileSystem = FileSystem.newInstance(conf);
-
-        Path path = new Path(file);
-        if (!fileSystem.exists(path)) {
-            System.err.println("File " + file + " does not exists");
+        boolean isDir = routesAsDir(file);
+        if (shardTable != null && isDir) {
+            deleteShardedDir(file);
             return;
         }
+        FileSystem fileSystem = getFileSystem(file, isDir);
 
-        fileSystem.delete(new Path(file), true);
+        Path path = new Path(file);
+        try {
+            if (!fileSystem.exists(path)) {
+                throw new FileNotFoundException("File " + file + " does not exist");
+            }
 
-        fileSystem.close();
+            fileSystem.delete(new Path(file), true);
+            if (contentCache != null) {
+                contentCache.invalidate(file);
+            }
+        } finally {
+            release(fileSystem);
+        }
+    }
+
+    // delete dir from every shard it is found on
+    private void deleteShardedDir(String dir) throws IOException {
+        boolean found = false;
+        for (ShardTable.Shard shard : shardTable.getShards()) {
+            FileSystem fileSystem = getFileSystem(shard);
+            try {
+                found |= fileSystem.delete(new Path(dir), true);
+            } finally {
+                release(fileSystem);
+            }
+        }
+        if (!found) {
+            throw new FileNotFoundException("File " + dir + " does not exist");
+        }
+        if (contentCache != null) {
+            contentCache.invalidate(dir);
+        }
     }
 
     public void mkdir(String dir) throws IOException {
-        Configuration conf = new Configuration();
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/core-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/hdfs-site.xml"));
-        conf.addResource(new Path("/usr/local/hadoop/etc/hadoop/mapred-site.xml"));
+        mkdir(dir, false);
+    }
 
-        FileSystem fileSystem = FileSystem.newInstance(conf);
+    /* mkdir: if retried, an earlier attempt may have made dir and lost the reply, so an existing dir counts as done */
+    public void mkdir(String dir, boolean retried) throws IOException {
+        FileSystem fileSystem = getFileSystem(dir, true);
 
         Path path = new Path(dir);
-        if (fileSystem.exists(path)) {
-            System.out.println("Dir " + dir + " already exists!");
-            return;
-        }
+        try {
+            if (fileSystem.exists(path)) {
+                if (retried) {
+                    return;
+                }
+                throw new FileAlreadyExistsException("Dir " + dir + " already exists!");
+            }
 
-        fileSystem.mkdirs(path);
+            fileSystem.mkdirs(path);
+        } finally {
+            release(fileSystem);
+        }
+    }
 
-        fileSystem.close();
+    private static void DEBUG(String str) {
+        if (_DEBUG) {
+            System.err.println(str);
+        }
     }
 }
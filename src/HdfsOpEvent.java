@@ -0,0 +1,117 @@
+/**
+ * HdfsOpEvent.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Java Flight Recorder event for one HdfsClient request, including its
+ * retries. The event duration is the request latency; rpcs and bytes come
+ * from the worker thread's FileSystem statistics and allocated/cpuTime
+ * from ThreadMXBean, all as deltas over the request. HdfsClient only calls
+ * in here once it has checked that jdk.jfr and the HotSpot ThreadMXBean
+ * exist, so the client itself runs on JVMs without them.
+ */
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.hadoop.fs.FileSystem;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name(HdfsOpEvent.NAME)
+@Label("HDFS Operation")
+@Category("HDFS")
+@Description("One request processed by an HdfsClient worker")
+@StackTrace(false)
+public class HdfsOpEvent extends Event {
+    public static final String NAME = "hdfs.Op";
+
+    @Label("Operation")
+    String op;
+
+    @Label("Path")
+    String path;
+
+    @Label("Outcome")
+    @Description("OK, or the ErrorClass of the final failure")
+    String outcome;
+
+    @Label("Attempts")
+    int attempts;
+
+    @Label("NameNode Operations")
+    @Description("Read, large read and write operations counted by the HDFS client")
+    long rpcs;
+
+    @Label("HDFS Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+
+    @Label("CPU Time")
+    @Timespan
+    long cpuTime;
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private transient long[] countersBefore;
+
+    /* start: a begun event for one request, or null if no recording wants it */
+    static HdfsOpEvent start() {
+        HdfsOpEvent event = new HdfsOpEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.countersBefore = threadCounters();
+        event.begin();
+        return event;
+    }
+
+    /* finish: end the event and commit it with the request's counter deltas */
+    void finish(String[] requestArgs, int attempts, String outcome) {
+        end();
+        if (!shouldCommit()) {
+            return;
+        }
+        long[] countersAfter = threadCounters();
+        op = requestArgs[0];
+        if (requestArgs.length > 2 && (op.equals("add") || op.equals("copyfromlocal"))) {
+            path = requestArgs[2].split(" ", 2)[0];     // HDFS destination, not the local source
+        } else if (requestArgs.length > 1) {
+            path = requestArgs[1];
+        }
+        this.outcome = outcome;
+        this.attempts = attempts;
+        rpcs = countersAfter[0] - countersBefore[0];
+        bytes = countersAfter[1] - countersBefore[1];
+        allocated = countersAfter[2] - countersBefore[2];
+        cpuTime = countersAfter[3] - countersBefore[3];
+        commit();
+    }
+
+    /* allocatedBytes: heap allocated by the calling thread so far */
+    static long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // this thread's HDFS operations, HDFS bytes, allocated bytes and CPU nanoseconds so far
+    private static long[] threadCounters() {
+        long bytes = 0;
+        for (FileSystem.Statistics statistics : FileSystem.getAllStatistics()) {
+            if (statistics.getScheme().equals("hdfs")) {
+                FileSystem.Statistics.StatisticsData data = statistics.getThreadStatistics();
+                bytes += data.getBytesRead() + data.getBytesWritten();
+            }
+        }
+        return new long[] {HdfsClient.threadHdfsOps(), bytes, allocatedBytes(), threadBean.getCurrentThreadCpuTime()};
+    }
+}
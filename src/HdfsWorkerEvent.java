@@ -0,0 +1,51 @@
+/**
+ * HdfsWorkerEvent.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Java Flight Recorder event committed when an HdfsClient worker exits,
+ * carrying its ThreadMXBean allocation and CPU totals for the run.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+@Name(HdfsWorkerEvent.NAME)
+@Label("HDFS Worker")
+@Category("HDFS")
+@Description("Totals for one HdfsClient worker thread, from start to exit")
+@StackTrace(false)
+public class HdfsWorkerEvent extends Event {
+    public static final String NAME = "hdfs.Worker";
+
+    @Label("Requests")
+    long requests;
+
+    @Label("Failures")
+    long failures;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+
+    @Label("CPU Time")
+    @Timespan
+    long cpuTime;
+
+    /* emit: commit one worker's totals, if a recording wants them */
+    static void emit(long requests, long failures, long allocated, long cpuTime) {
+        HdfsWorkerEvent event = new HdfsWorkerEvent();
+        if (event.shouldCommit()) {
+            event.requests = requests;
+            event.failures = failures;
+            event.allocated = allocated;
+            event.cpuTime = cpuTime;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * InterferenceTest.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Measure how background small-file ingest hurts interactive clients. A
+ * rate-limited ingest of creates, deletes and listings runs while a
+ * separate probe pool issues low-rate reads and stats, and the probes'
+ * latency distribution is recorded at each ingest rate. Ingest deletes
+ * target files created in earlier steps, whose creates have all finished.
+ * Usage: InterferenceTest [probe_p99_slo_ms]
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.InterruptedException;
+import java.util.LinkedList;
+import java.util.Random;
+
+public class InterferenceTest {
+    private static final boolean _DEBUG = false;
+    private static final int NUM_INGEST_THREADS = 32;
+    private static final int NUM_PROBE_THREADS = 4;
+    private static final int NUM_PROBE_FILES = 100;
+    private static final double PROBE_RATE = 20.0;                      // probe requests per second
+    private static final double[] INGEST_RATES = {0, 50, 100, 200, 400, 800, 1600, 3200};
+    private static final long STEP_MS = 30000;                          // measurement time per ingest rate
+    private static final double PROB_CREATE = 0.7;                      // remainder split between deletes
+    private static final double PROB_DELETE = 0.2;                      // and listings of the ingest dir
+    private static final double DEFAULT_SLO_MS = 100.0;
+    private static final String LOCAL_WRITE_DIR = "/usr/local/hadoop/test/tmp10B";
+    private static final String HDFS_PROBE_DIR = "/interference/probe/";
+    private static final String HDFS_INGEST_DIR = "/interference/ingest/";
+
+    private static final Random rand = new Random();
+
+    // prints out one line per ingest rate in CSV format:
+    // target_ingest/sec,achieved_ingest/sec,ingest_failures,dropped,probes,probe_mean_ms,p50_ms,p99_ms,max_ms,probe_failures
+    // followed by knee,<first rate whose probe p99 exceeds the SLO, or -1>
+    public static void main(String[] args) {
+        double sloMs = args.length > 0 ? Double.parseDouble(args[0]) : DEFAULT_SLO_MS;
+        ResultsStore results = new ResultsStore("InterferenceTest", ResultsStore.DEFAULT_DIR);
+        results.setConfig("ingest_threads", NUM_INGEST_THREADS);
+        results.setConfig("probe_threads", NUM_PROBE_THREADS);
+        results.setConfig("probe_rate", PROBE_RATE);
+        results.setConfig("step_ms", STEP_MS);
+        results.setConfig("slo_ms", sloMs);
+        final LinkedList<String> ingestQ = new LinkedList<String>();
+        LinkedList<String> probeQ = new LinkedList<String>();
+        OpMetrics ingestMetrics = new OpMetrics();
+        OpMetrics probeMetrics = new OpMetrics();
+        Thread[] ingestPool = new Thread[NUM_INGEST_THREADS];
+        Thread[] probePool = new Thread[NUM_PROBE_THREADS];
+        HdfsClient[] ingestClients = startPool(ingestQ, ingestPool, ingestMetrics);
+        HdfsClient[] probeClients = startPool(probeQ, probePool, probeMetrics);
+
+        // STEP 0: files for the probes to read, created before anything is measured
+        System.err.println("(0) Creating " + NUM_PROBE_FILES + " probe files");
+        for (int j = 0; j < NUM_PROBE_FILES; ++j) {
+            offer(ingestQ, "add " + getRandomFile(LOCAL_WRITE_DIR).getAbsolutePath() + " " +
+            HDFS_PROBE_DIR + String.format("p%05d", j));
+        }
+        HdfsClient.awaitIdle(ingestQ, ingestClients);
+
+        final PathCatalog ingested = new PathCatalog();     // created in this step, may still be queued
+        final PathCatalog settled = new PathCatalog();      // created in earlier steps, safe to delete
+        double kneeRate = -1;
+        for (int s = 0; s < INGEST_RATES.length; ++s) {
+            double rate = INGEST_RATES[s];
+            final int step = s;
+            System.err.println("(1) Ingest at " + rate + "/sec with probes at " + PROBE_RATE + "/sec");
+            ingestMetrics.reset();
+            probeMetrics.reset();
+            final long deadline = System.currentTimeMillis() + STEP_MS;
+            final RateLimiter ingestLimiter = new RateLimiter(rate);
+
+            Thread ingestProducer = null;
+            if (rate > 0) {
+                ingestProducer = new Thread(new Runnable() {
+                    public void run() {
+                        int j = 0;
+                        while (System.currentTimeMillis() < deadline) {
+                            try {
+                                ingestLimiter.acquire();
+                            } catch (InterruptedException ex) {
+                                return;
+                            }
+                            offer(ingestQ, nextIngestRequest(ingested, settled, step, ++j));
+                        }
+                    }
+                });
+                ingestProducer.start();
+            }
+
+            // probes are paced from this thread
+            RateLimiter probeLimiter = new RateLimiter(PROBE_RATE);
+            Long startTime = System.currentTimeMillis();
+            while (System.currentTimeMillis() < deadline) {
+                try {
+                    probeLimiter.acquire();
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                String file = HDFS_PROBE_DIR + String.format("p%05d", rand.nextInt(NUM_PROBE_FILES));
+                offer(probeQ, (rand.nextBoolean() ? "read " : "stat ") + file);
+            }
+            if (ingestProducer != null) {
+                try {
+                    ingestProducer.join();
+                } catch (InterruptedException ex) {
+                    ex.printStackTrace();
+                }
+            }
+
+            // an ingest backlog the cluster could not absorb is dropped, not counted; requests
+            // already running finish inside this step rather than after the next reset
+            int dropped = dropBacklog(ingestQ, ingested);
+            HdfsClient.awaitIdle(ingestQ, ingestClients);
+            HdfsClient.awaitIdle(probeQ, probeClients);
+            for (String path : ingested) {
+                settled.add(path);
+            }
+            ingested.clear();
+            Double totalTime = 1.0 * (System.currentTimeMillis() - startTime) / 1000;
+
+            LatencyHistogram probes = probeMetrics.getTotal();
+            double p99 = probes.getPercentileMs(99);
+            System.out.println(String.format("%.1f,%.4f", rate, ingestMetrics.getSuccesses() / totalTime) +
+            "," + ingestMetrics.getFailures() + "," + dropped + "," + probes.getCount() + "," +
+            String.format("%.3f,%.3f,%.3f,%.3f", probes.getMeanMs(), probes.getPercentileMs(50), p99,
+            probes.getMaxMs()) + "," + probeMetrics.getFailures());
+            int row = results.addRow("rate" + (long) rate);
+            results.set(row, "ingest_xput", ingestMetrics.getSuccesses() / totalTime);
+            results.set(row, "ingest_failures", ingestMetrics.getFailures());
+            results.set(row, "dropped", dropped);
+            results.set(row, "probe_mean_ms", probes.getMeanMs());
+            results.set(row, "probe_p99_ms", p99);
+            results.set(row, "probe_failures", probeMetrics.getFailures());
+            try {
+                results.save();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            if (kneeRate < 0 && p99 > sloMs) {
+                kneeRate = rate;
+            }
+        } // END RATE LOOP
+        System.out.println("knee," + kneeRate);
+
+        // clean up both trees, then shut the pools down
+        offer(ingestQ, "delete " + HDFS_INGEST_DIR);
+        offer(ingestQ, "delete " + HDFS_PROBE_DIR);
+        HdfsClient.awaitIdle(ingestQ, ingestClients);
+        stopPool(ingestClients, ingestPool);
+        stopPool(probeClients, probePool);
+        return;
+    }
+
+    // one bulk ingest request: mostly creates, plus deletes of earlier steps' creates and listings
+    private static String nextIngestRequest(PathCatalog ingested, PathCatalog settled, int step, int j) {
+        double pick = rand.nextDouble();
+        if (pick < PROB_CREATE || (pick < PROB_CREATE + PROB_DELETE && settled.isEmpty())) {
+            File writeFile = getRandomFile(LOCAL_WRITE_DIR);
+            StringBuilder dest = new StringBuilder(HDFS_INGEST_DIR);
+            dest.append(String.format("%02d%08d", step, j)).append(writeFile.getName());
+            synchronized (ingested) {
+                ingested.add(dest.toString());
+            }
+            return "add " + writeFile.getAbsolutePath() + " " + dest;
+        } else if (pick < PROB_CREATE + PROB_DELETE) {
+            return "delete " + settled.removeRandom(rand);
+        }
+        return "liststatus " + HDFS_INGEST_DIR;
+    }
+
+    // remove queued ingest requests, forgetting files whose creates never ran
+    private static int dropBacklog(LinkedList<String> ingestQ, PathCatalog ingested) {
+        int dropped = 0;
+        synchronized (ingestQ) {
+            for (String request : ingestQ) {
+                if (request.startsWith("add ")) {
+                    synchronized (ingested) {
+                        ingested.remove(request.substring(request.lastIndexOf(' ') + 1));
+                    }
+                }
+                dropped++;
+            }
+            ingestQ.clear();
+        }
+        return dropped;
+    }
+
+    private static void offer(LinkedList<String> requestQ, String request) {
+        synchronized (requestQ) {
+            requestQ.offer(request);
+            requestQ.notifyAll();
+        }
+    }
+
+    // blocking clients that wait on requestQ until stopped
+    private static HdfsClient[] startPool(LinkedList<String> requestQ, Thread[] threadPool, OpMetrics metrics) {
+        HdfsClient[] clients = new HdfsClient[threadPool.length];
+        for (int j = 0; j < threadPool.length; ++j) {
+            clients[j] = new HdfsClient(requestQ, true);
+            clients[j].setMetrics(metrics);
+            threadPool[j] = new Thread(clients[j]);
+            threadPool[j].start();
+        }
+        return clients;
+    }
+
+    private static void stopPool(HdfsClient[] clients, Thread[] threadPool) {
+        for (HdfsClient client : clients) {
+            client.stopThread();
+        }
+        for (Thread thread : threadPool) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    // get a random file from a specified directory
+    private static File getRandomFile(final String dir) {
+        File folder = new File(dir);
+        Random rand = new Random();
+
+        File[] files = folder.listFiles();
+
+        return files[rand.nextInt(files.length)];
+    }
+
+    private static void DEBUG(String str) {
+        if (_DEBUG) {
+            System.err.println(str);
+        }
+    }
+}
@@ -0,0 +1,523 @@
+/**
+ * LoadDaemon.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Long-lived load generator. One JVM keeps a pool of HdfsClient workers,
+ * each with its FileSystem held open, and runs submitted workloads on it
+ * one job at a time, so trials pay no JVM startup, JIT warmup or
+ * per-request connection setup. Each job's rows and the number of trials
+ * it has completed are saved together in its ResultsStore file after every
+ * trial; on restart the daemon resumes unfinished jobs from the last
+ * completed trial, redoing only the one that was interrupted.
+ * Workloads: throughput and metadatasize, each running its driver's trial
+ * (ThroughputTest.runTrial, MetadataSizeTest.runTrial) with the phases on
+ * the warm pool; metadatasize reads the NameNode over JMX if given it.
+ * Usage: LoadDaemon serve [port [state_dir]]
+ *        LoadDaemon [-p port] submit <job> <throughput|metadatasize> [trials [namenode_http]]
+ *        LoadDaemon [-p port] status
+ *        LoadDaemon [-p port] shutdown
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Random;
+
+public class LoadDaemon {
+    private static final boolean _DEBUG = false;
+    private static final int DEFAULT_PORT = 7077;
+    private static final String DEFAULT_STATE_DIR = "loadd";
+    private static final String JOB_SUFFIX = ".job";
+    private static final String COMPLETED_KEY = "state.completed_trials";
+    private static final int NUM_WORKERS = 32;
+    private static final int DEFAULT_TRIALS = 99;
+    private static final long IDLE_CHECK_MS = 100;
+
+    private final File stateDir;
+    private final FairRequestQueue requestQ = new FairRequestQueue();
+    private final HdfsClient[] workers = new HdfsClient[NUM_WORKERS];
+    private final Thread[] threadPool = new Thread[NUM_WORKERS];
+    private final LinkedList<Job> jobs = new LinkedList<Job>();     // waiting to run, guarded by itself
+    private volatile Job current = null;
+    private volatile boolean isStopped = false;
+    private ServerSocket server = null;
+    private Thread runner = null;
+
+    /* Job: one submitted workload and its progress */
+    private static class Job {
+        final String name;
+        final String workload;
+        final int trials;
+        final String nameNodeHttp;      // for heap readings, or null
+        final long submitted;
+        final File jobFile;
+        ResultsStore results = null;
+        boolean resumed = false;        // the next trial may have been partly run before
+        volatile int completed = 0;
+        volatile String phase = "queued";
+
+        Job(String name, String workload, int trials, String nameNodeHttp, long submitted, File jobFile) {
+            this.name = name;
+            this.workload = workload;
+            this.trials = trials;
+            this.nameNodeHttp = nameNodeHttp;
+            this.submitted = submitted;
+            this.jobFile = jobFile;
+        }
+    }
+
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        int a = 0;
+        if (args.length > 1 && args[0].equals("-p")) {
+            port = Integer.parseInt(args[1]);
+            a = 2;
+        }
+        if (a >= args.length) {
+            printUsage();
+            System.exit(1);
+        }
+
+        if (args[a].equals("serve")) {
+            if (args.length > a + 1) {
+                port = Integer.parseInt(args[a + 1]);
+            }
+            File stateDir = new File(args.length > a + 2 ? args[a + 2] : DEFAULT_STATE_DIR);
+            try {
+                new LoadDaemon(stateDir).serve(port);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+
+        // everything else is sent to a running daemon as one command line
+        StringBuilder command = new StringBuilder();
+        for (int i = a; i < args.length; ++i) {
+            command.append(i > a ? " " : "").append(args[i]);
+        }
+        try {
+            System.exit(send(port, command.toString(), System.out) ? 0 : 1);
+        } catch (IOException ex) {
+            System.err.println("Could not reach LoadDaemon on port " + port + ": " + ex);
+            System.exit(1);
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: LoadDaemon serve [port [state_dir]]");
+        System.err.println("       LoadDaemon [-p port] submit <job> <throughput|metadatasize> " +
+        "[trials [namenode_http]]");
+        System.err.println("       LoadDaemon [-p port] status");
+        System.err.println("       LoadDaemon [-p port] shutdown");
+    }
+
+    /* send: pass command to the daemon on port and copy its reply to out; false if it reported an error */
+    public static boolean send(int port, String command, PrintStream out) throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        try {
+            OutputStream toDaemon = socket.getOutputStream();
+            toDaemon.write((command + "\n").getBytes("UTF-8"));
+            toDaemon.flush();
+            BufferedReader reply = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            boolean ok = true;
+            String line;
+            while ((line = reply.readLine()) != null) {
+                out.println(line);
+                if (line.startsWith("error")) {
+                    ok = false;
+                }
+            }
+            return ok;
+        } finally {
+            socket.close();
+        }
+    }
+
+    public LoadDaemon(final File stateDir) {
+        this.stateDir = stateDir;
+    }
+
+    /* serve: start the warm pool, resume unfinished jobs and answer commands until shut down */
+    public void serve(int port) throws IOException {
+        stateDir.mkdirs();
+        server = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        for (int j = 0; j < NUM_WORKERS; ++j) {
+            workers[j] = new HdfsClient(requestQ, true);
+            workers[j].setReuseFileSystems(true);
+            threadPool[j] = new Thread(workers[j]);
+            threadPool[j].start();
+        }
+        resume();
+
+        runner = new Thread(new Runnable() {
+            public void run() {
+                runJobs();
+            }
+        });
+        runner.start();
+        // Ctrl-C loses at most the trial in progress
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                shutdown();
+            }
+        }));
+        System.err.println("LoadDaemon listening on " + server.getLocalSocketAddress() +
+        " with " + NUM_WORKERS + " workers");
+
+        while (!isStopped) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException ex) {
+                if (!isStopped) {
+                    ex.printStackTrace();
+                }
+                break;
+            }
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+                String line = in.readLine();
+                if (line != null) {
+                    handle(line.trim(), out);
+                }
+                out.flush();
+            } catch (IOException ex) {
+                System.err.println("Dropped connection: " + ex);
+            } finally {
+                socket.close();
+            }
+        }
+        shutdown();
+    }
+
+    // answer one command line
+    private void handle(String line, PrintStream out) {
+        String[] cmd = line.split("\\s+");
+        DEBUG("command: " + line);
+        if (cmd[0].equals("submit")) {
+            if (cmd.length < 3) {
+                out.println("error usage: submit <job> <throughput|metadatasize> [trials [namenode_http]]");
+                return;
+            }
+            try {
+                Job job = submit(cmd[1], cmd[2], cmd.length > 3 ? Integer.parseInt(cmd[3]) : DEFAULT_TRIALS,
+                cmd.length > 4 ? cmd[4] : null);
+                out.println("ok submitted " + job.name);
+            } catch (IllegalArgumentException ex) {
+                out.println("error " + ex.getMessage());
+            } catch (IOException ex) {
+                out.println("error " + ex);
+            }
+        } else if (cmd[0].equals("status")) {
+            // state,job,workload,completed,trials,phase
+            Job running = current;
+            if (running != null) {
+                out.println("running," + running.name + "," + running.workload + "," + running.completed + "," +
+                running.trials + "," + running.phase);
+            }
+            synchronized (jobs) {
+                for (Job job : jobs) {
+                    out.println("queued," + job.name + "," + job.workload + "," + job.completed + "," +
+                    job.trials + "," + job.phase);
+                }
+            }
+            long requests = 0;
+            long failures = 0;
+            for (HdfsClient worker : workers) {
+                requests += worker.getNumRequests();
+                failures += worker.getNumFailures();
+            }
+            out.println("workers," + NUM_WORKERS + "," + requests + "," + failures + "," + requestQ.size());
+            out.println("ok");
+        } else if (cmd[0].equals("shutdown")) {
+            out.println("ok shutting down; unfinished jobs resume from their last completed trial");
+            out.flush();
+            isStopped = true;
+            try {
+                server.close();     // unblocks accept, and serve finishes the shutdown
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        } else {
+            out.println("error unknown command " + cmd[0]);
+        }
+    }
+
+    // record a new job on disk and queue it
+    private Job submit(String name, String workload, int trials, String nameNodeHttp) throws IOException {
+        if (!name.matches("[A-Za-z0-9_.-]+")) {
+            throw new IllegalArgumentException("bad job name " + name);
+        }
+        if (!workload.equals("throughput") && !workload.equals("metadatasize")) {
+            throw new IllegalArgumentException("unknown workload " + workload);
+        }
+        if (trials < 1) {
+            throw new IllegalArgumentException("need at least one trial");
+        }
+        File jobFile = new File(stateDir, name + JOB_SUFFIX);
+        synchronized (jobs) {
+            if (jobFile.exists()) {
+                throw new IllegalArgumentException("job " + name + " already exists");
+            }
+            Job job = new Job(name, workload, trials, nameNodeHttp, System.currentTimeMillis(), jobFile);
+            saveJob(job, false);
+            jobs.offer(job);
+            jobs.notifyAll();
+            return job;
+        }
+    }
+
+    // queue the jobs a previous daemon left unfinished, oldest first
+    private void resume() throws IOException {
+        File[] jobFiles = stateDir.listFiles();
+        if (jobFiles == null) {
+            return;
+        }
+        List<Job> unfinished = new ArrayList<Job>();
+        for (File jobFile : jobFiles) {
+            if (!jobFile.getName().endsWith(JOB_SUFFIX)) {
+                continue;
+            }
+            Properties props = new Properties();
+            FileInputStream in = new FileInputStream(jobFile);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            if (Boolean.parseBoolean(props.getProperty("done"))) {
+                continue;
+            }
+            String name = jobFile.getName().substring(0, jobFile.getName().length() - JOB_SUFFIX.length());
+            Job job = new Job(name, props.getProperty("workload"), Integer.parseInt(props.getProperty("trials")),
+            props.getProperty("namenode"), Long.parseLong(props.getProperty("submitted")), jobFile);
+            String results = props.getProperty("results");
+            if (results != null && new File(results).exists()) {
+                job.results = ResultsStore.load(new File(results));
+                String completed = job.results.getProperty(COMPLETED_KEY);
+                job.completed = completed == null ? 0 : Integer.parseInt(completed);
+            }
+            job.resumed = true;
+            unfinished.add(job);
+        }
+        Collections.sort(unfinished, new Comparator<Job>() {
+            public int compare(Job a, Job b) {
+                return Long.compare(a.submitted, b.submitted);
+            }
+        });
+        synchronized (jobs) {
+            for (Job job : unfinished) {
+                System.err.println("Resuming " + job.name + " after trial " + job.completed + " of " + job.trials);
+                jobs.offer(job);
+            }
+        }
+    }
+
+    // write the job file atomically
+    private void saveJob(Job job, boolean done) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("workload", job.workload);
+        props.setProperty("trials", String.valueOf(job.trials));
+        props.setProperty("submitted", String.valueOf(job.submitted));
+        if (job.nameNodeHttp != null) {
+            props.setProperty("namenode", job.nameNodeHttp);
+        }
+        if (job.results != null) {
+            props.setProperty("results", job.results.getFile().getPath());
+        }
+        props.setProperty("done", String.valueOf(done));
+        File tmp = new File(job.jobFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, "LoadDaemon job " + job.name);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(job.jobFile)) {
+            throw new IOException("Could not replace " + job.jobFile);
+        }
+    }
+
+    // runner thread: take jobs in order until shut down
+    private void runJobs() {
+        while (!isStopped) {
+            Job job;
+            synchronized (jobs) {
+                while (jobs.isEmpty() && !isStopped) {
+                    try {
+                        jobs.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (isStopped) {
+                    return;
+                }
+                job = jobs.poll();
+            }
+            current = job;
+            try {
+                runJob(job);
+            } catch (IOException ex) {
+                System.err.println("Job " + job.name + " stopped: " + ex);
+            }
+            current = null;
+        }
+    }
+
+    private void runJob(Job job) throws IOException {
+        NameNodeMetrics nameNode = job.nameNodeHttp == null ? null : new NameNodeMetrics(job.nameNodeHttp);
+        if (job.results == null) {
+            job.results = new ResultsStore("LoadDaemon-" + job.name, ResultsStore.DEFAULT_DIR);
+            if (nameNode != null) {
+                job.results.setNameNode(nameNode);
+            }
+            job.results.setConfig("workload", job.workload);
+            job.results.setConfig("trials", job.trials);
+            job.results.setConfig("workers", NUM_WORKERS);
+            job.completed = 0;
+            saveJob(job, false);
+        }
+        // the tenant's cap gives each phase the thread count its driver uses
+        boolean throughput = job.workload.equals("throughput");
+        int numThreads = throughput ? ThroughputTest.NUM_THRUPUT_THREADS : MetadataSizeTest.NUM_CLIENT_THREADS;
+        FairRequestQueue.Tenant tenant = requestQ.getTenant(job.name);
+        if (tenant == null) {
+            tenant = requestQ.addTenant(job.name, 1.0, 0, numThreads);
+        }
+        PhaseRunner runner = new WarmPhaseRunner(job, tenant, numThreads);
+
+        for (int i = job.completed + 1; i <= job.trials && !isStopped; ++i) {
+            System.err.println("(" + job.name + ") trial " + i + " of " + job.trials);
+            // the same files are picked if a trial is redone, so its earlier work can be undone first
+            Random rand = new Random(job.submitted * 31 + i);
+            String prefix = job.name + ",";
+            boolean finished = throughput ?
+            ThroughputTest.runTrial(i, rand, job.resumed, runner, job.results, System.out, prefix) :
+            MetadataSizeTest.runTrial(i, rand, job.resumed, runner, nameNode, job.results, System.out, prefix);
+            job.resumed = false;
+            if (!finished) {
+                return;     // interrupted; the trial is redone on resume
+            }
+            // rows and progress go to disk together
+            job.results.setProperty(COMPLETED_KEY, String.valueOf(i));
+            job.results.save();
+            job.completed = i;
+        }
+        if (!isStopped) {
+            job.phase = "done";
+            saveJob(job, true);
+            System.err.println("(" + job.name + ") finished, results in " + job.results.getFile());
+        }
+    }
+
+    /* WarmPhaseRunner: runs a job's trial phases as its tenant on the daemon's pool */
+    private class WarmPhaseRunner extends PhaseRunner {
+        private final Job job;
+        private final FairRequestQueue.Tenant tenant;
+
+        WarmPhaseRunner(Job job, FairRequestQueue.Tenant tenant, int numThreads) {
+            super(numThreads);
+            this.job = job;
+            this.tenant = tenant;
+        }
+
+        public Queue<String> getRequestQ() {
+            return requestQ;
+        }
+
+        public double run(String phase, List<String> requests, OpMetrics metrics) {
+            job.phase = phase;
+            // jobs run one at a time, so every worker records into this phase's metrics
+            for (HdfsClient worker : workers) {
+                worker.setMetrics(metrics);
+            }
+            return runPhase(tenant, requests);
+        }
+    }
+
+    /*
+     * runPhase: offer requests as tenant, wait until all have completed and
+     * return the elapsed seconds, or -1 if the daemon is shutting down.
+     */
+    private double runPhase(FairRequestQueue.Tenant tenant, List<String> requests) {
+        Long startTime = System.currentTimeMillis();
+        synchronized (requestQ) {
+            for (String request : requests) {
+                requestQ.offer(tenant.getName(), request);
+            }
+            requestQ.notifyAll();
+            // workers notify the queue as each request completes
+            while (tenant.getQueued() > 0 || tenant.getInFlight() > 0) {
+                if (isStopped) {
+                    return -1;
+                }
+                try {
+                    requestQ.wait(IDLE_CHECK_MS);
+                } catch (InterruptedException ex) {
+                    return -1;
+                }
+            }
+        }
+        Long endTime = System.currentTimeMillis();
+        return 1.0 * (endTime - startTime) / 1000;
+    }
+
+    // stop the runner and the pool; safe to call more than once
+    private void shutdown() {
+        synchronized (this) {
+            if (runner == null) {
+                return;
+            }
+            isStopped = true;
+            runner.interrupt();
+            try {
+                runner.join();
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+            runner = null;
+        }
+        try {
+            server.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        requestQ.clear();
+        for (HdfsClient worker : workers) {
+            worker.stopThread();
+        }
+        for (Thread thread : threadPool) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+        System.err.println("LoadDaemon stopped");
+    }
+
+    private static void DEBUG(String str) {
+        if (_DEBUG) {
+            System.err.println(str);
+        }
+    }
+}
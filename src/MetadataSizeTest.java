@@ -1,62 +1,62 @@
 /**
  * MetadataSizeTest.java
  * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
- * 
+ *
  * Determine the average metadata footprint of files on HDFS.
  * Determine whether the metadata size depends on file content size.
+ * Given the NameNode web address, each trial reads the namespace size and
+ * the old generation occupancy after the NameNode's next collection over
+ * JMX; without it, the run pauses after each trial for the operator to
+ * read the heap. Trials are also run by LoadDaemon.
+ * Usage: MetadataSizeTest [namenode_http]
  */
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.InterruptedException;
-import java.util.Queue;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 public class MetadataSizeTest {
     private static final boolean _DEBUG = false;
     private static final int PRINT_INTERVAL = 100;
-    private static final int NUM_CLIENT_THREADS = 32;
+    static final int NUM_CLIENT_THREADS = 32;       // runner threads, also used by LoadDaemon
     private static final int NUM_FILES = 5000;
     private static final int NUM_TRIALS = 99;
+    private static final long SETTLE_MS = 60000;    // longest wait for an old generation collection
+    private static final long SETTLE_POLL_MS = 1000;
     private static final String LOCAL_FILE_DIR = "/usr/local/hadoop/test/tmp10B";
     private static final String HDFS_FILE_DIR = "/bigmdst/";
 
+    // prints out files,add_xput,failures,redone,files_total,blocks_total,old_gen_after_gc,collected per trial in CSV format
     public static void main(String[] args) {
-        LinkedList<String> requestQ = new LinkedList<String>();
-        Thread[] threadPool = new Thread[NUM_CLIENT_THREADS];
-
-        // spin up HdfsClient threads
-        for (int j = 0; j < NUM_CLIENT_THREADS; ++j) {
-            threadPool[j] = new Thread(new HdfsClient(requestQ));
-            threadPool[j].start();
+        NameNodeMetrics nameNode = args.length > 0 ? new NameNodeMetrics(args[0]) : null;
+        ResultsStore results = new ResultsStore("MetadataSizeTest", ResultsStore.DEFAULT_DIR);
+        results.setConfig("client_threads", NUM_CLIENT_THREADS);
+        results.setConfig("files_per_trial", NUM_FILES);
+        if (nameNode != null) {
+            results.setNameNode(nameNode);
         }
+        PhaseRunner runner = new PhaseRunner(NUM_CLIENT_THREADS);
+        Random rand = new Random();
 
         // run NUM_TRIALS trials, adding more files sequentially
         for (int i = 1; i <= NUM_TRIALS; ++i) {
             System.out.println("Starting trial number " + i);
-            for (int j = 1; j <= NUM_FILES; ++j) {
-                File fileToAdd = getRandomFile(LOCAL_FILE_DIR);
-
-                // add files requests so that they do not conflict
-                StringBuilder requestBuf = new StringBuilder();
-                requestBuf.append("add ");
-                requestBuf.append(fileToAdd.getAbsolutePath());
-                requestBuf.append(" " + HDFS_FILE_DIR +
-                   String.format("%02d", i) + String.format("%05d", j)  + fileToAdd.getName());
-                // places on HDFS with appended "ij" for unique ID
-                synchronized (requestQ) {
-                    DEBUG("adding request to requestQ");
-                    requestQ.offer(requestBuf.toString());
-
-                    if (j % PRINT_INTERVAL == 0) {
-                        requestQ.offer("DONE " + (j + (i - 1) * NUM_FILES));
-                    }
-                    requestQ.notifyAll();
-                }
+            runTrial(i, rand, false, runner, nameNode, results, System.out, "");
+            try {
+                results.save();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            if (nameNode != null) {
+                continue;
             }
 
-            // wait for all threads to finish, then restart on user input
+            // restart on user input
             System.out.println("Ending trial " + i + ", waiting for user input");
             try {
                 // wait for user to hit enter
@@ -66,23 +66,92 @@ public class MetadataSizeTest {
             }
         }
 
-        for (int j = 0; j < NUM_CLIENT_THREADS; ++j) {
-            try {
-                threadPool[j].join();
-            } catch (InterruptedException ex) {
+        return;
+    }
 
+    /*
+     * runTrial: trial i, adding NUM_FILES files with names unique to the
+     * trial and picks from rand. If resumed, the trial's files an
+     * interrupted attempt already added are deleted first and their number
+     * recorded as redone, so add_xput only counts fresh creates. Given
+     * nameNode, then waits up to SETTLE_MS for an old generation collection
+     * and records FilesTotal, BlocksTotal and the occupancy after it; heap
+     * read straight after the adds would mostly be garbage. Adds a "trial"
+     * row to results and prints it after prefix to out. Returns false if
+     * runner stopped part way.
+     */
+    public static boolean runTrial(int i, Random rand, boolean resumed, PhaseRunner runner,
+    NameNodeMetrics nameNode, ResultsStore results, PrintStream out, String prefix) {
+        List<String> adds = new ArrayList<String>();
+        List<String> deletes = new ArrayList<String>();
+        for (int j = 1; j <= NUM_FILES; ++j) {
+            File fileToAdd = getRandomFile(LOCAL_FILE_DIR, rand);
+            // places on HDFS with appended "ij" for unique ID
+            String dest = HDFS_FILE_DIR + String.format("%02d%05d", i, j) + fileToAdd.getName();
+            if (j % PRINT_INTERVAL == 0) {
+                adds.add("DONE " + (j + (i - 1) * NUM_FILES));
+            }
+            adds.add("add " + fileToAdd.getAbsolutePath() + " " + dest);
+            deletes.add("delete " + dest);
+        }
+        long redone = 0;
+        if (resumed) {
+            OpMetrics recovered = new OpMetrics();
+            if (runner.run("recover", deletes, recovered) < 0) {
+                return false;
             }
+            redone = recovered.getSuccesses();
         }
 
-        return;
+        long oldGenBefore = nameNode == null ? -1 : nameNode.getOldGenUsedAfterGc();
+        OpMetrics metrics = new OpMetrics();
+        double addTime = runner.run("add", adds, metrics);
+        if (addTime < 0) {
+            return false;
+        }
+
+        long filesTotal = -1;
+        long blocksTotal = -1;
+        long oldGen = -1;
+        boolean collected = false;
+        if (nameNode != null) {
+            filesTotal = nameNode.getFilesTotal();
+            blocksTotal = nameNode.getBlocksTotal();
+            oldGen = nameNode.getOldGenUsedAfterGc();
+            long deadline = System.currentTimeMillis() + SETTLE_MS;
+            while (oldGen >= 0 && oldGen == oldGenBefore && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(SETTLE_POLL_MS);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                oldGen = nameNode.getOldGenUsedAfterGc();
+            }
+            collected = oldGen >= 0 && oldGen != oldGenBefore;
+        }
+
+        int row = results.addRow("trial");
+        results.set(row, "files", i * NUM_FILES);
+        results.set(row, "add_xput", metrics.getSuccesses() / addTime);
+        results.set(row, "failures", metrics.getFailures());
+        results.set(row, "redone", redone);
+        results.set(row, "files_total", filesTotal);
+        results.set(row, "blocks_total", blocksTotal);
+        results.set(row, "old_gen_after_gc", oldGen);
+        results.set(row, "collected", collected ? 1 : 0);
+        results.addMetrics("", metrics, addTime);
+        out.println(prefix + i * NUM_FILES + "," + String.format("%.4f", metrics.getSuccesses() / addTime) + "," +
+        metrics.getFailures() + "," + redone + "," + filesTotal + "," + blocksTotal + "," + oldGen + "," +
+        collected);
+        return true;
     }
 
-    // get a random file from a specified directory
-    private static File getRandomFile(final String dir) {
+    // get a random file from a specified directory, sorted so a seeded rand repeats its picks
+    private static File getRandomFile(final String dir, Random rand) {
         File folder = new File(dir);
-        Random rand = new Random();
 
         File[] files = folder.listFiles();
+        Arrays.sort(files);
 
         return files[rand.nextInt(files.length)];
     }
@@ -0,0 +1,188 @@
+/**
+ * MetadataTest.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Measure per-operation throughput and latency of metadata-only requests
+ * (stat, listStatus, rename, mkdir, setTimes, modification time) as the
+ * number of small files in one large HDFS directory grows.
+ * Usage: MetadataTest [op=weight,...]   e.g. stat=0.5,liststatus=0.1,rename=0.4
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.InterruptedException;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+
+public class MetadataTest {
+    private static final boolean _DEBUG = false;
+    private static final int NUM_WRITE_THREADS = 16;
+    private static final int NUM_THRUPUT_THREADS = 16;
+    private static final int NUM_TRIALS = 50;
+    private static final int NUM_WRITES = 5000;     // files added to the namespace per trial
+    private static final int NUM_OPS = 2000;        // metadata operations measured per trial
+    private static final String DEFAULT_MIX =
+    "stat=0.4,liststatus=0.05,rename=0.15,mkdir=0.15,settimes=0.15,modificationtime=0.1";
+    private static final String LOCAL_WRITE_DIR = "/usr/local/hadoop/test/tmp10B";  // contains files to randomly add to server
+    private static final String HDFS_BIG_DIR = "/metadata/big/";                    // single huge directory of files
+    private static final String HDFS_MKDIR_DIR = "/metadata/dirs/";                 // parent of directories made by mkdir
+
+    // prints out one line per operation per trial in CSV format:
+    // files_on_hdfs,op,count,ops/sec,mean_ms,p50_ms,p99_ms,max_ms,refused,failed,retries
+    public static void main(String[] args) {
+        LinkedHashMap<String, Double> mix = parseMix(args.length > 0 ? args[0] : DEFAULT_MIX);
+        LinkedList<String> requestQ = new LinkedList<String>();
+        Thread[] threadPool = new Thread[Math.max(NUM_WRITE_THREADS, NUM_THRUPUT_THREADS)];
+        PathCatalog filesOnHdfs = new PathCatalog();
+        Random rand = new Random();
+        ResultsStore results = new ResultsStore("MetadataTest", ResultsStore.DEFAULT_DIR);
+        results.setConfig("write_threads", NUM_WRITE_THREADS);
+        results.setConfig("thruput_threads", NUM_THRUPUT_THREADS);
+        results.setConfig("writes_per_trial", NUM_WRITES);
+        results.setConfig("ops_per_trial", NUM_OPS);
+        results.setConfig("mix", mix);
+
+        for (int i = 1; i <= NUM_TRIALS; ++i) {
+            // STEP 1: grow the namespace
+            System.err.println("(1) Adding " + NUM_WRITES + " files (trial " + i + ")");
+            for (int j = 1; j <= NUM_WRITES; ++j) {
+                File writeFile = getRandomFile(LOCAL_WRITE_DIR);
+
+                StringBuilder dest = new StringBuilder(HDFS_BIG_DIR);
+                dest.append(String.format("%02d%05d", i, j)).append(writeFile.getName());
+                filesOnHdfs.add(dest.toString());
+                synchronized (requestQ) {
+                    requestQ.offer("add " + writeFile.getAbsolutePath() + " " + dest);
+                    requestQ.notifyAll();
+                }
+            }
+            runPool(requestQ, threadPool, NUM_WRITE_THREADS, null);
+
+            // STEP 2: measure the metadata mix against the grown namespace
+            System.err.println("(2) Running " + NUM_OPS + " metadata operations (" +
+            filesOnHdfs.size() + " files on HDFS)");
+            String[] ops = new String[NUM_OPS + 1];
+            LinkedList<String> victims = new LinkedList<String>();
+            for (int j = 1; j <= NUM_OPS; ++j) {
+                ops[j] = sampleOp(mix, rand);
+                if (ops[j].equals("rename")) {
+                    // set aside before any other request is drawn, so none of them
+                    // targets a path that is moving
+                    victims.offer(filesOnHdfs.removeRandom(rand));
+                }
+            }
+            LinkedList<String> renamed = new LinkedList<String>();
+            for (int j = 1; j <= NUM_OPS; ++j) {
+                String op = ops[j];
+                String request;
+                if (op.equals("liststatus")) {
+                    request = "liststatus " + HDFS_BIG_DIR;
+                } else if (op.equals("mkdir")) {
+                    request = "mkdir " + HDFS_MKDIR_DIR + String.format("%02d%05d", i, j);
+                } else if (op.equals("rename")) {
+                    // renamed files rejoin the catalog after the trial
+                    String from = victims.poll();
+                    String to = from + "r";
+                    renamed.offer(to);
+                    request = "rename " + from + " " + to;
+                } else {
+                    request = op + " " + filesOnHdfs.sample(rand);
+                }
+                synchronized (requestQ) {
+                    requestQ.offer(request);
+                    requestQ.notifyAll();
+                }
+            }
+
+            OpMetrics metrics = new OpMetrics();
+            Double totalTime = runPool(requestQ, threadPool, NUM_THRUPUT_THREADS, metrics);
+            metrics.print(System.out, filesOnHdfs.size() + ",", totalTime);
+            int row = results.addRow("trial");
+            results.set(row, "files", filesOnHdfs.size());
+            results.set(row, "ops_sec", metrics.getSuccesses() / totalTime);
+            results.set(row, "p99_ms", metrics.getTotal().getPercentileMs(99));
+            results.set(row, "failures", metrics.getFailures());
+            results.addMetrics("", metrics, totalTime);
+
+            for (String path : renamed) {
+                filesOnHdfs.add(path);
+            }
+            try {
+                results.save();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        } // END TRIAL LOOP
+
+        return;
+    }
+
+    // drain requestQ with numThreads clients, returning the elapsed seconds
+    private static double runPool(LinkedList<String> requestQ, Thread[] threadPool,
+    int numThreads, OpMetrics metrics) {
+        for (int j = 0; j < numThreads; ++j) {
+            HdfsClient client = new HdfsClient(requestQ);
+            client.setMetrics(metrics);
+            threadPool[j] = new Thread(client);
+            threadPool[j].start();
+        }
+        Long startTime = System.currentTimeMillis();
+
+        for (int j = 0; j < numThreads; ++j) {
+            try {
+                threadPool[j].join();
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+        Long endTime = System.currentTimeMillis();
+        return 1.0 * (endTime - startTime) / 1000;
+    }
+
+    // "op=weight,op=weight" into weights normalized to sum to 1, in order of appearance
+    private static LinkedHashMap<String, Double> parseMix(String spec) {
+        LinkedHashMap<String, Double> mix = new LinkedHashMap<String, Double>();
+        double total = 0.0;
+        for (String term : spec.split(",")) {
+            String[] kv = term.split("=");
+            double weight = Double.parseDouble(kv[1]);
+            mix.put(kv[0], weight);
+            total += weight;
+        }
+        for (Map.Entry<String, Double> entry : mix.entrySet()) {
+            entry.setValue(entry.getValue() / total);
+        }
+        return mix;
+    }
+
+    private static String sampleOp(LinkedHashMap<String, Double> mix, Random rand) {
+        double pick = rand.nextDouble();
+        String op = null;
+        for (Map.Entry<String, Double> entry : mix.entrySet()) {
+            op = entry.getKey();
+            pick -= entry.getValue();
+            if (pick < 0) {
+                break;
+            }
+        }
+        return op;
+    }
+
+    // get a random file from a specified directory
+    private static File getRandomFile(final String dir) {
+        File folder = new File(dir);
+        Random rand = new Random();
+
+        File[] files = folder.listFiles();
+
+        return files[rand.nextInt(files.length)];
+    }
+
+    private static void DEBUG(String str) {
+        if (_DEBUG) {
+            System.err.println(str);
+        }
+    }
+}
@@ -12,6 +12,7 @@ import java.lang.InterruptedException;
 import java.util.Queue;
 import java.util.LinkedList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 public class MixedTest {
@@ -27,13 +28,43 @@ public class MixedTest {
     private static final String LOCAL_WRITE_DIR = "/usr/local/hadoop/test/tmp10B";  // contains files to randomly add to server
     private static final String HDFS_WRITE_DIR = "/throughput/";                    // HDFS path to which to write
 
+    // prints out files_on_hdfs,throughput,failures per trial in CSV format,
+    // where throughput counts completed requests only
+    // "cache <MB>" serves repeated reads from an off-heap SmallFileCache of that size
+    // "jfr <dir>" records each trial with Flight Recorder and summarizes it to stderr
     public static void main(String[] args) {
+        SmallFileCache contentCache = null;
+        TrialRecorder recorder = null;
+        for (int a = 0; a + 1 < args.length; a += 2) {
+            if (args[a].equals("cache")) {
+                contentCache = new SmallFileCache(Long.parseLong(args[a + 1]) << 20);
+            } else if (args[a].equals("jfr")) {
+                recorder = new TrialRecorder(args[a + 1]);
+            }
+        }
+        ResultsStore results = new ResultsStore("MixedTest", ResultsStore.DEFAULT_DIR);
+        results.setConfig("write_threads", NUM_WRITE_THREADS);
+        results.setConfig("thruput_threads", NUM_THRUPUT_THREADS);
+        results.setConfig("writes_per_trial", NUM_WRITES);
+        results.setConfig("thruput_files", NUM_THRUPUT_FILES);
+        results.setConfig("prob_read", PROB_READ);
+        results.setConfig("args", Arrays.toString(args));
         LinkedList<String> requestQ = new LinkedList<String>();
         Thread[] threadPool = new Thread[NUM_WRITE_THREADS];
-        LinkedList<String> filesAdded = new LinkedList<String>();
+        PathCatalog filesAdded = new PathCatalog();
 
         // run NUM_TRIALS trials, adding more files sequentially
         for (int i = 1; i <= NUM_TRIALS; ++i) {
+            if (recorder != null) {
+                try {
+                    recorder.start("trial" + i, requestQ);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    recorder = null;
+                }
+            }
+            int row = results.addRow("trial");
+            results.set(row, "files", (i - 1) * NUM_WRITES);
             System.out.print((i - 1) * NUM_WRITES + ",");
             // STEP 1: throughput measurement test
             System.err.println("(1) Mixed Read/Write Throughput (" +
@@ -61,8 +92,12 @@ public class MixedTest {
             }
 
             // start thread pool to carry out mixed read/writ requests
+            OpMetrics metrics = new OpMetrics();
             for (int j = 0; j < NUM_THRUPUT_THREADS; ++j) {
-                threadPool[j] = new Thread(new HdfsClient(requestQ));
+                HdfsClient client = new HdfsClient(requestQ);
+                client.setContentCache(contentCache);
+                client.setMetrics(metrics);
+                threadPool[j] = new Thread(client);
                 threadPool[j].start();
             }
             Long startTime = System.currentTimeMillis();
@@ -77,16 +112,20 @@ public class MixedTest {
             // write out throughput
             Long endTime = System.currentTimeMillis();
             Double totalTime = 1.0 * (endTime - startTime) / 1000;
-            System.out.println(String.format("%.4f", 1.0 * (NUM_THRUPUT_FILES / totalTime)));
+            System.out.println(String.format("%.4f", metrics.getSuccesses() / totalTime) + "," +
+            metrics.getFailures());
+            results.set(row, "xput", metrics.getSuccesses() / totalTime);
+            results.set(row, "failures", metrics.getFailures());
+            results.addMetrics("", metrics, totalTime);
 
             // clean up the writes
             synchronized (requestQ) {
-                while(!filesAdded.isEmpty()) {
-                    String fileName = filesAdded.poll();
+                for (String fileName : filesAdded) {
                     File fileToDelete = new File("./" + fileName);
                     fileToDelete.delete();
                     requestQ.offer("delete " + HDFS_WRITE_DIR + fileName);
                 }
+                filesAdded.clear();
             }
             // wait for threads to clean up HDFS
             for (int j = 0; j < NUM_THRUPUT_THREADS; ++j) {
@@ -109,8 +148,8 @@ public class MixedTest {
                 StringBuilder requestBuf = new StringBuilder();
                 requestBuf.append("add ");
                 requestBuf.append(writeFile.getAbsolutePath());
-                requestBuf.append(" " + HDFS_WRITE_DIR +
-                String.format("%02d", i) + String.format("%05d", j)  + writeFile.getName());
+                requestBuf.append(' ').append(HDFS_WRITE_DIR);
+                requestBuf.append(String.format("%02d%05d", i, j)).append(writeFile.getName());
                 // places on HDFS with appended "ij" for unique ID
                 synchronized (requestQ) {
                     DEBUG("adding request to requestQ");
@@ -134,6 +173,22 @@ public class MixedTest {
 
                 }
             }
+            if (contentCache != null) {
+                // hits,misses,hit_ratio,stale,evictions,bytes_served,bytes_cached,entries
+                contentCache.print(System.err, "cache,");
+            }
+            if (recorder != null) {
+                try {
+                    recorder.stopAndSummarize(System.err, "jfr," + i + ",");
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            try {
+                results.save();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
         } // END TRIAL LOOP
 
         return;
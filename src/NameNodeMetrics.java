@@ -0,0 +1,169 @@
+/**
+ * NameNodeMetrics.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Read NameNode heap and namespace metrics from its /jmx HTTP servlet
+ * (e.g. http://namenode:50070/jmx).
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+
+public class NameNodeMetrics {
+    public static final long INODE_BYTES = 352;     // fitted NameNode heap per inode (see MetadataSizeTest)
+    public static final long BLOCK_BYTES = 175;     // fitted heap per block
+    private static final int TIMEOUT_MS = 2000;
+    private static final String MEMORY_BEAN = "java.lang:type=Memory";
+    private static final String[] OLD_GEN_BEANS = {
+        "java.lang:type=MemoryPool,name=*Old Gen",  // PS, CMS and G1
+        "java.lang:type=MemoryPool,name=Tenured Gen"
+    };
+    private static final String FSNAMESYSTEM_BEAN = "Hadoop:service=NameNode,name=FSNamesystem";
+    private static final String RPC_ACTIVITY_BEAN = "Hadoop:service=NameNode,name=RpcActivityForPort*";
+
+    private final String httpAddress;   // host:port of the NameNode web UI
+
+    public NameNodeMetrics(final String httpAddress) {
+        this.httpAddress = httpAddress;
+    }
+
+    /* fromConfiguration: the NameNode web UI named by conf, on the fs.defaultFS host if bound to all interfaces */
+    public static NameNodeMetrics fromConfiguration(Configuration conf) {
+        String httpAddress = conf.get("dfs.namenode.http-address", "0.0.0.0:50070");
+        String host = FileSystem.getDefaultUri(conf).getHost();
+        if (httpAddress.startsWith("0.0.0.0:") && host != null) {
+            httpAddress = host + httpAddress.substring("0.0.0.0".length());
+        }
+        return new NameNodeMetrics(httpAddress);
+    }
+
+    public String getHttpAddress() {
+        return httpAddress;
+    }
+
+    /* getHeapUsed: bytes of NameNode heap in use, -1 if unavailable */
+    public long getHeapUsed() {
+        return getJmxValue(MEMORY_BEAN, "HeapMemoryUsage", "used");
+    }
+
+    /* getHeapMax: maximum NameNode heap in bytes, -1 if unavailable */
+    public long getHeapMax() {
+        return getJmxValue(MEMORY_BEAN, "HeapMemoryUsage", "max");
+    }
+
+    /*
+     * getOldGenUsedAfterGc: NameNode old generation occupancy right after its
+     * last collection, -1 if unavailable. Unlike getHeapUsed this leaves out
+     * garbage not yet collected, but it only moves when the old generation
+     * is collected.
+     */
+    public long getOldGenUsedAfterGc() {
+        return getOldGenValue("CollectionUsage", "used");
+    }
+
+    /* getOldGenMax: maximum size of the NameNode old generation, -1 if unavailable */
+    public long getOldGenMax() {
+        return getOldGenValue("Usage", "max");
+    }
+
+    private long getOldGenValue(String... keys) {
+        for (String bean : OLD_GEN_BEANS) {
+            long value = getJmxValue(bean, keys);
+            if (value >= 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    /* getMetadataBytes: heap the namespace takes at the fitted per-inode and per-block costs, -1 if unavailable */
+    public long getMetadataBytes() {
+        long files = getFilesTotal();
+        long blocks = getBlocksTotal();
+        return files < 0 || blocks < 0 ? -1 : metadataBytes(files, blocks);
+    }
+
+    /* metadataBytes: NameNode heap taken by numInodes inodes and numBlocks blocks at the fitted costs */
+    public static long metadataBytes(long numInodes, long numBlocks) {
+        return numInodes * INODE_BYTES + numBlocks * BLOCK_BYTES;
+    }
+
+    /* getFilesTotal: inodes (files and directories) in the namespace, -1 if unavailable */
+    public long getFilesTotal() {
+        return getJmxValue(FSNAMESYSTEM_BEAN, "FilesTotal");
+    }
+
+    /* getBlocksTotal: blocks in the namespace, -1 if unavailable */
+    public long getBlocksTotal() {
+        return getJmxValue(FSNAMESYSTEM_BEAN, "BlocksTotal");
+    }
+
+    /* getCallQueueLength: RPCs waiting for a handler on the first RPC port listed, -1 if unavailable */
+    public long getCallQueueLength() {
+        return getJmxValue(RPC_ACTIVITY_BEAN, "CallQueueLength");
+    }
+
+    /*
+     * getJmxValue: numeric attribute of one bean. keys are matched in order,
+     * so ("HeapMemoryUsage", "used") reads the used field of that composite.
+     * Returns -1 if the NameNode cannot be reached or the key is missing.
+     */
+    public long getJmxValue(String bean, String... keys) {
+        String json;
+        try {
+            json = fetch("http://" + httpAddress + "/jmx?qry=" + URLEncoder.encode(bean, "UTF-8"));
+        } catch (IOException ex) {
+            System.err.println("Could not read " + bean + " from " + httpAddress + ": " + ex);
+            return -1;
+        }
+
+        int pos = 0;
+        for (String key : keys) {
+            pos = json.indexOf("\"" + key + "\"", pos);
+            if (pos < 0) {
+                return -1;
+            }
+            pos += key.length() + 2;
+        }
+        pos = json.indexOf(':', pos) + 1;
+        while (pos > 0 && pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+        int end = pos;
+        while (end < json.length() && (Character.isDigit(json.charAt(end)) || json.charAt(end) == '-')) {
+            end++;
+        }
+        if (pos <= 0 || end == pos) {
+            return -1;
+        }
+        return Long.parseLong(json.substring(pos, end));
+    }
+
+    private static String fetch(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(TIMEOUT_MS);
+        conn.setReadTimeout(TIMEOUT_MS);
+        InputStream in = conn.getInputStream();
+        try {
+            Reader reader = new InputStreamReader(in, "UTF-8");
+            StringBuilder buf = new StringBuilder();
+            char[] c = new char[4096];
+            int numChars;
+            while ((numChars = reader.read(c)) > 0) {
+                buf.append(c, 0, numChars);
+            }
+            return buf.toString();
+        } finally {
+            in.close();
+            conn.disconnect();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * NamespaceScanner.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Parallel scan of a live HDFS tree to verify what a driver run left
+ * behind: file and directory counts, total bytes and small-file ratio per
+ * top-level subtree, checked against expected file counts.
+ * Usage: NamespaceScanner <hdfs_root> [-inflight N] [-small BYTES]
+ *                         [-expect <dir>=<files>]... [-manifest <file>]
+ *
+ * Directories are listed by a work-stealing fork/join pool, a page at a
+ * time: each page is one listPaths RPC, fetched under a semaphore so at
+ * most N listing RPCs are in flight at the NameNode, and its entries are
+ * then walked without it. Manifest lines are "<dir> <files>", one per
+ * directory.
+ */
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.DirectoryListing;
+import org.apache.hadoop.hdfs.protocol.HdfsFileStatus;
+
+public class NamespaceScanner {
+    private static final int DEFAULT_INFLIGHT = 8;
+    private static final long DEFAULT_SMALL_BYTES = 1L << 20;
+
+    private final FileSystem fileSystem;
+    private final Semaphore inFlight;
+    private final long smallBytes;
+    private final Map<String, Long> expected;       // directory -> expected files in its subtree
+    private final ConcurrentHashMap<String, ScanStats> recorded =
+    new ConcurrentHashMap<String, ScanStats>();     // subtree stats of expected and top-level directories
+    private String root;
+
+    /* ScanStats: totals for one subtree */
+    public static class ScanStats {
+        long files;
+        long dirs;
+        long bytes;
+        long smallFiles;
+
+        void add(ScanStats other) {
+            files += other.files;
+            dirs += other.dirs;
+            bytes += other.bytes;
+            smallFiles += other.smallFiles;
+        }
+
+        public String toString() {
+            return files + "," + dirs + "," + bytes + "," + smallFiles + "," +
+            String.format("%.4f", files == 0 ? 0.0 : 1.0 * smallFiles / files);
+        }
+    }
+
+    public NamespaceScanner(FileSystem fileSystem, int maxInFlight, long smallBytes,
+    Map<String, Long> expected) {
+        this.fileSystem = fileSystem;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.smallBytes = smallBytes;
+        this.expected = expected;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: NamespaceScanner <hdfs_root> [-inflight N] [-small BYTES] " +
+            "[-expect <dir>=<files>]... [-manifest <file>]");
+            System.exit(1);
+        }
+        int maxInFlight = DEFAULT_INFLIGHT;
+        long smallBytes = DEFAULT_SMALL_BYTES;
+        Map<String, Long> expected = new TreeMap<String, Long>();
+        try {
+            for (int i = 1; i + 1 < args.length; i += 2) {
+                if (args[i].equals("-inflight")) {
+                    maxInFlight = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-small")) {
+                    smallBytes = Long.parseLong(args[i + 1]);
+                } else if (args[i].equals("-expect")) {
+                    String[] kv = args[i + 1].split("=");
+                    expected.put(normalize(kv[0]), Long.parseLong(kv[1]));
+                } else if (args[i].equals("-manifest")) {
+                    readManifest(args[i + 1], expected);
+                }
+            }
+
+            FileSystem fileSystem = FileSystem.newInstance(HdfsClient.newConfiguration());
+            NamespaceScanner scanner = new NamespaceScanner(fileSystem, maxInFlight, smallBytes, expected);
+            Long startTime = System.currentTimeMillis();
+            ScanStats total = scanner.scan(args[0], maxInFlight * 2);
+            Double totalTime = 1.0 * (System.currentTimeMillis() - startTime) / 1000;
+            fileSystem.close();
+
+            boolean ok = scanner.print(total, totalTime);
+            System.exit(ok ? 0 : 2);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /* scan: walk the tree under rootDir with a fork/join pool of the given parallelism */
+    public ScanStats scan(String rootDir, int parallelism) throws IOException {
+        root = normalize(rootDir);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.invoke(new ScanTask(root, 0));
+        } catch (RuntimeException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw ex;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /* print: summary, per top-level subtree and verification lines; returns false on any mismatch */
+    public boolean print(ScanStats total, double seconds) {
+        // path,files,dirs,bytes,small_files,small_ratio
+        System.out.println("total," + root + "," + total + "," + String.format("%.4f", seconds));
+        TreeMap<String, ScanStats> sorted = new TreeMap<String, ScanStats>(recorded);
+        for (Map.Entry<String, ScanStats> entry : sorted.entrySet()) {
+            if (isTopLevel(entry.getKey())) {
+                System.out.println("subtree," + entry.getKey() + "," + entry.getValue());
+            }
+        }
+
+        boolean ok = true;
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            ScanStats actual = recorded.get(entry.getKey());
+            long files = actual == null ? -1 : actual.files;
+            boolean match = files == entry.getValue();
+            ok &= match;
+            System.out.println("verify," + entry.getKey() + "," + entry.getValue() + "," + files + "," +
+            (match ? "OK" : actual == null ? "MISSING" : "MISMATCH"));
+        }
+        return ok;
+    }
+
+    // a page of a directory listing, and the name to list after for the next one (null if it was the last)
+    private static class ListingPage {
+        final FileStatus[] entries;
+        final byte[] lastName;
+
+        ListingPage(FileStatus[] entries, byte[] lastName) {
+            this.entries = entries;
+            this.lastName = lastName;
+        }
+    }
+
+    // one directory: list it page by page, fork a task per subdirectory
+    private class ScanTask extends RecursiveTask<ScanStats> {
+        private static final long serialVersionUID = 1L;
+
+        private final String dir;
+        private final int depth;
+
+        ScanTask(String dir, int depth) {
+            this.dir = dir;
+            this.depth = depth;
+        }
+
+        protected ScanStats compute() {
+            ScanStats stats = new ScanStats();
+            stats.dirs++;
+            List<ScanTask> children = new ArrayList<ScanTask>();
+            boolean removed = false;
+            try {
+                byte[] startAfter = HdfsFileStatus.EMPTY_NAME;
+                while (startAfter != null) {
+                    ListingPage page = fetchPage(dir, startAfter);
+                    for (FileStatus status : page.entries) {
+                        if (status.isDirectory()) {
+                            ScanTask child = new ScanTask(status.getPath().toUri().getPath(), depth + 1);
+                            child.fork();
+                            children.add(child);
+                        } else {
+                            stats.files++;
+                            stats.bytes += status.getLen();
+                            if (status.getLen() < smallBytes) {
+                                stats.smallFiles++;
+                            }
+                        }
+                    }
+                    startAfter = page.lastName;
+                }
+            } catch (FileNotFoundException ex) {
+                // removed while we were scanning; subdirectories already forked are still joined
+                removed = true;
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+
+            for (ScanTask child : children) {
+                stats.add(child.join());
+            }
+            if (!removed && (depth <= 1 || expected.containsKey(dir))) {
+                recorded.put(dir, stats);
+            }
+            return stats;
+        }
+    }
+
+    /* ListingCall: one listPaths RPC of a directory listing */
+    private interface ListingCall<T> {
+        T call() throws IOException;
+    }
+
+    /*
+     * underPermit: run call holding an inFlight permit. The permit is taken
+     * before managedBlock, so only the permit holders, at most maxInFlight,
+     * can make the pool add compensation threads while their RPC is out.
+     */
+    private <T> T underPermit(final ListingCall<T> call) throws IOException, InterruptedException {
+        final List<T> result = new ArrayList<T>(1);
+        final IOException[] failure = new IOException[1];
+        inFlight.acquire();
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean done = false;
+
+                public boolean block() {
+                    try {
+                        result.add(call.call());
+                    } catch (IOException ex) {
+                        failure[0] = ex;
+                    }
+                    done = true;
+                    return true;
+                }
+
+                public boolean isReleasable() {
+                    return done;
+                }
+            });
+        } finally {
+            inFlight.release();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return result.get(0);
+    }
+
+    // the page of dir's listing after startAfter; a file system that cannot page lists dir whole
+    private ListingPage fetchPage(final String dir, final byte[] startAfter)
+    throws IOException, InterruptedException {
+        return underPermit(new ListingCall<ListingPage>() {
+            public ListingPage call() throws IOException {
+                if (!(fileSystem instanceof DistributedFileSystem)) {
+                    return new ListingPage(fileSystem.listStatus(new Path(dir)), null);
+                }
+                DirectoryListing listing = ((DistributedFileSystem) fileSystem).getClient()
+                .listPaths(dir, startAfter);
+                if (listing == null) {
+                    throw new FileNotFoundException("Directory " + dir + " does not exist");
+                }
+                HdfsFileStatus[] partial = listing.getPartialListing();
+                FileStatus[] entries = new FileStatus[partial.length];
+                for (int i = 0; i < partial.length; ++i) {
+                    entries[i] = partial[i].makeQualified(fileSystem.getUri(), new Path(dir));
+                }
+                return new ListingPage(entries, listing.hasMore() ? listing.getLastName() : null);
+            }
+        });
+    }
+
+    private boolean isTopLevel(String dir) {
+        if (dir.equals(root)) {
+            return false;
+        }
+        String rest = dir.substring(root.length());
+        if (rest.startsWith("/")) {
+            rest = rest.substring(1);
+        }
+        return rest.indexOf('/') < 0;
+    }
+
+    private static void readManifest(String file, Map<String, Long> expected) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length >= 2 && !fields[0].startsWith("#")) {
+                    expected.put(normalize(fields[0]), Long.parseLong(fields[1]));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    // drop any trailing slash so "/read/" and "/read" name the same directory
+    private static String normalize(String dir) {
+        return dir.length() > 1 && dir.endsWith("/") ? dir.substring(0, dir.length() - 1) : dir;
+    }
+}
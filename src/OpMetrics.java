@@ -0,0 +1,127 @@
+/**
+ * OpMetrics.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Per-operation latency histograms shared by a pool of HdfsClient threads,
+ * with counts of retried, refused and failed requests alongside them.
+ */
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OpMetrics {
+    private final ConcurrentHashMap<String, LatencyHistogram> byOp =
+    new ConcurrentHashMap<String, LatencyHistogram>();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final ConcurrentHashMap<String, AtomicLong> retries = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, AtomicLong> refused = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, AtomicLong> failures = new ConcurrentHashMap<String, AtomicLong>();
+
+    /* record: add a completed request of type op that took nanos */
+    public void record(String op, long nanos) {
+        LatencyHistogram hist = byOp.get(op);
+        if (hist == null) {
+            byOp.putIfAbsent(op, new LatencyHistogram());
+            hist = byOp.get(op);
+        }
+        hist.record(nanos);
+        total.record(nanos);
+    }
+
+    /* recordRetry: a request of type op failed and is being attempted again */
+    public void recordRetry(String op) {
+        increment(retries, op);
+    }
+
+    /* recordFailure: a request of type op was given up on; refused ones were turned down by the NameNode */
+    public void recordFailure(String op, HdfsClient.ErrorClass kind) {
+        increment(kind == HdfsClient.ErrorClass.REFUSED ? refused : failures, op);
+    }
+
+    /* getSuccesses: requests of all types that completed */
+    public long getSuccesses() {
+        return total.getCount();
+    }
+
+    /* getFailures: requests of all types given up on, refused or otherwise */
+    public long getFailures() {
+        return sum(refused) + sum(failures);
+    }
+
+    public long getRefused() {
+        return sum(refused);
+    }
+
+    public long getRetries() {
+        return sum(retries);
+    }
+
+    /* getTotal: latencies of all operations combined */
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    /* get: latencies of one operation type (empty if none recorded) */
+    public LatencyHistogram get(String op) {
+        LatencyHistogram hist = byOp.get(op);
+        return hist == null ? new LatencyHistogram() : hist;
+    }
+
+    /* getOps: recorded operation types in sorted order */
+    public Map<String, LatencyHistogram> getOps() {
+        return new TreeMap<String, LatencyHistogram>(byOp);
+    }
+
+    public void reset() {
+        byOp.clear();
+        total.reset();
+        retries.clear();
+        refused.clear();
+        failures.clear();
+    }
+
+    /*
+     * print: one CSV line per operation:
+     * op,count,ops/sec,mean,p50,p99,max (ms),refused,failed,retries
+     * where count and the latencies cover completed requests only
+     */
+    public void print(PrintStream out, String prefix, double seconds) {
+        TreeSet<String> ops = new TreeSet<String>(byOp.keySet());
+        ops.addAll(refused.keySet());
+        ops.addAll(failures.keySet());
+        for (String op : ops) {
+            LatencyHistogram hist = get(op);
+            out.println(prefix + op + "," + hist.getCount() + "," +
+            String.format("%.4f,%.3f,%.3f,%.3f,%.3f",
+            seconds > 0 ? hist.getCount() / seconds : 0.0, hist.getMeanMs(),
+            hist.getPercentileMs(50), hist.getPercentileMs(99), hist.getMaxMs()) + "," +
+            count(refused, op) + "," + count(failures, op) + "," + count(retries, op));
+        }
+    }
+
+    private static void increment(ConcurrentHashMap<String, AtomicLong> counts, String op) {
+        AtomicLong count = counts.get(op);
+        if (count == null) {
+            counts.putIfAbsent(op, new AtomicLong());
+            count = counts.get(op);
+        }
+        count.incrementAndGet();
+    }
+
+    private static long count(ConcurrentHashMap<String, AtomicLong> counts, String op) {
+        AtomicLong count = counts.get(op);
+        return count == null ? 0 : count.get();
+    }
+
+    private static long sum(ConcurrentHashMap<String, AtomicLong> counts) {
+        long total = 0;
+        for (AtomicLong count : counts.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+}
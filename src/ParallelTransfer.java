@@ -0,0 +1,272 @@
+/**
+ * ParallelTransfer.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Multi-stream copies of large files between HDFS and the local disk.
+ * Downloads split the file at block boundaries and read the ranges with
+ * positional reads on several streams, writing each range straight to its
+ * offset in a preallocated local file. Uploads read the local file on
+ * several threads and hand the chunks, in order, to the single HDFS writer
+ * a file allows.
+ * Usage: ParallelTransfer <get|put> <src> <dest> <streams>...
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+public class ParallelTransfer {
+    private static final int BUFFER_BYTES = 1 << 20;        // per positional read / local write
+    private static final int CHUNK_BYTES = 4 << 20;         // upload staging unit
+    private static final int STAGED_PER_STREAM = 2;         // upload chunks read ahead of the writer, per stream
+
+    /* Stats: bytes and busy time per stream, plus the wall-clock time of the whole transfer */
+    public static class Stats {
+        public final long bytes;
+        public final double seconds;
+        public final List<long[]> streams;      // {bytes, nanos} per stream; for uploads the last is the writer
+
+        Stats(long bytes, double seconds, List<long[]> streams) {
+            this.bytes = bytes;
+            this.seconds = seconds;
+            this.streams = streams;
+        }
+
+        /* print: CSV lines aggregate,bytes,seconds,MB/s then stream,<i>,bytes,MB/s */
+        public void print(PrintStream out, String prefix) {
+            out.println(prefix + "aggregate," + bytes + "," +
+            String.format("%.4f,%.3f", seconds, mbPerSec(bytes, seconds * 1e9)));
+            for (int i = 0; i < streams.size(); ++i) {
+                long[] stream = streams.get(i);
+                out.println(prefix + "stream," + i + "," + stream[0] + "," +
+                String.format("%.3f", mbPerSec(stream[0], stream[1])));
+            }
+        }
+
+        private static double mbPerSec(long bytes, double nanos) {
+            return nanos <= 0 ? 0.0 : bytes / (double) (1 << 20) / (nanos / 1e9);
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 4 || !(args[0].equals("get") || args[0].equals("put"))) {
+            System.err.println("Usage: ParallelTransfer <get|put> <src> <dest> <streams>...");
+            System.exit(1);
+        }
+        try {
+            FileSystem fileSystem = FileSystem.newInstance(HdfsClient.newConfiguration());
+            for (int a = 3; a < args.length; ++a) {
+                int numStreams = Integer.parseInt(args[a]);
+                System.err.println("(1) " + args[0] + " " + args[1] + " with " + numStreams + " streams");
+                Stats stats;
+                if (args[0].equals("get")) {
+                    stats = download(fileSystem, new Path(args[1]), new File(args[2]), numStreams);
+                } else {
+                    fileSystem.delete(new Path(args[2]), false);
+                    stats = upload(fileSystem, new File(args[1]), new Path(args[2]), numStreams,
+                    new WriteOptions());
+                }
+                // streams,kind,...
+                stats.print(System.out, numStreams + ",");
+            }
+            fileSystem.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /* download: copy src to the local file dest over numStreams concurrent positional readers */
+    public static Stats download(final FileSystem fileSystem, final Path src, File dest, int numStreams)
+    throws IOException {
+        long startNanos = System.nanoTime();
+        FileStatus status = fileSystem.getFileStatus(src);
+        final ConcurrentLinkedQueue<long[]> ranges = new ConcurrentLinkedQueue<long[]>();
+        for (long[] range : splitRanges(fileSystem.getFileBlockLocations(status, 0, status.getLen()),
+        status.getLen(), numStreams)) {
+            ranges.offer(range);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(dest, "rw");
+        try {
+            file.setLength(status.getLen());
+            final FileChannel channel = file.getChannel();
+            List<Callable<long[]>> streams = new ArrayList<Callable<long[]>>();
+            for (int i = 0; i < numStreams; ++i) {
+                streams.add(new Callable<long[]>() {
+                    // pull ranges until none are left; each stream has its own HDFS input stream
+                    public long[] call() throws IOException {
+                        long streamStart = System.nanoTime();
+                        long bytes = 0;
+                        byte[] buf = new byte[BUFFER_BYTES];
+                        FSDataInputStream in = fileSystem.open(src);
+                        try {
+                            long[] range;
+                            while ((range = ranges.poll()) != null) {
+                                long pos = range[0];
+                                long end = range[0] + range[1];
+                                while (pos < end) {
+                                    int len = (int) Math.min(buf.length, end - pos);
+                                    in.readFully(pos, buf, 0, len);
+                                    ByteBuffer out = ByteBuffer.wrap(buf, 0, len);
+                                    long at = pos;
+                                    while (out.hasRemaining()) {
+                                        at += channel.write(out, at);
+                                    }
+                                    pos += len;
+                                    bytes += len;
+                                }
+                            }
+                        } finally {
+                            in.close();
+                        }
+                        return new long[] {bytes, System.nanoTime() - streamStart};
+                    }
+                });
+            }
+            List<long[]> streamStats = runAll(streams);
+            return new Stats(status.getLen(), (System.nanoTime() - startNanos) / 1e9, streamStats);
+        } finally {
+            file.close();
+        }
+    }
+
+    /*
+     * upload: copy the local file src to dest. numStreams threads read chunks
+     * ahead of the writer, at most STAGED_PER_STREAM each, and this thread
+     * writes them in order.
+     */
+    public static Stats upload(FileSystem fileSystem, File src, Path dest, int numStreams, WriteOptions options)
+    throws IOException {
+        long startNanos = System.nanoTime();
+        RandomAccessFile file = new RandomAccessFile(src, "r");
+        ExecutorService pool = Executors.newFixedThreadPool(numStreams);
+        final long[][] readerStats = new long[numStreams][2];
+        long writeNanos = 0;
+        long length = file.length();
+        try {
+            final FileChannel channel = file.getChannel();
+            long numChunks = (length + CHUNK_BYTES - 1) / CHUNK_BYTES;
+            int maxStaged = numStreams * STAGED_PER_STREAM;
+            List<Future<ByteBuffer>> staged = new ArrayList<Future<ByteBuffer>>();
+            long submitted = 0;
+
+            FSDataOutputStream out = options.create(fileSystem, dest);
+            try {
+                for (long chunk = 0; chunk < numChunks; ++chunk) {
+                    while (submitted < numChunks && submitted < chunk + maxStaged) {
+                        final long offset = submitted * CHUNK_BYTES;
+                        final int len = (int) Math.min(CHUNK_BYTES, length - offset);
+                        final int reader = (int) (submitted % numStreams);
+                        staged.add(pool.submit(new Callable<ByteBuffer>() {
+                            public ByteBuffer call() throws IOException {
+                                long readStart = System.nanoTime();
+                                ByteBuffer buf = ByteBuffer.allocate(len);
+                                while (buf.hasRemaining()) {
+                                    if (channel.read(buf, offset + buf.position()) < 0) {
+                                        throw new IOException("Local file shrank during upload");
+                                    }
+                                }
+                                buf.flip();
+                                synchronized (readerStats) {
+                                    readerStats[reader][0] += len;
+                                    readerStats[reader][1] += System.nanoTime() - readStart;
+                                }
+                                return buf;
+                            }
+                        }));
+                        submitted++;
+                    }
+                    ByteBuffer buf = staged.set((int) chunk, null).get();
+                    long writeStart = System.nanoTime();
+                    out.write(buf.array(), 0, buf.limit());
+                    writeNanos += System.nanoTime() - writeStart;
+                }
+            } catch (InterruptedException ex) {
+                throw new IOException("Interrupted uploading " + src, ex);
+            } catch (ExecutionException ex) {
+                throw new IOException("Failed reading " + src, ex.getCause());
+            } finally {
+                out.close();
+            }
+        } finally {
+            pool.shutdownNow();
+            file.close();
+        }
+
+        List<long[]> streamStats = new ArrayList<long[]>();
+        synchronized (readerStats) {
+            for (long[] reader : readerStats) {
+                streamStats.add(reader.clone());
+            }
+        }
+        streamStats.add(new long[] {length, writeNanos});
+        return new Stats(length, (System.nanoTime() - startNanos) / 1e9, streamStats);
+    }
+
+    // byte ranges at block boundaries, halved until there are at least numStreams of them
+    // (or they reach BUFFER_BYTES) so small-block-count files still use every stream
+    private static List<long[]> splitRanges(BlockLocation[] blocks, long length, int numStreams) {
+        List<long[]> ranges = new ArrayList<long[]>();
+        for (BlockLocation block : blocks) {
+            ranges.add(new long[] {block.getOffset(), block.getLength()});
+        }
+        if (ranges.isEmpty() && length > 0) {
+            ranges.add(new long[] {0, length});
+        }
+        while (ranges.size() < numStreams) {
+            List<long[]> halves = new ArrayList<long[]>();
+            boolean split = false;
+            for (long[] range : ranges) {
+                if (range[1] >= 2 * BUFFER_BYTES) {
+                    long half = range[1] / 2;
+                    halves.add(new long[] {range[0], half});
+                    halves.add(new long[] {range[0] + half, range[1] - half});
+                    split = true;
+                } else {
+                    halves.add(range);
+                }
+            }
+            ranges = halves;
+            if (!split) {
+                break;
+            }
+        }
+        return ranges;
+    }
+
+    private static List<long[]> runAll(List<Callable<long[]>> streams) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(streams.size());
+        try {
+            List<long[]> results = new ArrayList<long[]>();
+            for (Future<long[]> result : pool.invokeAll(streams)) {
+                results.add(result.get());
+            }
+            return results;
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted during transfer", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Transfer stream failed", ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
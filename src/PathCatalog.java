@@ -0,0 +1,290 @@
+/**
+ * PathCatalog.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Compact set of paths for drivers that track millions of created files.
+ * Directory prefixes are interned once; each path is stored as a directory
+ * id plus the UTF-8 bytes of its last component in one shared byte array,
+ * indexed by an open-addressing hash table of ints. Supports O(1) add,
+ * contains, remove and random sampling, and iteration in insertion order
+ * (until the first remove). Not thread-safe.
+ */
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+public class PathCatalog implements Iterable<String> {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final HashMap<String, Integer> dirIds = new HashMap<String, Integer>();
+    private final ArrayList<String> dirNames = new ArrayList<String>();
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY * 16];    // leaf names, back to back
+    private int bytesUsed = 0;
+    private int bytesWasted = 0;                                // bytes of removed leaves
+    private int[] start = new int[INITIAL_CAPACITY];            // offset of entry i's leaf in bytes
+    private int[] length = new int[INITIAL_CAPACITY];           // length of entry i's leaf
+    private int[] dir = new int[INITIAL_CAPACITY];              // directory id of entry i
+    private int size = 0;
+    private int[] table = new int[INITIAL_CAPACITY * 2];        // entry index + 1, 0 if empty
+
+    /* add: insert path, returning false if it was already present */
+    public boolean add(String path) {
+        int slash = path.lastIndexOf('/');
+        int dirId = internDir(path.substring(0, slash + 1));
+        byte[] leaf = path.substring(slash + 1).getBytes(UTF8);
+        if (find(dirId, leaf) >= 0) {
+            return false;
+        }
+
+        if (size == start.length) {
+            growEntries();
+        }
+        if ((size + 1) * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        if (bytesUsed + leaf.length > bytes.length) {
+            growBytes(leaf.length);
+        }
+
+        System.arraycopy(leaf, 0, bytes, bytesUsed, leaf.length);
+        start[size] = bytesUsed;
+        length[size] = leaf.length;
+        dir[size] = dirId;
+        bytesUsed += leaf.length;
+        insert(size, hash(dirId, leaf, 0, leaf.length));
+        size++;
+        return true;
+    }
+
+    /* offer: add, for drivers written against Queue */
+    public boolean offer(String path) {
+        add(path);
+        return true;
+    }
+
+    public boolean contains(String path) {
+        int slash = path.lastIndexOf('/');
+        Integer dirId = dirIds.get(path.substring(0, slash + 1));
+        if (dirId == null) {
+            return false;
+        }
+        return find(dirId, path.substring(slash + 1).getBytes(UTF8)) >= 0;
+    }
+
+    /* remove: delete path in O(1) by moving the last entry into its place */
+    public boolean remove(String path) {
+        int slash = path.lastIndexOf('/');
+        Integer dirId = dirIds.get(path.substring(0, slash + 1));
+        if (dirId == null) {
+            return false;
+        }
+        byte[] leaf = path.substring(slash + 1).getBytes(UTF8);
+        int slot = findSlot(dirId, leaf);
+        if (slot < 0) {
+            return false;
+        }
+        int index = table[slot] - 1;
+        deleteSlot(slot);
+        bytesWasted += length[index];
+
+        int last = size - 1;
+        if (index != last) {
+            int lastSlot = findSlot(dir[last], bytes, start[last], length[last]);
+            table[lastSlot] = index + 1;
+            start[index] = start[last];
+            length[index] = length[last];
+            dir[index] = dir[last];
+        }
+        size--;
+        if (bytesWasted > bytesUsed / 2 && bytesWasted > INITIAL_CAPACITY) {
+            compact();
+        }
+        return true;
+    }
+
+    /* get: the i-th path, 0 <= i < size() */
+    public String get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("index " + i + ", size " + size);
+        }
+        return dirNames.get(dir[i]) + new String(bytes, start[i], length[i], UTF8);
+    }
+
+    /* sample: a uniformly random path, or null if empty */
+    public String sample(Random rand) {
+        return size == 0 ? null : get(rand.nextInt(size));
+    }
+
+    /* removeRandom: remove and return a uniformly random path, or null if empty */
+    public String removeRandom(Random rand) {
+        String path = sample(rand);
+        if (path != null) {
+            remove(path);
+        }
+        return path;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /* clear: forget all paths, keeping the allocated arrays for reuse */
+    public void clear() {
+        size = 0;
+        bytesUsed = 0;
+        bytesWasted = 0;
+        Arrays.fill(table, 0);
+        dirIds.clear();
+        dirNames.clear();
+    }
+
+    /* getFootprint: approximate bytes held by the catalog's arrays */
+    public long getFootprint() {
+        return bytes.length + 4L * (start.length + length.length + dir.length + table.length);
+    }
+
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            public String next() {
+                if (next >= size) {
+                    throw new NoSuchElementException();
+                }
+                return get(next++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private int internDir(String prefix) {
+        Integer id = dirIds.get(prefix);
+        if (id == null) {
+            id = dirNames.size();
+            dirIds.put(prefix, id);
+            dirNames.add(prefix);
+        }
+        return id;
+    }
+
+    private int find(int dirId, byte[] leaf) {
+        int slot = findSlot(dirId, leaf);
+        return slot < 0 ? -1 : table[slot] - 1;
+    }
+
+    private int findSlot(int dirId, byte[] leaf) {
+        return findSlot(dirId, leaf, 0, leaf.length);
+    }
+
+    // linear probe for the table slot holding (dirId, leaf), -1 if absent
+    private int findSlot(int dirId, byte[] src, int off, int len) {
+        int mask = table.length - 1;
+        int slot = hash(dirId, src, off, len) & mask;
+        while (table[slot] != 0) {
+            int i = table[slot] - 1;
+            if (dir[i] == dirId && equalsLeaf(i, src, off, len)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean equalsLeaf(int i, byte[] src, int off, int len) {
+        if (length[i] != len) {
+            return false;
+        }
+        int s = start[i];
+        for (int k = 0; k < len; ++k) {
+            if (bytes[s + k] != src[off + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(int index, int hash) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    // backward-shift deletion keeps probe sequences intact without tombstones
+    private void deleteSlot(int slot) {
+        int mask = table.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (table[next] != 0) {
+            int i = table[next] - 1;
+            int home = hash(dir[i], bytes, start[i], length[i]) & mask;
+            // move the entry back if the hole lies on its probe path
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole] = 0;
+    }
+
+    private static int hash(int dirId, byte[] src, int off, int len) {
+        int h = 0x811c9dc5 ^ dirId;
+        for (int k = 0; k < len; ++k) {
+            h = (h ^ src[off + k]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        for (int i = 0; i < size; ++i) {
+            insert(i, hash(dir[i], bytes, start[i], length[i]));
+        }
+    }
+
+    private void growEntries() {
+        int capacity = start.length * 2;
+        start = Arrays.copyOf(start, capacity);
+        length = Arrays.copyOf(length, capacity);
+        dir = Arrays.copyOf(dir, capacity);
+    }
+
+    private void growBytes(int needed) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, bytesUsed + needed));
+    }
+
+    // rewrite live leaves contiguously, dropping bytes of removed entries
+    private void compact() {
+        byte[] packed = new byte[bytes.length];
+        int used = 0;
+        for (int i = 0; i < size; ++i) {
+            System.arraycopy(bytes, start[i], packed, used, length[i]);
+            start[i] = used;
+            used += length[i];
+        }
+        bytes = packed;
+        bytesUsed = used;
+        bytesWasted = 0;
+    }
+}
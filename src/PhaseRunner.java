@@ -0,0 +1,72 @@
+/**
+ * PhaseRunner.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Carries out one phase of a trial (a list of requests) to completion on a
+ * pool of HdfsClient workers. ThroughputTest and MetadataSizeTest describe
+ * their trials as phases so the same trial code runs from their own main()
+ * and from LoadDaemon. This class starts fresh terminating clients for
+ * each phase, as the drivers always have; LoadDaemon overrides run to use
+ * its warm pool instead.
+ */
+
+import java.lang.InterruptedException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+public class PhaseRunner {
+    private final int numThreads;
+    private final LinkedList<String> requestQ = new LinkedList<String>();
+    private SmallFileCache contentCache = null;
+
+    /* PhaseRunner: run each phase on numThreads clients */
+    public PhaseRunner(final int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /* getRequestQ: the queue the clients of every phase poll */
+    public Queue<String> getRequestQ() {
+        return requestQ;
+    }
+
+    /* setContentCache: serve repeated reads from cache */
+    public void setContentCache(final SmallFileCache contentCache) {
+        this.contentCache = contentCache;
+    }
+
+    /*
+     * run: carry out requests, recording their latencies in metrics unless
+     * it is null. phase names the step for progress reports. Returns the
+     * elapsed seconds, or -1 if the runner was stopped before they finished.
+     */
+    public double run(String phase, List<String> requests, OpMetrics metrics) {
+        synchronized (requestQ) {
+            requestQ.addAll(requests);
+            requestQ.notifyAll();
+        }
+        Thread[] threadPool = new Thread[numThreads];
+        for (int j = 0; j < numThreads; ++j) {
+            HdfsClient client = new HdfsClient(requestQ);
+            client.setContentCache(contentCache);
+            client.setMetrics(metrics);
+            threadPool[j] = new Thread(client);
+            threadPool[j].start();
+        }
+        Long startTime = System.currentTimeMillis();
+
+        for (int j = 0; j < numThreads; ++j) {
+            try {
+                threadPool[j].join();
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+        Long endTime = System.currentTimeMillis();
+        return 1.0 * (endTime - startTime) / 1000;
+    }
+}
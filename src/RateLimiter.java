@@ -0,0 +1,74 @@
+/**
+ * RateLimiter.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Token bucket shared by any number of threads. Permits accrue at a fixed
+ * rate up to a burst of BURST_SECONDS worth; acquire reserves a permit and
+ * sleeps until it is due, so callers are paced to the rate on average.
+ * A rate of zero or less means unlimited.
+ */
+
+public class RateLimiter {
+    private static final double BURST_SECONDS = 0.1;
+
+    private double permitsPerSecond;
+    private double nanosPerPermit;
+    private double burst;           // most permits that can accumulate while idle
+    private double tokens;          // negative when permits are reserved ahead of time
+    private long lastNanos;
+
+    public RateLimiter(double permitsPerSecond) {
+        lastNanos = System.nanoTime();
+        setRate(permitsPerSecond);
+        tokens = burst;
+    }
+
+    /* setRate: change the rate, keeping the permits already accrued or reserved */
+    public synchronized void setRate(double permitsPerSecond) {
+        refill(System.nanoTime());
+        this.permitsPerSecond = permitsPerSecond;
+        this.nanosPerPermit = permitsPerSecond > 0 ? 1e9 / permitsPerSecond : 0;
+        this.burst = Math.max(1.0, permitsPerSecond * BURST_SECONDS);
+        tokens = Math.min(tokens, burst);
+    }
+
+    public synchronized double getRate() {
+        return permitsPerSecond;
+    }
+
+    /* acquire: block until one permit is available */
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            if (permitsPerSecond <= 0) {
+                return;
+            }
+            refill(System.nanoTime());
+            tokens -= 1;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens * nanosPerPermit);
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+
+    /* tryAcquire: take a permit if one is available now, without waiting */
+    public synchronized boolean tryAcquire() {
+        if (permitsPerSecond <= 0) {
+            return true;
+        }
+        refill(System.nanoTime());
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    private void refill(long now) {
+        if (nanosPerPermit > 0) {
+            tokens = Math.min(burst, tokens + (now - lastNanos) / nanosPerPermit);
+        }
+        lastNanos = now;
+    }
+}
@@ -0,0 +1,464 @@
+/**
+ * ResultsStore.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Persistent record of one driver run: its configuration, environment
+ * (Hadoop version, NameNode and client heap, processors, thread counts) and every
+ * measured row, saved as a compact columnar file next to the stdout CSV.
+ * Rows belong to a series (e.g. "trial", or an operation name) and carry
+ * named numeric columns. Two runs, or a run and its stored baseline, are
+ * compared series by series with t-tests; throughput drops and p99 rises
+ * that are significant and larger than a threshold are flagged. Series
+ * with a single row (one per sweep point) are also tested together.
+ * Usage: ResultsStore show <run>
+ *        ResultsStore baseline <run>
+ *        ResultsStore compare [<baseline_run>] <run> [threshold_pct]
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.math3.stat.inference.TTest;
+import org.apache.hadoop.util.VersionInfo;
+
+public class ResultsStore {
+    public static final String DEFAULT_DIR = "results";
+    private static final int MAGIC = 0x48524553;            // "HRES"
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".res";
+    private static final String BASELINE_SUFFIX = ".baseline" + SUFFIX;
+    private static final double ALPHA = 0.05;               // significance level for flagging
+    private static final double DEFAULT_THRESHOLD_PCT = 5.0;
+
+    private final String name;
+    private final long startMillis;
+    private final TreeMap<String, String> properties = new TreeMap<String, String>();
+    private final List<String> series = new ArrayList<String>();    // series of each row
+    private final LinkedHashMap<String, double[]> columns = new LinkedHashMap<String, double[]>();
+    private File file = null;
+
+    /* ResultsStore: a new run of the named driver, saved under dir, with the environment captured */
+    public ResultsStore(String name, String dir) {
+        this(name, System.currentTimeMillis());
+        file = new File(dir, name + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date(startMillis)) +
+        SUFFIX);
+        captureEnvironment();
+        setNameNode(NameNodeMetrics.fromConfiguration(HdfsClient.newConfiguration()));
+    }
+
+    private ResultsStore(String name, long startMillis) {
+        this.name = name;
+        this.startMillis = startMillis;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /* setConfig: record a configuration value (thread counts, trial sizes, command-line options) */
+    public void setConfig(String key, Object value) {
+        properties.put("config." + key, String.valueOf(value));
+    }
+
+    /* setProperty: record a raw property, e.g. progress saved with the rows it describes */
+    public void setProperty(String key, String value) {
+        properties.put(key, value);
+    }
+
+    /* getProperty: a recorded property, or null */
+    public String getProperty(String key) {
+        return properties.get(key);
+    }
+
+    /*
+     * setNameNode: record the heap and namespace size of the NameNode under
+     * test, replacing the one found from the client configuration. Drivers
+     * given a NameNode web address call this with it.
+     */
+    public void setNameNode(NameNodeMetrics nameNode) {
+        properties.put("env.namenode.address", nameNode.getHttpAddress());
+        properties.remove("env.namenode.heap.max");
+        properties.remove("env.namenode.old_gen.max");
+        properties.remove("env.namenode.files_total");
+        long heapMax = nameNode.getHeapMax();
+        if (heapMax < 0) {
+            return;     // unreachable; don't wait out the other reads too
+        }
+        properties.put("env.namenode.heap.max", Long.toString(heapMax));
+        properties.put("env.namenode.old_gen.max", Long.toString(nameNode.getOldGenMax()));
+        properties.put("env.namenode.files_total", Long.toString(nameNode.getFilesTotal()));
+    }
+
+    /* addRow: start a row in series, returning its index for set */
+    public int addRow(String seriesName) {
+        series.add(seriesName);
+        int numRows = series.size();
+        for (Map.Entry<String, double[]> entry : columns.entrySet()) {
+            entry.setValue(grow(entry.getValue(), numRows));
+        }
+        return numRows - 1;
+    }
+
+    /* set: a column of one row; rows without a value for a column read as NaN */
+    public void set(int row, String column, double value) {
+        double[] values = columns.get(column);
+        if (values == null) {
+            values = grow(new double[0], series.size());
+            columns.put(column, values);
+        }
+        values[row] = value;
+    }
+
+    /* addMetrics: one row per operation in metrics, in series prefix + op */
+    public void addMetrics(String prefix, OpMetrics metrics, double seconds) {
+        for (Map.Entry<String, LatencyHistogram> entry : metrics.getOps().entrySet()) {
+            LatencyHistogram hist = entry.getValue();
+            int row = addRow(prefix + entry.getKey());
+            set(row, "count", hist.getCount());
+            set(row, "ops_sec", seconds > 0 ? hist.getCount() / seconds : 0.0);
+            set(row, "mean_ms", hist.getMeanMs());
+            set(row, "p50_ms", hist.getPercentileMs(50));
+            set(row, "p99_ms", hist.getPercentileMs(99));
+            set(row, "max_ms", hist.getMaxMs());
+        }
+    }
+
+    // pad with NaN so every column has a value per row
+    private static double[] grow(double[] values, int numRows) {
+        if (values.length >= numRows) {
+            return values;
+        }
+        double[] grown = Arrays.copyOf(values, Math.max(numRows, values.length * 2));
+        Arrays.fill(grown, values.length, grown.length, Double.NaN);
+        return grown;
+    }
+
+    // hadoop version, client JVM and host; config.* keys are added by the driver
+    private void captureEnvironment() {
+        Runtime runtime = Runtime.getRuntime();
+        properties.put("env.hadoop.version", VersionInfo.getVersion());
+        properties.put("env.hadoop.revision", VersionInfo.getRevision());
+        properties.put("env.java.version", System.getProperty("java.version"));
+        properties.put("env.os", System.getProperty("os.name") + " " + System.getProperty("os.version"));
+        properties.put("env.client.heap.max", Long.toString(runtime.maxMemory()));
+        properties.put("env.processors", Integer.toString(runtime.availableProcessors()));
+        try {
+            properties.put("env.host", InetAddress.getLocalHost().getHostName());
+        } catch (IOException ex) {
+            properties.put("env.host", "unknown");
+        }
+    }
+
+    /*
+     * save: (re)write the run file, so a run that dies part way keeps its
+     * completed trials. Layout, gzipped: magic, version, name, start time,
+     * properties, row count, dictionary-encoded series column, then each
+     * numeric column stored contiguously.
+     */
+    public void save() throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new GZIPOutputStream(new FileOutputStream(tmp))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(name);
+            out.writeLong(startMillis);
+            out.writeInt(properties.size());
+            for (Map.Entry<String, String> entry : properties.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+
+            int numRows = series.size();
+            out.writeInt(numRows);
+            List<String> dictionary = new ArrayList<String>();
+            LinkedHashMap<String, Integer> codes = new LinkedHashMap<String, Integer>();
+            int[] seriesCodes = new int[numRows];
+            for (int i = 0; i < numRows; ++i) {
+                Integer code = codes.get(series.get(i));
+                if (code == null) {
+                    code = dictionary.size();
+                    codes.put(series.get(i), code);
+                    dictionary.add(series.get(i));
+                }
+                seriesCodes[i] = code;
+            }
+            out.writeInt(dictionary.size());
+            for (String entry : dictionary) {
+                out.writeUTF(entry);
+            }
+            for (int code : seriesCodes) {
+                out.writeInt(code);
+            }
+
+            out.writeInt(columns.size());
+            for (Map.Entry<String, double[]> entry : columns.entrySet()) {
+                out.writeUTF(entry.getKey());
+                double[] values = entry.getValue();
+                for (int i = 0; i < numRows; ++i) {
+                    out.writeDouble(values[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+        }
+    }
+
+    /* load: read a run saved by save */
+    public static ResultsStore load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new GZIPInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a results file");
+            }
+            ResultsStore run = new ResultsStore(in.readUTF(), in.readLong());
+            run.file = file;
+            int numProperties = in.readInt();
+            for (int i = 0; i < numProperties; ++i) {
+                run.properties.put(in.readUTF(), in.readUTF());
+            }
+
+            int numRows = in.readInt();
+            String[] dictionary = new String[in.readInt()];
+            for (int i = 0; i < dictionary.length; ++i) {
+                dictionary[i] = in.readUTF();
+            }
+            for (int i = 0; i < numRows; ++i) {
+                run.series.add(dictionary[in.readInt()]);
+            }
+
+            int numColumns = in.readInt();
+            for (int c = 0; c < numColumns; ++c) {
+                String column = in.readUTF();
+                double[] values = new double[numRows];
+                for (int i = 0; i < numRows; ++i) {
+                    values[i] = in.readDouble();
+                }
+                run.columns.put(column, values);
+            }
+            return run;
+        } finally {
+            in.close();
+        }
+    }
+
+    /* print: properties, then the rows as CSV with a header */
+    public void print(PrintStream out) {
+        out.println("name," + name);
+        out.println("start," + new Date(startMillis));
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            out.println(entry.getKey() + "," + entry.getValue());
+        }
+        StringBuilder header = new StringBuilder("series");
+        for (String column : columns.keySet()) {
+            header.append(',').append(column);
+        }
+        out.println(header);
+        for (int i = 0; i < series.size(); ++i) {
+            StringBuilder row = new StringBuilder(series.get(i));
+            for (double[] values : columns.values()) {
+                row.append(',').append(Double.isNaN(values[i]) ? "" : String.format("%.4f", values[i]));
+            }
+            out.println(row);
+        }
+    }
+
+    // values of column for the rows in seriesName, skipping NaNs
+    private double[] sample(String seriesName, String column) {
+        double[] values = columns.get(column);
+        if (values == null) {
+            return new double[0];
+        }
+        double[] sample = new double[series.size()];
+        int n = 0;
+        for (int i = 0; i < series.size(); ++i) {
+            if (series.get(i).equals(seriesName) && !Double.isNaN(values[i])) {
+                sample[n++] = values[i];
+            }
+        }
+        return Arrays.copyOf(sample, n);
+    }
+
+    // throughput columns regress downward, latency and failure columns upward
+    private static boolean lowerIsBetter(String column) {
+        return column.endsWith("_ms") || column.contains("p99") || column.contains("fail") ||
+        column.contains("refused") || column.contains("retries") || column.contains("heap") ||
+        column.contains("dropped");
+    }
+
+    // the columns compare flags; the rest are reported but never fail a comparison
+    private static boolean isWatched(String column) {
+        return column.contains("p99") || column.contains("xput") || column.contains("ops_sec") ||
+        column.contains("throughput");
+    }
+
+    /*
+     * compare: one CSV line per series and column present in both runs:
+     * series,column,base_mean,run_mean,change_pct,test,p_value,verdict
+     * The test is paired when both runs have the same number of rows in the
+     * series (same trials), Welch's otherwise. A series with one row in
+     * either run has no test of its own; instead the single-row series of a
+     * column are taken together as sweep points, and their relative changes
+     * are tested against zero on a "sweep" line. Returns the regression count.
+     */
+    public static int compare(ResultsStore base, ResultsStore run, double thresholdPct, PrintStream out) {
+        TTest tTest = new TTest();
+        List<String> seriesNames = new ArrayList<String>();
+        for (String seriesName : run.series) {
+            if (!seriesNames.contains(seriesName) && base.series.contains(seriesName)) {
+                seriesNames.add(seriesName);
+            }
+        }
+
+        int regressions = 0;
+        for (String column : run.columns.keySet()) {
+            double[] pointChanges = new double[seriesNames.size()];
+            double[] pointsBefore = new double[seriesNames.size()];
+            double[] pointsAfter = new double[seriesNames.size()];
+            int numPoints = 0;
+            for (String seriesName : seriesNames) {
+                double[] before = base.sample(seriesName, column);
+                double[] after = run.sample(seriesName, column);
+                if (before.length == 0 || after.length == 0) {
+                    continue;
+                }
+                double meanBefore = mean(before);
+                double meanAfter = mean(after);
+                double changePct = meanBefore == 0 ? 0.0 : 100.0 * (meanAfter - meanBefore) / Math.abs(meanBefore);
+
+                String test = "none";
+                double p = Double.NaN;
+                if (before.length >= 2 && after.length >= 2) {
+                    if (before.length == after.length) {
+                        test = "paired";
+                        p = tTest.pairedTTest(before, after);
+                    } else {
+                        test = "welch";
+                        p = tTest.tTest(before, after);
+                    }
+                } else if (meanBefore != 0) {
+                    pointChanges[numPoints] = changePct;
+                    pointsBefore[numPoints] = meanBefore;
+                    pointsAfter[numPoints] = meanAfter;
+                    numPoints++;
+                }
+                if (printVerdict(out, seriesName, column, meanBefore, meanAfter, changePct, test, p, thresholdPct)) {
+                    regressions++;
+                }
+            }
+
+            // one sweep point is no sample; two or more say whether the column moved as a whole
+            if (numPoints >= 2) {
+                double[] changes = Arrays.copyOf(pointChanges, numPoints);
+                double p = tTest.tTest(0.0, changes);
+                if (printVerdict(out, "sweep", column, mean(Arrays.copyOf(pointsBefore, numPoints)),
+                mean(Arrays.copyOf(pointsAfter, numPoints)), mean(changes), "sweep" + numPoints, p, thresholdPct)) {
+                    regressions++;
+                }
+            }
+        }
+        return regressions;
+    }
+
+    // print one comparison line; true if it is a regression in a watched column
+    private static boolean printVerdict(PrintStream out, String seriesName, String column, double meanBefore,
+    double meanAfter, double changePct, String test, double p, double thresholdPct) {
+        boolean worse = lowerIsBetter(column) ? changePct > thresholdPct : changePct < -thresholdPct;
+        boolean better = lowerIsBetter(column) ? changePct < -thresholdPct : changePct > thresholdPct;
+        boolean significant = !Double.isNaN(p) && p < ALPHA;
+        String verdict = "same";
+        if (significant && worse) {
+            verdict = isWatched(column) ? "REGRESSION" : "worse";
+        } else if (significant && better) {
+            verdict = "improved";
+        } else if (worse || better) {
+            verdict = "noise";
+        }
+        out.println(seriesName + "," + column + "," +
+        String.format("%.4f,%.4f,%.2f", meanBefore, meanAfter, changePct) + "," + test + "," +
+        (Double.isNaN(p) ? "" : String.format("%.4f", p)) + "," + verdict);
+        return verdict.equals("REGRESSION");
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    // stored baseline for runs of the same driver, kept alongside them
+    private static File baselineFile(ResultsStore run) {
+        return new File(run.file.getAbsoluteFile().getParentFile(), run.name + BASELINE_SUFFIX);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: ResultsStore show <run> | baseline <run> | " +
+            "compare [<baseline_run>] <run> [threshold_pct]");
+            System.exit(1);
+        }
+        try {
+            if (args[0].equals("show")) {
+                load(new File(args[1])).print(System.out);
+            } else if (args[0].equals("baseline")) {
+                ResultsStore run = load(new File(args[1]));
+                File baseline = baselineFile(run);
+                run.file = baseline;
+                run.save();
+                System.err.println("Baseline for " + run.name + " is now " + args[1]);
+            } else if (args[0].equals("compare")) {
+                // compare <run>, compare <run> <pct>, compare <base> <run>, compare <base> <run> <pct>
+                boolean twoRuns = args.length >= 3 && new File(args[2]).isFile();
+                ResultsStore run = load(new File(args[twoRuns ? 2 : 1]));
+                ResultsStore base = twoRuns ? load(new File(args[1])) : load(baselineFile(run));
+                int pctArg = twoRuns ? 3 : 2;
+                double thresholdPct = args.length > pctArg ? Double.parseDouble(args[pctArg]) :
+                DEFAULT_THRESHOLD_PCT;
+
+                System.out.println("series,column,base_mean,run_mean,change_pct,test,p_value,verdict");
+                int regressions = compare(base, run, thresholdPct, System.out);
+                System.err.println(regressions + " regressions in " + run.file + " against " + base.file);
+                System.exit(regressions > 0 ? 3 : 0);
+            } else {
+                System.err.println("Unknown command " + args[0]);
+                System.exit(1);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * RetryBudget.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Retry allowance shared by a pool of HdfsClient threads. Every request
+ * earns retryRatio of a token and every retry spends a whole one, so when
+ * the NameNode is struggling the clients together add at most retryRatio
+ * extra load instead of multiplying it. Backoff between attempts is
+ * exponential with full jitter.
+ */
+
+import java.io.PrintStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RetryBudget {
+    private static final long MILLI = 1000;     // tokens are kept in thousandths
+    private static final double DEFAULT_RETRY_RATIO = 0.1;
+    private static final long DEFAULT_MIN_TOKENS = 10;      // retries allowed before any requests have run
+    private static final long DEFAULT_MAX_TOKENS = 1000;
+    private static final int DEFAULT_MAX_RETRIES = 5;       // per request
+    private static final long BASE_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 5000;
+
+    private final long earnPerRequest;
+    private final long maxBalance;
+    private final int maxRetries;
+    private final AtomicLong balance;
+    private final AtomicLong numRetries = new AtomicLong();
+    private final AtomicLong numDenied = new AtomicLong();
+
+    public RetryBudget() {
+        this(DEFAULT_RETRY_RATIO, DEFAULT_MAX_RETRIES);
+    }
+
+    public RetryBudget(double retryRatio, int maxRetries) {
+        this.earnPerRequest = (long) (retryRatio * MILLI);
+        this.maxBalance = DEFAULT_MAX_TOKENS * MILLI;
+        this.maxRetries = maxRetries;
+        this.balance = new AtomicLong(DEFAULT_MIN_TOKENS * MILLI);
+    }
+
+    /* onRequest: credit the budget for a new (first-attempt) request */
+    public void onRequest() {
+        while (true) {
+            long current = balance.get();
+            long next = Math.min(maxBalance, current + earnPerRequest);
+            if (next == current || balance.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /* tryRetry: spend one token for retry number attempt (1-based), false if over budget */
+    public boolean tryRetry(int attempt) {
+        if (attempt > maxRetries) {
+            numDenied.incrementAndGet();
+            return false;
+        }
+        while (true) {
+            long current = balance.get();
+            if (current < MILLI) {
+                numDenied.incrementAndGet();
+                return false;
+            }
+            if (balance.compareAndSet(current, current - MILLI)) {
+                numRetries.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /* backoffMs: full-jitter delay before retry number attempt, uniform in [0, min(max, base * 2^(attempt-1))) */
+    public static long backoffMs(int attempt) {
+        long ceiling = BASE_BACKOFF_MS << Math.min(attempt - 1, 20);
+        return ThreadLocalRandom.current().nextLong(Math.min(MAX_BACKOFF_MS, ceiling) + 1);
+    }
+
+    public long getRetries() {
+        return numRetries.get();
+    }
+
+    public long getDenied() {
+        return numDenied.get();
+    }
+
+    /* print: CSV line retries,denied,tokens_left */
+    public void print(PrintStream out, String prefix) {
+        out.println(prefix + numRetries.get() + "," + numDenied.get() + "," + balance.get() / MILLI);
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * ShardTable.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Client-side mount table spreading one logical namespace over several
+ * NameNodes. Paths under a mount prefix go to that mount's NameNode; all
+ * other directories are placed by consistent hashing, so adding a shard
+ * moves only about 1/n of the directories.
+ *
+ * Table file format, one entry per line ('#' starts a comment):
+ *     shard <name> <fs_uri> [<http_address>]
+ *     mount <path_prefix> <name>
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ShardTable {
+    private static final int VIRTUAL_NODES = 128;   // ring points per shard, smooths the hash split
+
+    private final List<Shard> shards = new ArrayList<Shard>();
+    private final List<String[]> mounts = new ArrayList<String[]>();    // {prefix, shard name}, longest first
+    private final TreeMap<Long, Shard> ring = new TreeMap<Long, Shard>();
+
+    public static class Shard {
+        private final String name;
+        private final URI uri;
+        private final NameNodeMetrics metrics;  // null if no http address was given
+        private final AtomicLong ops = new AtomicLong();
+
+        Shard(String name, URI uri, String httpAddress) {
+            this.name = name;
+            this.uri = uri;
+            this.metrics = httpAddress == null ? null : new NameNodeMetrics(httpAddress);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public URI getUri() {
+            return uri;
+        }
+
+        public NameNodeMetrics getMetrics() {
+            return metrics;
+        }
+
+        public long getOps() {
+            return ops.get();
+        }
+    }
+
+    /* load: parse a shard table file */
+    public static ShardTable load(String file) throws IOException {
+        ShardTable table = new ShardTable();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 3) {
+                    continue;
+                }
+                if (fields[0].equals("shard")) {
+                    table.addShard(fields[1], URI.create(fields[2]), fields.length > 3 ? fields[3] : null);
+                } else if (fields[0].equals("mount")) {
+                    table.addMount(fields[1], fields[2]);
+                } else {
+                    throw new IOException("Bad shard table line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (table.shards.isEmpty()) {
+            throw new IOException("No shards in " + file);
+        }
+        return table;
+    }
+
+    public void addShard(String name, URI uri, String httpAddress) {
+        Shard shard = new Shard(name, uri, httpAddress);
+        shards.add(shard);
+        for (int v = 0; v < VIRTUAL_NODES; ++v) {
+            ring.put(hash(name + "#" + v), shard);
+        }
+    }
+
+    public void addMount(String prefix, String shardName) throws IOException {
+        if (getShard(shardName) == null) {
+            throw new IOException("Mount " + prefix + " names unknown shard " + shardName);
+        }
+        if (!prefix.endsWith("/")) {
+            prefix += "/";
+        }
+        mounts.add(new String[] {prefix, shardName});
+        Collections.sort(mounts, new Comparator<String[]>() {
+            public int compare(String[] a, String[] b) {
+                return b[0].length() - a[0].length();
+            }
+        });
+    }
+
+    public Shard getShard(String name) {
+        for (Shard shard : shards) {
+            if (shard.name.equals(name)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    /* route: shard owning path */
+    public Shard route(String path, boolean isDir) {
+        return ownerOf(path, isDir);
+    }
+
+    /* count: charge one operation on path to the shard owning it */
+    public void count(String path, boolean isDir) {
+        ownerOf(path, isDir).ops.incrementAndGet();
+    }
+
+    /* sameShard: whether two paths, both files or both directories, are owned by the same NameNode */
+    public boolean sameShard(String path1, String path2, boolean isDir) {
+        return ownerOf(path1, isDir) == ownerOf(path2, isDir);
+    }
+
+    // files belong to their parent directory's shard, directories to their own
+    private Shard ownerOf(String path, boolean isDir) {
+        String dir = isDir ? path : parent(path);
+        if (!dir.endsWith("/")) {
+            dir += "/";
+        }
+        for (String[] mount : mounts) {
+            if (dir.startsWith(mount[0])) {
+                return getShard(mount[1]);
+            }
+        }
+        Map.Entry<Long, Shard> point = ring.ceilingEntry(hash(dir));
+        return point != null ? point.getValue() : ring.firstEntry().getValue();
+    }
+
+    private static String parent(String path) {
+        int end = path.endsWith("/") ? path.length() - 1 : path.length();
+        int slash = path.lastIndexOf('/', end - 1);
+        return slash <= 0 ? "/" : path.substring(0, slash);
+    }
+
+    // 64-bit FNV-1a with a final mix, spreads similar directory names around the ring
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); ++i) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        return h ^ (h >>> 33);
+    }
+
+    /* print: one CSV line per shard: name,ops,ops/sec,heap_used_bytes,files_total */
+    public void print(PrintStream out, String prefix, double seconds) {
+        for (Shard shard : shards) {
+            long heap = shard.metrics == null ? -1 : shard.metrics.getHeapUsed();
+            long files = shard.metrics == null ? -1 : shard.metrics.getFilesTotal();
+            out.println(prefix + shard.name + "," + shard.ops.get() + "," +
+            String.format("%.4f", seconds > 0 ? shard.ops.get() / seconds : 0.0) + "," +
+            heap + "," + files);
+        }
+    }
+
+    /* resetOps: zero the per-shard operation counters */
+    public void resetOps() {
+        for (Shard shard : shards) {
+            shard.ops.set(0);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * ShardedTest.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Measure write throughput and per-NameNode heap as small files are added
+ * to a namespace sharded across NameNodes by a ShardTable. Run with a
+ * one-shard table for the single-NameNode baseline.
+ * Usage: ShardedTest <shard_table>
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.InterruptedException;
+import java.util.LinkedList;
+import java.util.Random;
+
+public class ShardedTest {
+    private static final boolean _DEBUG = false;
+    private static final int NUM_CLIENT_THREADS = 32;
+    private static final int NUM_FILES = 5000;      // files added per trial
+    private static final int NUM_DIRS = 64;         // directories the files are spread over
+    private static final int NUM_TRIALS = 99;
+    private static final String LOCAL_FILE_DIR = "/usr/local/hadoop/test/tmp10B";
+    private static final String HDFS_FILE_DIR = "/sharded/";
+
+    // prints out files on HDFS, throughput, failures and one line per shard for each trial in CSV format
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: ShardedTest <shard_table>");
+            System.exit(1);
+        }
+        ShardTable shardTable = null;
+        try {
+            shardTable = ShardTable.load(args[0]);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+
+        ResultsStore results = new ResultsStore("ShardedTest", ResultsStore.DEFAULT_DIR);
+        results.setConfig("client_threads", NUM_CLIENT_THREADS);
+        results.setConfig("files_per_trial", NUM_FILES);
+        results.setConfig("dirs", NUM_DIRS);
+        results.setConfig("shard_table", args[0]);
+        for (ShardTable.Shard shard : shardTable.getShards()) {
+            results.setProperty("env.shard." + shard.getName() + ".uri", shard.getUri().toString());
+            if (shard.getMetrics() != null) {
+                results.setProperty("env.shard." + shard.getName() + ".heap.max",
+                Long.toString(shard.getMetrics().getHeapMax()));
+            }
+        }
+        LinkedList<String> requestQ = new LinkedList<String>();
+        Thread[] threadPool = new Thread[NUM_CLIENT_THREADS];
+        long filesOnHdfs = 0;
+
+        for (int i = 1; i <= NUM_TRIALS; ++i) {
+            System.err.println("(1) Adding " + NUM_FILES + " files (trial " + i + ")");
+            for (int j = 1; j <= NUM_FILES; ++j) {
+                File fileToAdd = getRandomFile(LOCAL_FILE_DIR);
+
+                StringBuilder requestBuf = new StringBuilder();
+                requestBuf.append("add ");
+                requestBuf.append(fileToAdd.getAbsolutePath());
+                requestBuf.append(' ').append(HDFS_FILE_DIR);
+                requestBuf.append(String.format("dir%02d/", j % NUM_DIRS));
+                requestBuf.append(String.format("%02d%05d", i, j)).append(fileToAdd.getName());
+                synchronized (requestQ) {
+                    requestQ.offer(requestBuf.toString());
+                    requestQ.notifyAll();
+                }
+            }
+
+            shardTable.resetOps();
+            OpMetrics metrics = new OpMetrics();
+            for (int j = 0; j < NUM_CLIENT_THREADS; ++j) {
+                HdfsClient client = new HdfsClient(requestQ);
+                client.setShardTable(shardTable);
+                client.setMetrics(metrics);
+                threadPool[j] = new Thread(client);
+                threadPool[j].start();
+            }
+            Long startTime = System.currentTimeMillis();
+
+            for (int j = 0; j < NUM_CLIENT_THREADS; ++j) {
+                try {
+                    threadPool[j].join();
+                } catch (InterruptedException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            Long endTime = System.currentTimeMillis();
+            Double totalTime = 1.0 * (endTime - startTime) / 1000;
+            filesOnHdfs += metrics.getSuccesses();
+            System.out.println(filesOnHdfs + "," + String.format("%.4f", metrics.getSuccesses() / totalTime) +
+            "," + metrics.getFailures());
+            // shard,name,ops,ops/sec,heap_used_bytes,files_total
+            shardTable.print(System.out, "shard,", totalTime);
+
+            int row = results.addRow("trial");
+            results.set(row, "files", filesOnHdfs);
+            results.set(row, "xput", metrics.getSuccesses() / totalTime);
+            results.set(row, "failures", metrics.getFailures());
+            results.addMetrics("", metrics, totalTime);
+            for (ShardTable.Shard shard : shardTable.getShards()) {
+                row = results.addRow("shard-" + shard.getName());
+                results.set(row, "ops", shard.getOps());
+                results.set(row, "ops_sec", shard.getOps() / totalTime);
+                if (shard.getMetrics() != null) {
+                    results.set(row, "files_total", shard.getMetrics().getFilesTotal());
+                    results.set(row, "metadata_heap", shard.getMetrics().getMetadataBytes());
+                }
+            }
+            try {
+                results.save();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        } // END TRIAL LOOP
+
+        return;
+    }
+
+    // get a random file from a specified directory
+    private static File getRandomFile(final String dir) {
+        File folder = new File(dir);
+        Random rand = new Random();
+
+        File[] files = folder.listFiles();
+
+        return files[rand.nextInt(files.length)];
+    }
+
+    private static void DEBUG(String str) {
+        if (_DEBUG) {
+            System.err.println(str);
+        }
+    }
+}
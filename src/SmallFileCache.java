@@ -0,0 +1,174 @@
+/**
+ * SmallFileCache.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Client-side LRU cache of small file contents shared by HdfsClient threads.
+ * Contents live off-heap in one direct buffer carved into fixed-size slots,
+ * chained through a primitive next-slot array, so cached bytes add no GC
+ * pressure. Entries are keyed by path and only served while the caller's
+ * modification time matches the one cached.
+ */
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SmallFileCache {
+    public static final int SLOT_SIZE = 64;             // bytes per off-heap slot
+    public static final int MAX_ENTRY_BYTES = 1 << 16;  // larger files are never cached
+
+    private final ByteBuffer arena;
+    private final int[] nextSlot;       // next slot of the same entry, or free-list link
+    private int freeHead;               // first free slot, -1 if none
+    private int numFree;
+    private final LinkedHashMap<String, Entry> index =
+    new LinkedHashMap<String, Entry>(1024, 0.75f, true);   // access order for LRU
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong bytesCached = new AtomicLong();
+
+    private static class Entry {
+        final long modificationTime;
+        final int length;
+        final int firstSlot;
+
+        Entry(long modificationTime, int length, int firstSlot) {
+            this.modificationTime = modificationTime;
+            this.length = length;
+            this.firstSlot = firstSlot;
+        }
+    }
+
+    public SmallFileCache(final long capacityBytes) {
+        int numSlots = (int) Math.min(Integer.MAX_VALUE / SLOT_SIZE, capacityBytes / SLOT_SIZE);
+        arena = ByteBuffer.allocateDirect(numSlots * SLOT_SIZE);
+        nextSlot = new int[numSlots];
+        for (int i = 0; i < numSlots; ++i) {
+            nextSlot[i] = i + 1 < numSlots ? i + 1 : -1;
+        }
+        freeHead = numSlots > 0 ? 0 : -1;
+        numFree = numSlots;
+    }
+
+    /* get: cached contents of path if present and still at modificationTime, else null */
+    public synchronized byte[] get(String path, long modificationTime) {
+        Entry entry = index.get(path);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.modificationTime != modificationTime) {
+            // file was rewritten since it was cached
+            index.remove(path);
+            release(entry);
+            stale.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+
+        byte[] data = new byte[entry.length];
+        int slot = entry.firstSlot;
+        for (int off = 0; off < data.length; off += SLOT_SIZE) {
+            arena.position(slot * SLOT_SIZE);
+            arena.get(data, off, Math.min(SLOT_SIZE, data.length - off));
+            slot = nextSlot[slot];
+        }
+        hits.incrementAndGet();
+        bytesServed.addAndGet(data.length);
+        return data;
+    }
+
+    /* put: cache len bytes of data for path, evicting least recently used entries */
+    public synchronized void put(String path, long modificationTime, byte[] data, int len) {
+        int slotsNeeded = Math.max(1, (len + SLOT_SIZE - 1) / SLOT_SIZE);
+        if (len > MAX_ENTRY_BYTES || slotsNeeded > nextSlot.length) {
+            return;
+        }
+        Entry old = index.remove(path);
+        if (old != null) {
+            release(old);
+        }
+
+        Iterator<Map.Entry<String, Entry>> lru = index.entrySet().iterator();
+        while (numFree < slotsNeeded && lru.hasNext()) {
+            Entry victim = lru.next().getValue();
+            lru.remove();
+            release(victim);
+            evictions.incrementAndGet();
+        }
+
+        // take slots off the free list, copying data in as we go
+        int firstSlot = freeHead;
+        int slot = firstSlot;
+        int prev = -1;
+        for (int off = 0; off < len || prev < 0; off += SLOT_SIZE) {
+            arena.position(slot * SLOT_SIZE);
+            arena.put(data, off, Math.min(SLOT_SIZE, len - off));
+            prev = slot;
+            slot = nextSlot[slot];
+        }
+        nextSlot[prev] = -1;
+        freeHead = slot;
+        numFree -= slotsNeeded;
+
+        index.put(path, new Entry(modificationTime, len, firstSlot));
+        bytesCached.addAndGet(len);
+    }
+
+    /* invalidate: drop any cached contents of path */
+    public synchronized void invalidate(String path) {
+        Entry entry = index.remove(path);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    // return an entry's slot chain to the head of the free list
+    private void release(Entry entry) {
+        int last = entry.firstSlot;
+        int count = 1;
+        while (nextSlot[last] >= 0) {
+            last = nextSlot[last];
+            count++;
+        }
+        nextSlot[last] = freeHead;
+        freeHead = entry.firstSlot;
+        numFree += count;
+        bytesCached.addAndGet(-entry.length);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public double getHitRatio() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0.0 : 1.0 * hits.get() / lookups;
+    }
+
+    /* print: hits,misses,hit_ratio,stale,evictions,bytes_served,bytes_cached,entries */
+    public void print(PrintStream out, String prefix) {
+        out.println(prefix + hits.get() + "," + misses.get() + "," +
+        String.format("%.4f", getHitRatio()) + "," + stale.get() + "," +
+        evictions.get() + "," + bytesServed.get() + "," + bytesCached.get() + "," + size());
+    }
+}
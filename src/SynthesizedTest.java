@@ -0,0 +1,218 @@
+/**
+ * SynthesizedTest.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Replay a WorkloadModel fitted by AuditLogWorkload against HDFS, with
+ * inter-arrival times divided by a scale factor to run at higher rates.
+ * Paths created by the replay are only targeted once they have settled:
+ * every PRINT_INTERVAL requests it waits for the clients to go idle, then
+ * resumes pacing from there rather than bursting to catch up.
+ * Usage: SynthesizedTest <model> <scale> <num_ops>
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.InterruptedException;
+import java.util.LinkedList;
+import java.util.Random;
+
+public class SynthesizedTest {
+    private static final boolean _DEBUG = false;
+    private static final int NUM_CLIENT_THREADS = 16;
+    private static final int PRINT_INTERVAL = 1000;
+    private static final long MAX_FILE_SIZE = 64L << 20;                            // cap on synthesized file length
+    private static final String LOCAL_STAGING_DIR = "/usr/local/hadoop/test/synth"; // sized local files for adds
+    private static final String HDFS_SYNTH_DIR = "/synth/";                         // HDFS root of the synthesized tree
+
+    private static final Random rand = new Random();
+    private static WorkloadModel model;
+    private static String currentDir = null;    // directory receiving new files
+    private static long dirRemaining = 0;       // files left before currentDir reaches its sampled fan-out
+    private static int numDirs = 0;
+    private static int numFiles = 0;
+
+    // prints out target and achieved operation rate, directories, files and failures in CSV format
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: SynthesizedTest <model> <scale> <num_ops>");
+            System.exit(1);
+        }
+        double scale = Double.parseDouble(args[1]);
+        int numOps = Integer.parseInt(args[2]);
+        try {
+            model = WorkloadModel.load(args[0]);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+
+        ResultsStore results = new ResultsStore("SynthesizedTest", ResultsStore.DEFAULT_DIR);
+        results.setConfig("client_threads", NUM_CLIENT_THREADS);
+        results.setConfig("model", args[0]);
+        results.setConfig("scale", scale);
+        results.setConfig("num_ops", numOps);
+        LinkedList<String> requestQ = new LinkedList<String>();
+        Thread[] threadPool = new Thread[NUM_CLIENT_THREADS];
+        HdfsClient[] clients = new HdfsClient[NUM_CLIENT_THREADS];
+        PathCatalog filesCreated = new PathCatalog();   // settled in earlier batches, safe to target
+        PathCatalog pending = new PathCatalog();        // created or targeted in this batch, may still be queued
+        OpMetrics metrics = new OpMetrics();
+
+        for (int j = 0; j < NUM_CLIENT_THREADS; ++j) {
+            clients[j] = new HdfsClient(requestQ, true);
+            clients[j].setMetrics(metrics);
+            threadPool[j] = new Thread(clients[j]);
+            threadPool[j].start();
+        }
+
+        System.err.println("(1) Replaying " + numOps + " operations at " + scale + "x");
+        long startTime = System.nanoTime();
+        long nextTime = startTime;
+        for (int j = 1; j <= numOps; ++j) {
+            // open-loop pacing: sleep until the scaled arrival time of this request
+            nextTime += (long) (model.sampleInterArrivalMs(rand) * 1000000 / scale);
+            long sleepNanos = nextTime - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+
+            String request;
+            try {
+                request = nextRequest(model.sampleRequest(rand), filesCreated, pending);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                continue;
+            }
+            DEBUG(request);
+            synchronized (requestQ) {
+                requestQ.offer(request);
+                if (j % PRINT_INTERVAL == 0) {
+                    requestQ.offer("DONE " + j);
+                }
+                requestQ.notifyAll();
+            }
+            if (j % PRINT_INTERVAL == 0) {
+                HdfsClient.awaitIdle(requestQ, clients);
+                for (String path : pending) {
+                    filesCreated.add(path);
+                }
+                pending.clear();
+                nextTime = System.nanoTime();
+            }
+        }
+
+        HdfsClient.awaitDrained(requestQ);
+        for (int j = 0; j < NUM_CLIENT_THREADS; ++j) {
+            clients[j].stopThread();
+        }
+        for (int j = 0; j < NUM_CLIENT_THREADS; ++j) {
+            try {
+                threadPool[j].join();
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        Double totalTime = 1.0 * (System.nanoTime() - startTime) / 1e9;
+        System.out.println(String.format("%.4f", model.getMeanRate() * scale) + "," +
+        String.format("%.4f", metrics.getSuccesses() / totalTime) + "," + numDirs + "," + numFiles + "," +
+        metrics.getFailures());
+
+        int row = results.addRow("replay");
+        results.set(row, "target_ops_sec", model.getMeanRate() * scale);
+        results.set(row, "xput", metrics.getSuccesses() / totalTime);
+        results.set(row, "dirs", numDirs);
+        results.set(row, "files", numFiles);
+        results.set(row, "failures", metrics.getFailures());
+        results.addMetrics("", metrics, totalTime);
+        try {
+            results.save();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return;
+    }
+
+    // turn a sampled request name into a full request against the synthesized tree;
+    // paths it creates or targets go to pending, and only settled filesCreated are sampled
+    private static String nextRequest(String op, PathCatalog filesCreated, PathCatalog pending)
+    throws IOException {
+        if (filesCreated.isEmpty() && !op.equals("mkdir")) {
+            op = "add";
+        }
+        if (op.equals("add")) {
+            String dest = nextFilePath();
+            pending.add(dest);
+            return "add " + stagedFile(model.sampleFileSize(rand)) + " " + dest;
+        } else if (op.equals("mkdir")) {
+            return "mkdir " + nextDir();
+        } else if (op.equals("delete")) {
+            return "delete " + filesCreated.removeRandom(rand);
+        } else if (op.equals("rename")) {
+            String from = filesCreated.removeRandom(rand);
+            String to = from + ".r";
+            pending.add(to);
+            return "rename " + from + " " + to;
+        } else if (op.equals("liststatus")) {
+            String file = filesCreated.sample(rand);
+            return "liststatus " + file.substring(0, file.lastIndexOf('/') + 1);
+        }
+        // read, stat and settimes target an existing file, kept from deletes and renames until it settles again
+        String file = filesCreated.removeRandom(rand);
+        pending.add(file);
+        return op + " " + file;
+    }
+
+    // next file path, moving to a new directory once the sampled fan-out is used up
+    private static String nextFilePath() {
+        if (currentDir == null || dirRemaining <= 0) {
+            currentDir = nextDir();
+            dirRemaining = model.sampleFanOut(rand);
+        }
+        dirRemaining--;
+        return currentDir + "f" + (numFiles++);
+    }
+
+    // new directory whose files sit at a sampled path depth, at least one level below HDFS_SYNTH_DIR
+    private static String nextDir() {
+        int depth = Math.max(3, model.samplePathDepth(rand));
+        StringBuilder dir = new StringBuilder(HDFS_SYNTH_DIR);
+        for (int k = 2; k < depth; ++k) {
+            dir.append('d').append(numDirs).append('_').append(k).append('/');
+        }
+        numDirs++;
+        return dir.toString();
+    }
+
+    // local file of the sampled size's log2 bucket, created on first use
+    private static String stagedFile(long size) throws IOException {
+        long bucketSize = Math.min(MAX_FILE_SIZE, Long.highestOneBit(Math.max(1, size)));
+        File file = new File(LOCAL_STAGING_DIR, bucketSize + "B");
+        if (!file.exists()) {
+            file.getParentFile().mkdirs();
+            byte[] b = new byte[1024];
+            OutputStream out = new FileOutputStream(file);
+            try {
+                for (long written = 0; written < bucketSize; written += b.length) {
+                    rand.nextBytes(b);
+                    out.write(b, 0, (int) Math.min(b.length, bucketSize - written));
+                }
+            } finally {
+                out.close();
+            }
+        }
+        return file.getAbsolutePath();
+    }
+
+    private static void DEBUG(String str) {
+        if (_DEBUG) {
+            System.err.println(str);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * TenantTest.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Measure how a bulk small-file writer affects an interactive tenant
+ * sharing the same client pool. A batch tenant enqueues a burst of adds
+ * while an interactive tenant issues paced reads and stats, first through
+ * one FIFO queue, then through a FairRequestQueue with the given weights
+ * only, and last with the weights, rate limits and concurrency caps, so
+ * the effect of the scheduling and of the caps can be told apart.
+ * Latencies are from when a request is queued to when it completes.
+ * Usage: TenantTest [interactive_spec batch_spec] [jfr <dir>]
+ * where a spec is name[:weight[:rate/sec[:max_in_flight]]]. With jfr, each
+ * mode is recorded by a TrialRecorder and summarized to stderr.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.InterruptedException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+
+public class TenantTest {
+    private static final boolean _DEBUG = false;
+    private static final int NUM_CLIENT_THREADS = 16;
+    private static final int NUM_BATCH_WRITES = 1000;       // size of the batch tenant's burst
+    private static final int NUM_READ_FILES = 100;          // files the interactive tenant reads
+    private static final double INTERACTIVE_RATE = 20.0;    // interactive requests per second
+    private static final String DEFAULT_INTERACTIVE_SPEC = "interactive:8";
+    private static final String DEFAULT_BATCH_SPEC = "batch:1:0:8";
+    private static final String LOCAL_WRITE_DIR = "/usr/local/hadoop/test/tmp10B";
+    private static final String HDFS_READ_DIR = "/tenant/read/";
+    private static final String HDFS_BATCH_DIR = "/tenant/batch/";
+
+    private static final Random rand = new Random();
+
+    // prints out one line per mode and tenant in CSV format:
+    // mode,tenant,weight,requests,ops/sec,mean_ms,p50_ms,p99_ms,max_ms,failures,wait_p99_ms
+    // and the per-operation breakdown of each tenant to stderr
+    public static void main(String[] args) {
+        TrialRecorder recorder = null;
+        int numSpecs = args.length;
+        if (args.length >= 2 && args[args.length - 2].equals("jfr")) {
+            recorder = new TrialRecorder(args[args.length - 1]);
+            numSpecs -= 2;
+        }
+        String interactiveSpec = numSpecs > 1 ? args[0] : DEFAULT_INTERACTIVE_SPEC;
+        String batchSpec = numSpecs > 1 ? args[1] : DEFAULT_BATCH_SPEC;
+        ResultsStore results = new ResultsStore("TenantTest", ResultsStore.DEFAULT_DIR);
+        results.setConfig("client_threads", NUM_CLIENT_THREADS);
+        results.setConfig("batch_writes", NUM_BATCH_WRITES);
+        results.setConfig("interactive_rate", INTERACTIVE_RATE);
+        results.setConfig("args", Arrays.toString(args));
+
+        // STEP 0: files for the interactive tenant to read
+        System.err.println("(0) Creating " + NUM_READ_FILES + " files to read");
+        LinkedList<String> setupQ = new LinkedList<String>();
+        for (int j = 0; j < NUM_READ_FILES; ++j) {
+            setupQ.offer("add " + getRandomFile(LOCAL_WRITE_DIR).getAbsolutePath() + " " +
+            HDFS_READ_DIR + String.format("r%05d", j));
+        }
+        runPool(setupQ);
+
+        for (String mode : new String[] {"fifo", "fair-uncapped", "fair"}) {
+            final FairRequestQueue requestQ = new FairRequestQueue(mode.equals("fifo"));
+            FairRequestQueue.Tenant interactive;
+            final FairRequestQueue.Tenant batch;
+            if (mode.equals("fifo")) {
+                // same names, but no weights or limits: one shared arrival-order queue
+                interactive = requestQ.addTenant(interactiveSpec.split(":")[0]);
+                batch = requestQ.addTenant(batchSpec.split(":")[0]);
+            } else if (mode.equals("fair-uncapped")) {
+                // weighted fair queuing alone, without the rate limits and caps
+                interactive = requestQ.addTenant(weightsOnly(interactiveSpec));
+                batch = requestQ.addTenant(weightsOnly(batchSpec));
+            } else {
+                interactive = requestQ.addTenant(interactiveSpec);
+                batch = requestQ.addTenant(batchSpec);
+            }
+
+            if (recorder != null) {
+                try {
+                    recorder.start(mode, requestQ);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    recorder = null;
+                }
+            }
+            Thread[] threadPool = new Thread[NUM_CLIENT_THREADS];
+            HdfsClient[] clients = new HdfsClient[NUM_CLIENT_THREADS];
+            for (int j = 0; j < NUM_CLIENT_THREADS; ++j) {
+                clients[j] = new HdfsClient(requestQ, true);
+                threadPool[j] = new Thread(clients[j]);
+                threadPool[j].start();
+            }
+
+            // STEP 1: the batch burst arrives all at once, then interactive requests trickle in behind it
+            System.err.println("(1) " + mode + ": " + NUM_BATCH_WRITES + " batch adds with interactive " +
+            "requests at " + INTERACTIVE_RATE + "/sec");
+            Long startTime = System.currentTimeMillis();
+            synchronized (requestQ) {
+                for (int j = 1; j <= NUM_BATCH_WRITES; ++j) {
+                    File writeFile = getRandomFile(LOCAL_WRITE_DIR);
+                    requestQ.offer(batch.getName(), "add " + writeFile.getAbsolutePath() + " " +
+                    HDFS_BATCH_DIR + String.format("%05d", j) + writeFile.getName());
+                }
+                requestQ.notifyAll();
+            }
+            RateLimiter limiter = new RateLimiter(INTERACTIVE_RATE);
+            while (batch.getMetrics().getSuccesses() + batch.getMetrics().getFailures() < NUM_BATCH_WRITES) {
+                try {
+                    limiter.acquire();
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                String file = HDFS_READ_DIR + String.format("r%05d", rand.nextInt(NUM_READ_FILES));
+                synchronized (requestQ) {
+                    requestQ.offer(interactive.getName(), (rand.nextBoolean() ? "read " : "stat ") + file);
+                    requestQ.notifyAll();
+                }
+            }
+            HdfsClient.awaitDrained(requestQ);
+            for (HdfsClient client : clients) {
+                client.stopThread();
+            }
+            for (Thread thread : threadPool) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ex) {
+                    ex.printStackTrace();
+                }
+            }
+            Long endTime = System.currentTimeMillis();
+            Double totalTime = 1.0 * (endTime - startTime) / 1000;
+            if (recorder != null) {
+                try {
+                    recorder.stopAndSummarize(System.err, "jfr," + mode + ",");
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+
+            for (FairRequestQueue.Tenant tenant : requestQ.getTenants()) {
+                LatencyHistogram hist = tenant.getMetrics().getTotal();
+                System.out.println(mode + "," + tenant.getName() + "," + tenant.getWeight() + "," +
+                hist.getCount() + "," + String.format("%.4f,%.3f,%.3f,%.3f,%.3f", hist.getCount() / totalTime,
+                hist.getMeanMs(), hist.getPercentileMs(50), hist.getPercentileMs(99), hist.getMaxMs()) + "," +
+                tenant.getMetrics().getFailures() + "," +
+                String.format("%.3f", tenant.getQueueWait().getPercentileMs(99)));
+                int row = results.addRow(mode + "-" + tenant.getName());
+                results.set(row, "ops_sec", hist.getCount() / totalTime);
+                results.set(row, "mean_ms", hist.getMeanMs());
+                results.set(row, "p99_ms", hist.getPercentileMs(99));
+                results.set(row, "failures", tenant.getMetrics().getFailures());
+                results.set(row, "wait_p99_ms", tenant.getQueueWait().getPercentileMs(99));
+                results.addMetrics(mode + "-" + tenant.getName() + "-", tenant.getMetrics(), totalTime);
+            }
+            requestQ.print(System.err, mode + ",", totalTime);
+            try {
+                results.save();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+
+            // STEP 2: clean up the batch writes and the local copies made by reads
+            for (int j = 0; j < NUM_READ_FILES; ++j) {
+                new File(String.format("r%05d", j)).delete();
+            }
+            LinkedList<String> cleanupQ = new LinkedList<String>();
+            cleanupQ.offer("delete " + HDFS_BATCH_DIR);
+            runPool(cleanupQ);
+        } // END MODE LOOP
+
+        LinkedList<String> cleanupQ = new LinkedList<String>();
+        cleanupQ.offer("delete " + HDFS_READ_DIR);
+        runPool(cleanupQ);
+        return;
+    }
+
+    // name:weight of a tenant spec, dropping any rate limit and concurrency cap
+    private static String weightsOnly(String spec) {
+        String[] fields = spec.split(":");
+        return fields.length > 1 ? fields[0] + ":" + fields[1] : fields[0];
+    }
+
+    // drain requestQ with terminating clients
+    private static void runPool(LinkedList<String> requestQ) {
+        Thread[] threadPool = new Thread[NUM_CLIENT_THREADS];
+        for (int j = 0; j < NUM_CLIENT_THREADS; ++j) {
+            threadPool[j] = new Thread(new HdfsClient(requestQ));
+            threadPool[j].start();
+        }
+        for (int j = 0; j < NUM_CLIENT_THREADS; ++j) {
+            try {
+                threadPool[j].join();
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    // get a random file from a specified directory
+    private static File getRandomFile(final String dir) {
+        File folder = new File(dir);
+        Random rand = new Random();
+
+        File[] files = folder.listFiles();
+
+        return files[rand.nextInt(files.length)];
+    }
+
+    private static void DEBUG(String str) {
+        if (_DEBUG) {
+            System.err.println(str);
+        }
+    }
+}
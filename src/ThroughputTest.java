@@ -3,21 +3,21 @@
  * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
  * 
  * Measure the throughput of reads and writes separately as the number
- * of small files on HDFS varies.
+ * of small files on HDFS varies. Trials are also run by LoadDaemon.
  */
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.InterruptedException;
-import java.util.Queue;
-import java.util.LinkedList;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 public class ThroughputTest {
     private static final boolean _DEBUG = false;
     private static final int NUM_WRITE_THREADS = 16;
-    private static final int NUM_THRUPUT_THREADS = 16;
+    static final int NUM_THRUPUT_THREADS = 16;         // runner threads, also used by LoadDaemon
     private static final int NUM_TRIALS = 99;
     private static final int NUM_WRITES = 1000;
     private static final int NUM_THRUPUT_FILES = 500;    // number files for xput test
@@ -26,154 +26,161 @@ public class ThroughputTest {
     private static final String LOCAL_WRITE_DIR = "/usr/local/hadoop/test/tmp10B";  // contains files to randomly add to server
     private static final String HDFS_WRITE_DIR = "/throughput/";                    // HDFS path to which to write
 
+    // prints out files_on_hdfs,read_xput,read_failures,write_xput,write_failures per trial in CSV format,
+    // where throughput counts completed requests only
+    // "cache <MB>" serves repeated reads from an off-heap SmallFileCache of that size
+    // "jfr <dir>" records each trial with Flight Recorder and summarizes it to stderr
     public static void main(String[] args) {
-        LinkedList<String> requestQ = new LinkedList<String>();
-        Thread[] threadPool = new Thread[NUM_WRITE_THREADS];
-        LinkedList<String> filesAdded = new LinkedList<String>();
+        SmallFileCache contentCache = null;
+        TrialRecorder recorder = null;
+        for (int a = 0; a + 1 < args.length; a += 2) {
+            if (args[a].equals("cache")) {
+                contentCache = new SmallFileCache(Long.parseLong(args[a + 1]) << 20);
+            } else if (args[a].equals("jfr")) {
+                recorder = new TrialRecorder(args[a + 1]);
+            }
+        }
+        ResultsStore results = new ResultsStore("ThroughputTest", ResultsStore.DEFAULT_DIR);
+        results.setConfig("write_threads", NUM_WRITE_THREADS);
+        results.setConfig("thruput_threads", NUM_THRUPUT_THREADS);
+        results.setConfig("writes_per_trial", NUM_WRITES);
+        results.setConfig("thruput_files", NUM_THRUPUT_FILES);
+        results.setConfig("args", Arrays.toString(args));
+        PhaseRunner runner = new PhaseRunner(NUM_THRUPUT_THREADS);
+        runner.setContentCache(contentCache);
+        Random rand = new Random();
 
         // run NUM_TRIALS trials, adding more files sequentially
         for (int i = 1; i <= NUM_TRIALS; ++i) {
-            System.out.print((i - 1) * NUM_WRITES + ",");
-            // STEP 1: throughput measurement test
-            System.err.println("(1) Read Throughput (" +
-            ((i-1)*NUM_WRITES) + " extra files on HDFS)");
-            System.err.println("(1a) filling read request queue");
-            for (int j = 1; j <= NUM_THRUPUT_FILES; ++j) {
-                File readFile;
-                do {
-                    readFile = getRandomFile(LOCAL_READ_DIR);
-                } while (filesAdded.contains(readFile.getName()));
-                filesAdded.offer(readFile.getName());
-
-                StringBuilder requestBuf = new StringBuilder();
-                requestBuf.append("read ");
-                requestBuf.append(HDFS_READ_DIR + readFile.getName());
-
-                synchronized (requestQ) {
-                    requestQ.offer(requestBuf.toString());
-                    requestQ.notifyAll();
+            if (recorder != null) {
+                try {
+                    recorder.start("trial" + i, runner.getRequestQ());
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    recorder = null;
                 }
             }
-
-            // start thread pool to carry out read requests
-            for (int j = 0; j < NUM_THRUPUT_THREADS; ++j) {
-                threadPool[j] = new Thread(new HdfsClient(requestQ));
-                threadPool[j].start();
+            runTrial(i, rand, false, runner, results, System.out, "");
+            if (contentCache != null) {
+                // hits,misses,hit_ratio,stale,evictions,bytes_served,bytes_cached,entries
+                contentCache.print(System.err, "cache,");
             }
-            Long startTime = System.currentTimeMillis();
-
-            for (int j = 0; j < NUM_THRUPUT_THREADS; ++j) {
+            if (recorder != null) {
                 try {
-                    threadPool[j].join();
-                } catch (InterruptedException ex) {
+                    recorder.stopAndSummarize(System.err, "jfr," + i + ",");
+                } catch (IOException ex) {
                     ex.printStackTrace();
                 }
             }
-            // write out read throughput
-            Long endTime = System.currentTimeMillis();
-            Double totalTime = 1.0 * (endTime - startTime) / 1000;
-            System.out.print(String.format("%.4f", 1.0 * (NUM_THRUPUT_FILES / totalTime)) + ",");
+            try {
+                results.save();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        } // END TRIAL LOOP
 
+        return;
+    }
 
-            // STEP 2: measure write throughput
-            System.err.println("(2) Write Throughput (" +
-            ((i-1)*NUM_WRITES) + " extra files on HDFS)");
-            System.err.println("(2a) filling write request queue");
+    /*
+     * runTrial: trial i. Reads NUM_THRUPUT_FILES files, writes the local
+     * copies back and deletes them, then grows the namespace by NUM_WRITES
+     * files. Every pick comes from rand, so a redone trial with a rand seeded
+     * the same way repeats it; if resumed, writes an interrupted attempt left
+     * behind are deleted first. Adds a "trial" row to results and prints
+     * prefix + files_on_hdfs,read_xput,read_failures,write_xput,write_failures
+     * to out. Returns false if runner stopped part way.
+     */
+    public static boolean runTrial(int i, Random rand, boolean resumed, PhaseRunner runner, ResultsStore results,
+    PrintStream out, String prefix) {
+        PathCatalog filesAdded = new PathCatalog();
+        for (int j = 1; j <= NUM_THRUPUT_FILES; ++j) {
+            File readFile;
+            do {
+                readFile = getRandomFile(LOCAL_READ_DIR, rand);
+            } while (filesAdded.contains(readFile.getName()));
+            filesAdded.offer(readFile.getName());
+        }
+        List<String> requests = new ArrayList<String>();
+        if (resumed) {
             for (String fileName : filesAdded) {
-                String request = new String("add " +  "./" + fileName +
-                " " + HDFS_WRITE_DIR + fileName);
-                synchronized (requestQ) {
-                    requestQ.offer(request);
-                    requestQ.notifyAll();
-                }
+                requests.add("delete " + HDFS_WRITE_DIR + fileName);
             }
-
-            System.err.println("(2b) starting throughput measurement");
-            // start thread pool to carry out read requests
-            for (int j = 0; j < NUM_THRUPUT_THREADS; ++j) {
-                threadPool[j] = new Thread(new HdfsClient(requestQ));
-                threadPool[j].start();
+            if (runner.run("recover", requests, null) < 0) {
+                return false;
             }
-            startTime = System.currentTimeMillis();
-
-            for (int j = 0; j < NUM_THRUPUT_THREADS; ++j) {
-                try {
-                    threadPool[j].join();
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
-                }
-            }
-            // write out write throughput
-            endTime = System.currentTimeMillis();
-            totalTime = 1.0 * (endTime - startTime) / 1000;
-            System.out.println(String.format("%.4f", 1.0 * (NUM_THRUPUT_FILES / totalTime)));
+            requests.clear();
+        }
 
-            // clean up the writes and local reads
-            synchronized (requestQ) {
-                while(!filesAdded.isEmpty()) {
-                    String fileName = filesAdded.poll();
-                    File fileToDelete = new File("./" + fileName);
-                    fileToDelete.delete();
-                    requestQ.offer("delete " + HDFS_WRITE_DIR + fileName);
-                }
-            }
-            // wait for threads to clean up HDFS
-            for (int j = 0; j < NUM_THRUPUT_THREADS; ++j) {
-                threadPool[j] = new Thread(new HdfsClient(requestQ));
-                threadPool[j].start();
-            }
-            for (int j = 0; j < NUM_THRUPUT_THREADS; ++j) {
-                try {
-                    threadPool[j].join();
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
-                }
-            }
+        // STEP 1: throughput measurement test
+        System.err.println("(1) Read Throughput (" + ((i-1)*NUM_WRITES) + " extra files on HDFS)");
+        for (String fileName : filesAdded) {
+            requests.add("read " + HDFS_READ_DIR + fileName);
+        }
+        OpMetrics readMetrics = new OpMetrics();
+        double readTime = runner.run("read", requests, readMetrics);
+        if (readTime < 0) {
+            return false;
+        }
 
-            System.err.println("(3) Adding " + NUM_WRITES + " files");
-            System.err.println("(3a) putting write requests in queue");
-            for (int j = 1; j <= NUM_WRITES; ++j) {
-                File writeFile = getRandomFile(LOCAL_WRITE_DIR);
+        // STEP 2: measure write throughput, writing back the local copies the reads made
+        System.err.println("(2) Write Throughput (" + ((i-1)*NUM_WRITES) + " extra files on HDFS)");
+        requests.clear();
+        for (String fileName : filesAdded) {
+            requests.add("add ./" + fileName + " " + HDFS_WRITE_DIR + fileName);
+        }
+        OpMetrics writeMetrics = new OpMetrics();
+        double writeTime = runner.run("write", requests, writeMetrics);
+        if (writeTime < 0) {
+            return false;
+        }
 
-                StringBuilder requestBuf = new StringBuilder();
-                requestBuf.append("add ");
-                requestBuf.append(writeFile.getAbsolutePath());
-                requestBuf.append(" " + HDFS_WRITE_DIR +
-                String.format("%02d", i) + String.format("%05d", j)  + writeFile.getName());
-                // places on HDFS with appended "ij" for unique ID
-                synchronized (requestQ) {
-                    DEBUG("adding request to requestQ");
-                    if (j % 1000 == 0) {
-                        requestQ.offer("DONE " + j);
-                    }
-                    requestQ.offer(requestBuf.toString());
-                    requestQ.notifyAll();
-                }
-            }
-            System.err.println("Done adding requests to queue");
-            for (int j = 0; j < NUM_WRITE_THREADS; ++j) {
-                threadPool[j] = new Thread(new HdfsClient(requestQ));
-                threadPool[j].start();
-            }
-            // wait for all threads to finish, then measure throughput
-            for (int j = 0; j < NUM_WRITE_THREADS; ++j) {
-                try {
-                    threadPool[j].join();
-                } catch (InterruptedException ex) {
+        // clean up the writes and local reads
+        requests.clear();
+        for (String fileName : filesAdded) {
+            new File("./" + fileName).delete();
+            requests.add("delete " + HDFS_WRITE_DIR + fileName);
+        }
+        if (runner.run("cleanup", requests, null) < 0) {
+            return false;
+        }
 
-                }
+        System.err.println("(3) Adding " + NUM_WRITES + " files");
+        requests.clear();
+        for (int j = 1; j <= NUM_WRITES; ++j) {
+            File writeFile = getRandomFile(LOCAL_WRITE_DIR, rand);
+            if (j % 1000 == 0) {
+                requests.add("DONE " + j);
             }
-        } // END TRIAL LOOP
+            // places on HDFS with appended "ij" for unique ID
+            requests.add("add " + writeFile.getAbsolutePath() + " " + HDFS_WRITE_DIR +
+            String.format("%02d%05d", i, j) + writeFile.getName());
+        }
+        if (runner.run("grow", requests, null) < 0) {
+            return false;
+        }
 
-        return;
+        double readXput = readMetrics.getSuccesses() / readTime;
+        double writeXput = writeMetrics.getSuccesses() / writeTime;
+        int row = results.addRow("trial");
+        results.set(row, "files", (i - 1) * NUM_WRITES);
+        results.set(row, "read_xput", readXput);
+        results.set(row, "read_failures", readMetrics.getFailures());
+        results.addMetrics("", readMetrics, readTime);
+        results.set(row, "write_xput", writeXput);
+        results.set(row, "write_failures", writeMetrics.getFailures());
+        results.addMetrics("", writeMetrics, writeTime);
+        out.println(prefix + (i - 1) * NUM_WRITES + "," + String.format("%.4f", readXput) + "," +
+        readMetrics.getFailures() + "," + String.format("%.4f", writeXput) + "," + writeMetrics.getFailures());
+        return true;
     }
 
-    // get a random file from a specified directory
-    private static File getRandomFile(final String dir) {
+    // get a random file from a specified directory, sorted so a seeded rand repeats its picks
+    private static File getRandomFile(final String dir, Random rand) {
         File folder = new File(dir);
-        Random rand = new Random();
 
         File[] files = folder.listFiles();
+        Arrays.sort(files);
 
         return files[rand.nextInt(files.length)];
     }
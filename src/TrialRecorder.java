@@ -0,0 +1,238 @@
+/**
+ * TrialRecorder.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Flight Recorder recording around each driver trial, to tell a slow
+ * NameNode from a slow client JVM. Each trial is dumped to
+ * <output_dir>/<name>.jfr and summarized: HdfsOpEvent totals per operation,
+ * HdfsWorkerEvent allocation and CPU per worker, the top allocation sites
+ * and contention on the monitor of the trial's requestQ. Allocation sites
+ * come from the throttled allocation samples where the JDK has them (16+),
+ * otherwise from the TLAB events weighted by the bytes each one stands for.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedClass;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingFile;
+
+public class TrialRecorder {
+    private static final int NUM_HOTSPOTS = 10;
+    private static final String ALLOCATION_EVENT = "jdk.ObjectAllocationSample";
+    private static final String NEW_TLAB_EVENT = "jdk.ObjectAllocationInNewTLAB";
+    private static final String OUTSIDE_TLAB_EVENT = "jdk.ObjectAllocationOutsideTLAB";
+    private static final String MONITOR_EVENT = "jdk.JavaMonitorEnter";
+    private static final Duration MONITOR_THRESHOLD = Duration.ofNanos(100000); // requestQ is held only briefly
+
+    private final File outputDir;
+    private Recording recording = null;
+    private String name = null;
+    private String queueClass = null;   // class of the trial's requestQ, whose monitor clients contend on
+
+    public TrialRecorder(final String outputDir) {
+        this.outputDir = new File(outputDir);
+        this.outputDir.mkdirs();
+    }
+
+    /* start: begin recording a trial whose clients share requestQ, with the JDK "profile" settings plus the HDFS events */
+    public void start(String name, Queue<String> requestQ) throws IOException {
+        Configuration config;
+        try {
+            config = Configuration.getConfiguration("profile");
+        } catch (ParseException ex) {
+            throw new IOException("Cannot load JFR profile settings", ex);
+        }
+        recording = new Recording(config);
+        recording.setName(name);
+        recording.enable(HdfsOpEvent.NAME);
+        recording.enable(HdfsWorkerEvent.NAME);
+        // contended enters are only counted, so their stack traces are not worth the overhead
+        recording.enable(MONITOR_EVENT).withThreshold(MONITOR_THRESHOLD).withoutStackTrace();
+        if (isAvailable(ALLOCATION_EVENT)) {
+            recording.enable(ALLOCATION_EVENT).withStackTrace();
+            recording.disable(NEW_TLAB_EVENT);
+            recording.disable(OUTSIDE_TLAB_EVENT);
+        } else {
+            recording.enable(NEW_TLAB_EVENT).withStackTrace();
+            recording.enable(OUTSIDE_TLAB_EVENT).withStackTrace();
+        }
+        recording.start();
+        this.name = name;
+        this.queueClass = requestQ.getClass().getName();
+    }
+
+    // whether this JVM's Flight Recorder has the event type name
+    private static boolean isAvailable(String name) {
+        for (EventType type : FlightRecorder.getFlightRecorder().getEventTypes()) {
+            if (type.getName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* stop: end the current recording and dump it, returning the .jfr file */
+    public Path stop() throws IOException {
+        Path dump = new File(outputDir, name + ".jfr").toPath();
+        recording.stop();
+        recording.dump(dump);
+        recording.close();
+        recording = null;
+        return dump;
+    }
+
+    /* stopAndSummarize: stop, then print the summary of the dumped trial */
+    public void stopAndSummarize(PrintStream out, String prefix) throws IOException {
+        summarize(stop(), queueClass, out, prefix);
+    }
+
+    /*
+     * summarize: CSV lines for one recording whose requestQ was a queueClass:
+     *   op,<op>,count,failures,mean_ms,rpcs/op,bytes/op,alloc_bytes/op,cpu_ms/op
+     *   worker,<thread>,requests,failures,alloc_bytes,cpu_ms
+     *   alloc,<class>,<first non-JDK frame>,sampled_bytes,percent
+     *   requestq,contended_enters,total_ms,max_ms (then the same for all other monitors)
+     * Allocation samples are used if the recording has any, otherwise the
+     * TLAB events, each weighted by its new TLAB or its allocation's size.
+     * Contended enters count only those over MONITOR_THRESHOLD.
+     */
+    public static void summarize(Path file, String queueClass, PrintStream out, String prefix)
+    throws IOException {
+        TreeMap<String, long[]> ops = new TreeMap<String, long[]>();   // count,failures,nanos,rpcs,bytes,alloc,cpu
+        List<String> workers = new ArrayList<String>();
+        Map<String, Long> sampledBySite = new HashMap<String, Long>();
+        Map<String, Long> tlabBySite = new HashMap<String, Long>();
+        long[] sampledTotal = new long[1];
+        long[] tlabTotal = new long[1];
+        long[] queueWaits = new long[3];    // count,total nanos,max nanos
+        long[] otherWaits = new long[3];
+
+        RecordingFile recordingFile = new RecordingFile(file);
+        try {
+            while (recordingFile.hasMoreEvents()) {
+                RecordedEvent event = recordingFile.readEvent();
+                String type = event.getEventType().getName();
+                if (type.equals(HdfsOpEvent.NAME)) {
+                    long[] totals = ops.get(event.getString("op"));
+                    if (totals == null) {
+                        totals = new long[7];
+                        ops.put(event.getString("op"), totals);
+                    }
+                    totals[0]++;
+                    if (!"OK".equals(event.getString("outcome"))) {
+                        totals[1]++;
+                    }
+                    totals[2] += event.getDuration().toNanos();
+                    totals[3] += event.getLong("rpcs");
+                    totals[4] += event.getLong("bytes");
+                    totals[5] += event.getLong("allocated");
+                    totals[6] += event.getLong("cpuTime");
+                } else if (type.equals(HdfsWorkerEvent.NAME)) {
+                    RecordedThread thread = event.getThread();
+                    workers.add((thread == null ? "?" : thread.getJavaName()) + "," +
+                    event.getLong("requests") + "," + event.getLong("failures") + "," +
+                    event.getLong("allocated") + "," +
+                    String.format("%.3f", event.getLong("cpuTime") / 1e6));
+                } else if (type.equals(ALLOCATION_EVENT)) {
+                    addAllocation(sampledBySite, sampledTotal, event, event.getLong("weight"));
+                } else if (type.equals(NEW_TLAB_EVENT)) {
+                    addAllocation(tlabBySite, tlabTotal, event, event.getLong("tlabSize"));
+                } else if (type.equals(OUTSIDE_TLAB_EVENT)) {
+                    addAllocation(tlabBySite, tlabTotal, event, event.getLong("allocationSize"));
+                } else if (type.equals(MONITOR_EVENT)) {
+                    RecordedClass monitorClass = event.getClass("monitorClass");
+                    boolean isQueue = monitorClass != null && monitorClass.getName().equals(queueClass);
+                    long[] waits = isQueue ? queueWaits : otherWaits;
+                    long nanos = event.getDuration().toNanos();
+                    waits[0]++;
+                    waits[1] += nanos;
+                    waits[2] = Math.max(waits[2], nanos);
+                }
+            }
+        } finally {
+            recordingFile.close();
+        }
+
+        for (Map.Entry<String, long[]> entry : ops.entrySet()) {
+            long[] totals = entry.getValue();
+            double count = totals[0];
+            out.println(prefix + "op," + entry.getKey() + "," + totals[0] + "," + totals[1] + "," +
+            String.format("%.3f,%.2f,%.0f,%.0f,%.3f", totals[2] / count / 1e6, totals[3] / count,
+            totals[4] / count, totals[5] / count, totals[6] / count / 1e6));
+        }
+        for (String worker : workers) {
+            out.println(prefix + "worker," + worker);
+        }
+
+        final Map<String, Long> allocBySite = sampledBySite.isEmpty() ? tlabBySite : sampledBySite;
+        long allocTotal = sampledBySite.isEmpty() ? tlabTotal[0] : sampledTotal[0];
+        List<String> sites = new ArrayList<String>(allocBySite.keySet());
+        Collections.sort(sites, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return Long.compare(allocBySite.get(b), allocBySite.get(a));
+            }
+        });
+        for (int i = 0; i < Math.min(NUM_HOTSPOTS, sites.size()); ++i) {
+            long bytes = allocBySite.get(sites.get(i));
+            out.println(prefix + "alloc," + sites.get(i) + "," + bytes + "," +
+            String.format("%.1f", 100.0 * bytes / allocTotal));
+        }
+
+        out.println(prefix + "requestq," + queueWaits[0] + "," +
+        String.format("%.3f,%.3f", queueWaits[1] / 1e6, queueWaits[2] / 1e6));
+        out.println(prefix + "othermonitors," + otherWaits[0] + "," +
+        String.format("%.3f,%.3f", otherWaits[1] / 1e6, otherWaits[2] / 1e6));
+    }
+
+    // charge bytes allocated by event to its class and calling site in bySite, and to total[0]
+    private static void addAllocation(Map<String, Long> bySite, long[] total, RecordedEvent event, long bytes) {
+        RecordedClass objectClass = event.getClass("objectClass");
+        String site = (objectClass == null ? "?" : objectClass.getName()) + "," +
+        callerFrame(event.getStackTrace());
+        Long sum = bySite.get(site);
+        bySite.put(site, sum == null ? bytes : sum + bytes);
+        total[0] += bytes;
+    }
+
+    // the allocating frame attributed to our code or Hadoop's, skipping JDK internals
+    private static String callerFrame(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return "?";
+        }
+        String first = null;
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            if (!frame.isJavaFrame()) {
+                continue;
+            }
+            String method = frame.getMethod().getType().getName() + "." + frame.getMethod().getName();
+            if (first == null) {
+                first = method;
+            }
+            if (!method.startsWith("java.") && !method.startsWith("jdk.") && !method.startsWith("sun.")) {
+                return method;
+            }
+        }
+        return first == null ? "?" : first;
+    }
+}
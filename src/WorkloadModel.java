@@ -0,0 +1,256 @@
+/**
+ * WorkloadModel.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Fitted description of a NameNode workload: operation mix, inter-arrival
+ * times, path depth, per-directory fan-out and file sizes. Produced by
+ * AuditLogWorkload and replayed by SynthesizedTest.
+ */
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class WorkloadModel {
+    public static final int NUM_BUCKETS = 64;   // log2 buckets cover the full range of a long
+
+    // audit log cmd= values mapped to the HdfsClient request they replay as
+    private static final String[][] CMD_TO_REQUEST = {
+        {"create", "add"},
+        {"open", "read"},
+        {"delete", "delete"},
+        {"mkdirs", "mkdir"},
+        {"rename", "rename"},
+        {"getfileinfo", "stat"},
+        {"listStatus", "liststatus"},
+        {"setTimes", "settimes"},
+    };
+
+    private final TreeMap<String, Long> cmdCounts = new TreeMap<String, Long>();
+    private final long[] interArrivalMs = new long[NUM_BUCKETS];    // log2 buckets of gap in ms
+    private final long[] pathDepth = new long[NUM_BUCKETS];         // exact depth, capped at NUM_BUCKETS-1
+    private final long[] fanOut = new long[NUM_BUCKETS];            // log2 buckets of children per directory
+    private final long[] fileSize = new long[NUM_BUCKETS];          // log2 buckets of file length in bytes
+    private long firstTimeMs = -1;
+    private long lastTimeMs = -1;
+
+    /* bucket: log2 bucket for a non-negative value (0 -> 0, [2^(b-1), 2^b) -> b) */
+    public static int bucket(long value) {
+        if (value <= 0) {
+            return 0;
+        }
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    public void addCommand(String cmd) {
+        Long count = cmdCounts.get(cmd);
+        cmdCounts.put(cmd, count == null ? 1L : count + 1);
+    }
+
+    public void addTimestamp(long timeMs) {
+        if (firstTimeMs < 0) {
+            firstTimeMs = timeMs;
+        } else {
+            interArrivalMs[bucket(Math.max(0, timeMs - lastTimeMs))]++;
+        }
+        lastTimeMs = timeMs;
+    }
+
+    public void addPathDepth(int depth) {
+        pathDepth[Math.min(depth, NUM_BUCKETS - 1)]++;
+    }
+
+    public void addFanOut(long children) {
+        fanOut[bucket(children)]++;
+    }
+
+    public void addFileSize(long bytes) {
+        fileSize[bucket(bytes)]++;
+    }
+
+    public long getTotalOps() {
+        long total = 0;
+        for (long count : cmdCounts.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /* getMeanRate: observed operations per second over the span of the log */
+    public double getMeanRate() {
+        if (lastTimeMs <= firstTimeMs) {
+            return 0.0;
+        }
+        return 1000.0 * getTotalOps() / (lastTimeMs - firstTimeMs);
+    }
+
+    /* requestFor: HdfsClient request name for an audit cmd, or null if not replayable */
+    public static String requestFor(String cmd) {
+        for (String[] mapping : CMD_TO_REQUEST) {
+            if (mapping[0].equals(cmd)) {
+                return mapping[1];
+            }
+        }
+        return null;
+    }
+
+    /* sampleRequest: draw a replayable HdfsClient request name from the fitted mix */
+    public String sampleRequest(Random rand) {
+        long total = 0;
+        for (Map.Entry<String, Long> entry : cmdCounts.entrySet()) {
+            if (requestFor(entry.getKey()) != null) {
+                total += entry.getValue();
+            }
+        }
+        if (total == 0) {
+            return "read";
+        }
+        long pick = (long) (rand.nextDouble() * total);
+        for (Map.Entry<String, Long> entry : cmdCounts.entrySet()) {
+            String request = requestFor(entry.getKey());
+            if (request == null) {
+                continue;
+            }
+            pick -= entry.getValue();
+            if (pick < 0) {
+                return request;
+            }
+        }
+        return "read";
+    }
+
+    public long sampleInterArrivalMs(Random rand) {
+        return sampleLog2(interArrivalMs, rand, 0);
+    }
+
+    public int samplePathDepth(Random rand) {
+        int b = sampleBucket(pathDepth, rand);
+        return b < 0 ? 1 : Math.max(1, b);
+    }
+
+    public long sampleFanOut(Random rand) {
+        return Math.max(1, sampleLog2(fanOut, rand, 1));
+    }
+
+    public long sampleFileSize(Random rand) {
+        return sampleLog2(fileSize, rand, 10);
+    }
+
+    // pick a bucket with probability proportional to its count, -1 if empty
+    private static int sampleBucket(long[] hist, Random rand) {
+        long total = 0;
+        for (long count : hist) {
+            total += count;
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long pick = (long) (rand.nextDouble() * total);
+        for (int b = 0; b < hist.length; ++b) {
+            pick -= hist[b];
+            if (pick < 0) {
+                return b;
+            }
+        }
+        return hist.length - 1;
+    }
+
+    // pick a log2 bucket, then a value uniformly within [2^(b-1), 2^b)
+    private static long sampleLog2(long[] hist, Random rand, long dflt) {
+        int b = sampleBucket(hist, rand);
+        if (b < 0) {
+            return dflt;
+        }
+        if (b == 0) {
+            return 0;
+        }
+        long low = 1L << (b - 1);
+        return low + (long) (rand.nextDouble() * low);
+    }
+
+    /* save: write the model as a properties file */
+    public void save(String path) throws IOException {
+        Properties props = new Properties();
+        for (Map.Entry<String, Long> entry : cmdCounts.entrySet()) {
+            props.setProperty("cmd." + entry.getKey(), Long.toString(entry.getValue()));
+        }
+        props.setProperty("time.first", Long.toString(firstTimeMs));
+        props.setProperty("time.last", Long.toString(lastTimeMs));
+        props.setProperty("hist.interarrival", join(interArrivalMs));
+        props.setProperty("hist.depth", join(pathDepth));
+        props.setProperty("hist.fanout", join(fanOut));
+        props.setProperty("hist.filesize", join(fileSize));
+
+        OutputStream out = new FileOutputStream(path);
+        try {
+            props.store(out, "HDFS workload model");
+        } finally {
+            out.close();
+        }
+    }
+
+    /* load: read a model written by save */
+    public static WorkloadModel load(String path) throws IOException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(path);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+
+        WorkloadModel model = new WorkloadModel();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith("cmd.")) {
+                model.cmdCounts.put(key.substring(4), Long.parseLong(props.getProperty(key)));
+            }
+        }
+        model.firstTimeMs = Long.parseLong(props.getProperty("time.first", "-1"));
+        model.lastTimeMs = Long.parseLong(props.getProperty("time.last", "-1"));
+        split(props.getProperty("hist.interarrival"), model.interArrivalMs);
+        split(props.getProperty("hist.depth"), model.pathDepth);
+        split(props.getProperty("hist.fanout"), model.fanOut);
+        split(props.getProperty("hist.filesize"), model.fileSize);
+        return model;
+    }
+
+    /* print: human-readable summary of the fitted distributions */
+    public void print() {
+        System.out.println("ops," + getTotalOps());
+        System.out.println("rate," + String.format("%.4f", getMeanRate()));
+        for (Map.Entry<String, Long> entry : cmdCounts.entrySet()) {
+            System.out.println("cmd," + entry.getKey() + "," + entry.getValue());
+        }
+        System.out.println("interarrival_ms," + join(interArrivalMs));
+        System.out.println("depth," + join(pathDepth));
+        System.out.println("fanout," + join(fanOut));
+        System.out.println("filesize," + join(fileSize));
+    }
+
+    private static String join(long[] hist) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < hist.length; ++i) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append(hist[i]);
+        }
+        return buf.toString();
+    }
+
+    private static void split(String value, long[] hist) {
+        if (value == null) {
+            return;
+        }
+        String[] counts = value.split(",");
+        for (int i = 0; i < counts.length && i < hist.length; ++i) {
+            hist[i] = Long.parseLong(counts[i].trim());
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * WriteOptions.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Per-request overrides of the cluster's file creation defaults, carried as
+ * trailing key=value tokens on a request, e.g.
+ *     add /local/file /hdfs/file block=64m repl=2 buffer=128k checksum=CRC32C bpc=512
+ * Anything left unset falls back to the FileSystem's defaults. streams=N
+ * asks copyfromlocal/copytolocal for a ParallelTransfer over N streams.
+ */
+
+import java.io.IOException;
+import java.util.EnumSet;
+
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options.ChecksumOpt;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.DataChecksum;
+import org.apache.hadoop.util.StringUtils.TraditionalBinaryPrefix;
+
+public class WriteOptions {
+    private long blockSize = -1;
+    private short replication = -1;
+    private int bufferSize = -1;
+    private DataChecksum.Type checksumType = null;
+    private int bytesPerChecksum = -1;
+    private int streams = 1;
+
+    /* parse: options from space-separated key=value tokens (sizes may use k/m/g suffixes) */
+    public static WriteOptions parse(String tokens) {
+        WriteOptions options = new WriteOptions();
+        if (tokens == null) {
+            return options;
+        }
+        for (String token : tokens.trim().split("\\s+")) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            int eq = token.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + token);
+            }
+            String key = token.substring(0, eq);
+            String value = token.substring(eq + 1);
+            if (key.equals("block")) {
+                options.blockSize = TraditionalBinaryPrefix.string2long(value);
+            } else if (key.equals("repl")) {
+                options.replication = Short.parseShort(value);
+            } else if (key.equals("buffer")) {
+                options.bufferSize = (int) TraditionalBinaryPrefix.string2long(value);
+            } else if (key.equals("checksum")) {
+                options.checksumType = DataChecksum.Type.valueOf(value.toUpperCase());
+            } else if (key.equals("bpc")) {
+                options.bytesPerChecksum = (int) TraditionalBinaryPrefix.string2long(value);
+            } else if (key.equals("streams")) {
+                options.streams = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown write option " + key);
+            }
+        }
+        return options;
+    }
+
+    public WriteOptions setBlockSize(long blockSize) {
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    public WriteOptions setReplication(short replication) {
+        this.replication = replication;
+        return this;
+    }
+
+    public WriteOptions setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    public WriteOptions setChecksum(DataChecksum.Type checksumType, int bytesPerChecksum) {
+        this.checksumType = checksumType;
+        this.bytesPerChecksum = bytesPerChecksum;
+        return this;
+    }
+
+    public WriteOptions setStreams(int streams) {
+        this.streams = streams;
+        return this;
+    }
+
+    public int getStreams() {
+        return streams;
+    }
+
+    /* create: new file at path, overriding only the options that were set */
+    public FSDataOutputStream create(FileSystem fileSystem, Path path) throws IOException {
+        if (isDefault()) {
+            return fileSystem.create(path);
+        }
+        FsPermission permission = FsPermission.getFileDefault().applyUMask(
+        FsPermission.getUMask(fileSystem.getConf()));
+        ChecksumOpt checksumOpt = null;
+        if (checksumType != null || bytesPerChecksum > 0) {
+            checksumOpt = new ChecksumOpt(checksumType == null ? DataChecksum.Type.DEFAULT : checksumType,
+            bytesPerChecksum);
+        }
+        return fileSystem.create(path, permission, EnumSet.of(CreateFlag.CREATE),
+        getBufferSize(fileSystem),
+        replication > 0 ? replication : fileSystem.getDefaultReplication(path),
+        blockSize > 0 ? blockSize : fileSystem.getDefaultBlockSize(path),
+        null, checksumOpt);
+    }
+
+    /* open: existing file at path, with the buffer size if one was set */
+    public FSDataInputStream open(FileSystem fileSystem, Path path) throws IOException {
+        return bufferSize > 0 ? fileSystem.open(path, bufferSize) : fileSystem.open(path);
+    }
+
+    private int getBufferSize(FileSystem fileSystem) {
+        return bufferSize > 0 ? bufferSize : fileSystem.getConf().getInt("io.file.buffer.size", 4096);
+    }
+
+    public boolean isDefault() {
+        return blockSize < 0 && replication < 0 && bufferSize < 0 && checksumType == null &&
+        bytesPerChecksum < 0;
+    }
+
+    /* toString: the request tokens that parse back into these options */
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        if (blockSize > 0) {
+            buf.append(" block=").append(blockSize);
+        }
+        if (replication > 0) {
+            buf.append(" repl=").append(replication);
+        }
+        if (bufferSize > 0) {
+            buf.append(" buffer=").append(bufferSize);
+        }
+        if (checksumType != null) {
+            buf.append(" checksum=").append(checksumType);
+        }
+        if (bytesPerChecksum > 0) {
+            buf.append(" bpc=").append(bytesPerChecksum);
+        }
+        if (streams > 1) {
+            buf.append(" streams=").append(streams);
+        }
+        return buf.toString().trim();
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * WriteSweepTest.java
+ * Christopher Chute, David Brandfonbrener, Leo Shimonaka, Matt Vasseur
+ *
+ * Measure write and read throughput and NameNode heap growth while sweeping
+ * the block size and replication factor files are created with, in place
+ * of the modeled variable-block-size curve. Heap growth is the change in
+ * the NameNode's old generation occupancy after a collection, read before
+ * the writes and again once a collection has followed them, since raw heap
+ * readings are dominated by uncollected garbage. The FilesTotal and
+ * BlocksTotal growth at the fitted per-inode and per-block costs is kept
+ * beside it as heap_model; the model does not see replication.
+ * Usage: WriteSweepTest <namenode_http> <local_file> [num_files]
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.InterruptedException;
+import java.util.LinkedList;
+
+public class WriteSweepTest {
+    private static final boolean _DEBUG = false;
+    private static final int NUM_CLIENT_THREADS = 16;
+    private static final int DEFAULT_NUM_FILES = 200;   // files written per configuration
+    private static final long[] BLOCK_SIZES_MB = {1, 4, 16, 64, 128, 256};
+    private static final short[] REPLICATIONS = {1, 2, 3};
+    private static final long SETTLE_MS = 60000;    // longest wait for an old generation collection
+    private static final long SETTLE_POLL_MS = 1000;
+    private static final String HDFS_SWEEP_DIR = "/sweep/";
+
+    // prints out one line per configuration in CSV format:
+    // block_mb,repl,write_files/sec,write_MB/sec,read_files/sec,read_MB/sec,failures,
+    // inodes_added,blocks_added,heap_growth_bytes,heap_bytes/file,collected,heap_model_bytes
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: WriteSweepTest <namenode_http> <local_file> [num_files]");
+            System.exit(1);
+        }
+        NameNodeMetrics nameNode = new NameNodeMetrics(args[0]);
+        File localFile = new File(args[1]);
+        int numFiles = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_NUM_FILES;
+        double fileMB = 1.0 * localFile.length() / (1 << 20);
+        LinkedList<String> requestQ = new LinkedList<String>();
+        Thread[] threadPool = new Thread[NUM_CLIENT_THREADS];
+        ResultsStore results = new ResultsStore("WriteSweepTest", ResultsStore.DEFAULT_DIR);
+        results.setNameNode(nameNode);
+        results.setConfig("client_threads", NUM_CLIENT_THREADS);
+        results.setConfig("files_per_config", numFiles);
+        results.setConfig("file_bytes", localFile.length());
+
+        for (long blockMB : BLOCK_SIZES_MB) {
+            for (short replication : REPLICATIONS) {
+                String dir = HDFS_SWEEP_DIR + "b" + blockMB + "r" + replication + "/";
+                WriteOptions options = new WriteOptions().setBlockSize(blockMB << 20)
+                .setReplication(replication);
+
+                // STEP 1: write with this configuration
+                System.err.println("(1) Writing " + numFiles + " files, " + options);
+                long filesBefore = nameNode.getFilesTotal();
+                long blocksBefore = nameNode.getBlocksTotal();
+                long oldGenBefore = nameNode.getOldGenUsedAfterGc();
+                for (int j = 1; j <= numFiles; ++j) {
+                    synchronized (requestQ) {
+                        requestQ.offer("add " + localFile.getAbsolutePath() + " " + dir +
+                        String.format("%05d", j) + " " + options);
+                        requestQ.notifyAll();
+                    }
+                }
+                OpMetrics writeMetrics = new OpMetrics();
+                double writeTime = runPool(requestQ, threadPool, writeMetrics);
+                long filesAfter = nameNode.getFilesTotal();
+                long blocksAfter = nameNode.getBlocksTotal();
+                long oldGenAfter = awaitCollection(nameNode, oldGenBefore);
+                boolean collected = oldGenBefore >= 0 && oldGenAfter >= 0 && oldGenAfter != oldGenBefore;
+
+                // STEP 2: read everything back
+                System.err.println("(2) Reading " + numFiles + " files");
+                for (int j = 1; j <= numFiles; ++j) {
+                    synchronized (requestQ) {
+                        requestQ.offer("read " + dir + String.format("%05d", j));
+                        requestQ.notifyAll();
+                    }
+                }
+                OpMetrics readMetrics = new OpMetrics();
+                double readTime = runPool(requestQ, threadPool, readMetrics);
+
+                long written = writeMetrics.getSuccesses();
+                long read = readMetrics.getSuccesses();
+                long inodesAdded = filesBefore < 0 || filesAfter < 0 ? -1 : filesAfter - filesBefore;
+                long blocksAdded = blocksBefore < 0 || blocksAfter < 0 ? -1 : blocksAfter - blocksBefore;
+                long heapGrowth = collected ? oldGenAfter - oldGenBefore : -1;
+                long heapModel = inodesAdded < 0 || blocksAdded < 0 ? -1 :
+                NameNodeMetrics.metadataBytes(inodesAdded, blocksAdded);
+                System.out.println(blockMB + "," + replication + "," +
+                String.format("%.4f,%.4f,%.4f,%.4f", written / writeTime, written * fileMB / writeTime,
+                read / readTime, read * fileMB / readTime) + "," +
+                (writeMetrics.getFailures() + readMetrics.getFailures()) + "," +
+                inodesAdded + "," + blocksAdded + "," +
+                heapGrowth + "," + (!collected || written == 0 ? -1 : heapGrowth / written) + "," +
+                collected + "," + heapModel);
+                int row = results.addRow("b" + blockMB + "r" + replication);
+                results.set(row, "write_xput", written / writeTime);
+                results.set(row, "read_xput", read / readTime);
+                results.set(row, "write_p99_ms", writeMetrics.getTotal().getPercentileMs(99));
+                results.set(row, "read_p99_ms", readMetrics.getTotal().getPercentileMs(99));
+                results.set(row, "failures", writeMetrics.getFailures() + readMetrics.getFailures());
+                results.set(row, "inodes_added", inodesAdded);
+                results.set(row, "blocks_added", blocksAdded);
+                results.set(row, "old_gen_before", oldGenBefore);
+                results.set(row, "old_gen_after", oldGenAfter);
+                results.set(row, "collected", collected ? 1 : 0);
+                results.set(row, "heap_growth", heapGrowth);
+                results.set(row, "heap_model", heapModel);
+                try {
+                    results.save();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+
+                // STEP 3: clean up HDFS and the local copies made by the reads
+                for (int j = 1; j <= numFiles; ++j) {
+                    new File(String.format("%05d", j)).delete();
+                }
+                synchronized (requestQ) {
+                    requestQ.offer("delete " + dir);
+                    requestQ.notifyAll();
+                }
+                runPool(requestQ, threadPool, null);
+
+                // let the deletes be collected so the next configuration starts from a settled heap
+                awaitCollection(nameNode, oldGenAfter);
+            }
+        } // END SWEEP LOOP
+
+        return;
+    }
+
+    // wait up to SETTLE_MS for the old generation occupancy after GC to move off before, returning it
+    private static long awaitCollection(NameNodeMetrics nameNode, long before) {
+        long oldGen = nameNode.getOldGenUsedAfterGc();
+        long deadline = System.currentTimeMillis() + SETTLE_MS;
+        while (oldGen >= 0 && oldGen == before && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(SETTLE_POLL_MS);
+            } catch (InterruptedException ex) {
+                break;
+            }
+            oldGen = nameNode.getOldGenUsedAfterGc();
+        }
+        return oldGen;
+    }
+
+    // drain requestQ with the thread pool, returning the elapsed seconds
+    private static double runPool(LinkedList<String> requestQ, Thread[] threadPool, OpMetrics metrics) {
+        for (int j = 0; j < NUM_CLIENT_THREADS; ++j) {
+            HdfsClient client = new HdfsClient(requestQ);
+            client.setMetrics(metrics);
+            threadPool[j] = new Thread(client);
+            threadPool[j].start();
+        }
+        Long startTime = System.currentTimeMillis();
+
+        for (int j = 0; j < NUM_CLIENT_THREADS; ++j) {
+            try {
+                threadPool[j].join();
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+        }
+        Long endTime = System.currentTimeMillis();
+        return 1.0 * (endTime - startTime) / 1000;
+    }
+
+    private static void DEBUG(String str) {
+        if (_DEBUG) {
+            System.err.println(str);
+        }
+    }
+}